@@ -11,10 +11,16 @@ import java.io.PrintStream;
 import java.net.URI;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import de.bottlecaps.markup.blitz.Parser;
+import de.bottlecaps.markup.blitz.Profile;
+import de.bottlecaps.markup.blitz.TieredParser;
+import de.bottlecaps.markup.blitz.ToJava;
 import de.bottlecaps.markup.blitz.grammar.Grammar;
 import de.bottlecaps.markup.blitz.transform.BNF;
 import de.bottlecaps.markup.blitz.transform.Generator;
@@ -30,17 +36,30 @@ public class Blitz {
   /** The ixml grammar resource. */
   public final static String IXML_GRAMMAR_RESOURCE = "de/bottlecaps/markup/blitz/ixml.ixml";
 
+  private static volatile ParserCache parserCache;
+
   /** Parser and generator options. */
   public enum Option {
     /**    Parser option: Generate XML with indentation.             */ INDENT,
     /**    Parser option: Print parser trace.                        */ TRACE,
     /**    Parser option: Fail on parsing error.                     */ FAIL_ON_ERROR,
     /** Generator option: Print timing information.                  */ TIMING,
-    /** Generator option: Print information on intermediate results. */ VERBOSE;
+    /** Generator option: Print information on intermediate results. */ VERBOSE,
+    /** Generator option: Specialize the parser into a hidden class. */ SPECIALIZE,
+    /** Generator option: Construct states and tables in parallel.   */ PARALLEL,
+    /** Generator option: Calculate LALR(1) lookaheads by relations. */ RELATIONAL_LALR,
+    /** Generator option: Split states to avoid LALR(1) conflicts.   */ MINIMAL_LR1,
+    /** Generator option: Use faster, but larger table layouts.      */ FAST_TABLES,
+    /** Generator option: Optimize the BNF grammar for fewer states. */ OPTIMIZE,
+    /** Generator option: Construct states on demand, while parsing. */ LAZY,
+    /** Generator option: Start lazily, upgrade in the background.   */ TIERED,
+    /** Generator option: Parse by the Earley algorithm, not by GLR. */ EARLEY;
   }
 
   /**
-   * Generate a parser from an Invisible XML grammar in ixml notation.
+   * Generate a parser from an Invisible XML grammar in ixml notation. When a parser
+   * cache is set, see {@link #setParserCache(ParserCache)}, repeated calls for the same
+   * grammar and options may return the same parser instance.
    *
    * @param grammar the Invisible XML grammar in ixml notation.
    * @param blitzOptions options for use at generation time and parsing time
@@ -48,8 +67,38 @@ public class Blitz {
    * @throws BlitzException if any error is detected while generating the parser
    */
   public static Parser generate(String grammar, Blitz.Option... blitzOptions) throws BlitzException {
-    long t0 = 0, t1 = 0, t2 = 0, t3 = 0;
     Set<Blitz.Option> options = Set.of(blitzOptions);
+    ParserCache cache = parserCache;
+    if (cache == null || options.contains(Blitz.Option.TIMING) || options.contains(Blitz.Option.VERBOSE))
+      return generate(grammar, options);
+    return cache.get(grammar, options, () -> generate(grammar, options));
+  }
+
+  /**
+   * Generate a parser from an Invisible XML grammar in ixml notation, and lay out
+   * its tables according to a profile, as recorded by {@link Parser#profile(String...)}
+   * with a parser for the same grammar and options. Parsers generated with a
+   * profile are not cached.
+   *
+   * @param grammar the Invisible XML grammar in ixml notation.
+   * @param profile the profile
+   * @param blitzOptions options for use at generation time and parsing time
+   * @return the generated parser
+   * @throws BlitzException if any error is detected while generating the parser,
+   * or if the profile does not match the parser tables
+   */
+  public static Parser generate(String grammar, Profile profile, Blitz.Option... blitzOptions) throws BlitzException {
+    return generate(grammar, Set.of(blitzOptions), profile);
+  }
+
+  private static Parser generate(String grammar, Set<Blitz.Option> options) throws BlitzException {
+    return generate(grammar, options, null);
+  }
+
+  private static Parser generate(String grammar, Set<Blitz.Option> options, Profile profile) throws BlitzException {
+    if (options.contains(Blitz.Option.TIERED))
+      return generateTiered(grammar, options, profile);
+    long t0 = 0, t1 = 0, t2 = 0, t3 = 0;
     boolean timing = options.contains(Blitz.Option.TIMING);
     if (timing)
       t0 = System.currentTimeMillis();
@@ -59,7 +108,7 @@ public class Blitz {
     Grammar bnf = BNF.process(tree, options);
     if (timing)
       t2 = System.currentTimeMillis();
-    Parser parser = Generator.generate(bnf, options);
+    Parser parser = Generator.generate(bnf, options, profile);
     if (timing) {
       t3 = System.currentTimeMillis();
       System.err.println("             parsing time: " + (t1 - t0) + " msec");
@@ -69,6 +118,65 @@ public class Blitz {
     return parser;
   }
 
+  /**
+   * Generate a parser that constructs its states on demand, and is available right
+   * away, and upgrade it to a parser with complete, optimized tables, that is
+   * generated in the background.
+   */
+  private static Parser generateTiered(String grammar, Set<Blitz.Option> options, Profile profile) throws BlitzException {
+    Set<Blitz.Option> optimizedOptions = EnumSet.copyOf(options);
+    optimizedOptions.remove(Blitz.Option.TIERED);
+    optimizedOptions.remove(Blitz.Option.LAZY);
+    Set<Blitz.Option> lazyOptions = EnumSet.copyOf(optimizedOptions);
+    lazyOptions.add(Blitz.Option.LAZY);
+    lazyOptions.remove(Blitz.Option.SPECIALIZE);
+    Parser lazyParser = generate(grammar, lazyOptions, null);
+    return new TieredParser(lazyParser, CompletableFuture.supplyAsync(() -> generate(grammar, optimizedOptions, profile)));
+  }
+
+  /**
+   * Generate a parser from an Invisible XML grammar in ixml notation, and return the
+   * Java source of a parser class that is specialized to the resulting parser tables.
+   * The class extends {@link Parser}, and its constructor accepts the default options
+   * for parsing.
+   *
+   * @param grammar the Invisible XML grammar in ixml notation.
+   * @param className the fully qualified name of the parser class
+   * @param blitzOptions options for use at generation time
+   * @return the Java source of the parser class
+   * @throws BlitzException if any error is detected while generating the parser
+   */
+  public static String generateJava(String grammar, String className, Blitz.Option... blitzOptions) throws BlitzException {
+    return ToJava.process(generate(grammar, withoutLazy(blitzOptions)), className);
+  }
+
+  /**
+   * Generate a parser from an Invisible XML grammar in ixml notation, with tables laid
+   * out according to a profile, and return the Java source of a parser class that is
+   * specialized to the resulting parser tables.
+   *
+   * @param grammar the Invisible XML grammar in ixml notation.
+   * @param className the fully qualified name of the parser class
+   * @param profile the profile
+   * @param blitzOptions options for use at generation time
+   * @return the Java source of the parser class
+   * @throws BlitzException if any error is detected while generating the parser,
+   * or if the profile does not match the parser tables
+   */
+  public static String generateJava(String grammar, String className, Profile profile, Blitz.Option... blitzOptions) throws BlitzException {
+    return ToJava.process(generate(grammar, profile, withoutLazy(blitzOptions)), className);
+  }
+
+  /**
+   * Remove {@link Option#LAZY} and {@link Option#TIERED}, because a parser class
+   * needs complete tables.
+   */
+  private static Option[] withoutLazy(Option[] options) {
+    return Arrays.stream(options)
+        .filter(option -> option != Option.LAZY && option != Option.TIERED)
+        .toArray(Option[]::new);
+  }
+
   /**
    * Generate a parser from an Invisible XML grammar in XML, passed as an InputStream.
    *
@@ -93,6 +201,28 @@ public class Blitz {
     return generate(new XmlGrammarInput(xml).toIxml(), blitzOptions);
   }
 
+  /**
+   * Get the cache that is used by {@link #generate(String, Option...)}.
+   *
+   * @return the parser cache, or null if caching is disabled
+   */
+  public static ParserCache getParserCache() {
+    return parserCache;
+  }
+
+  /**
+   * Set the cache that is used by {@link #generate(String, Option...)}. By default, no
+   * cache is used, and each call returns a new parser. A cached parser is shared by all
+   * callers, including its trace writer, see {@link Parser#setTraceWriter(java.io.Writer)}.
+   * Generation with options {@link Option#TIMING} or {@link Option#VERBOSE} always
+   * bypasses the cache.
+   *
+   * @param cache the parser cache, or null for disabling caching
+   */
+  public static void setParserCache(ParserCache cache) {
+    parserCache = cache;
+  }
+
   /**
    * Process a command line in order to generate a parser from an Invisible XML grammar, in
    * ixml notation, and parse some input using the generated parser. Write the resulting XML
@@ -119,6 +249,24 @@ public class Blitz {
         options.add(Option.TIMING);
       else if (args[i].equals("--verbose"))
         options.add(Option.VERBOSE);
+      else if (args[i].equals("--specialize"))
+        options.add(Option.SPECIALIZE);
+      else if (args[i].equals("--parallel"))
+        options.add(Option.PARALLEL);
+      else if (args[i].equals("--relational"))
+        options.add(Option.RELATIONAL_LALR);
+      else if (args[i].equals("--minimal-lr1"))
+        options.add(Option.MINIMAL_LR1);
+      else if (args[i].equals("--fast-tables"))
+        options.add(Option.FAST_TABLES);
+      else if (args[i].equals("--optimize"))
+        options.add(Option.OPTIMIZE);
+      else if (args[i].equals("--lazy"))
+        options.add(Option.LAZY);
+      else if (args[i].equals("--tiered"))
+        options.add(Option.TIERED);
+      else if (args[i].equals("--earley"))
+        options.add(Option.EARLEY);
       else if (args[i].startsWith("-"))
         usage(1);
       else
@@ -166,6 +314,15 @@ public class Blitz {
     System.err.println("    --fail-on-error  throw an exception instead of returning an error document.");
     System.err.println("    --timing         print timing information.");
     System.err.println("    --verbose        print intermediate results.");
+    System.err.println("    --specialize     specialize the parser into a hidden class.");
+    System.err.println("    --parallel       construct LALR(1) states and tables in parallel.");
+    System.err.println("    --relational     calculate LALR(1) lookaheads by relations.");
+    System.err.println("    --minimal-lr1    split states to avoid LALR(1) conflicts.");
+    System.err.println("    --fast-tables    use faster, but larger table layouts.");
+    System.err.println("    --optimize       optimize the BNF grammar for fewer states.");
+    System.err.println("    --lazy           construct states on demand, while parsing.");
+    System.err.println("    --tiered         start lazily, and upgrade to full tables in the background.");
+    System.err.println("    --earley         parse by the Earley algorithm, rather than by GLR.");
     System.err.println();
     System.err.println("  A literal grammar or input must be preceded by an exclamation point (!).");
     System.err.println("  All inputs must be presented in UTF-8 encoding, and output is written in");
@@ -0,0 +1,239 @@
+// Copyright (c) 2023-2024 Gunther Rademacher. Provided under the Apache 2 License.
+
+package de.bottlecaps.markup;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import de.bottlecaps.markup.Blitz.Option;
+import de.bottlecaps.markup.blitz.Parser;
+
+/**
+ * A bounded cache of generated parsers, keyed by a SHA-256 hash of the grammar
+ * text and the generation options. Least recently used entries are evicted when
+ * the maximum size is exceeded. Optionally, parsers are held by soft references,
+ * such that the garbage collector may reclaim them under memory pressure.
+ * Concurrent requests for the same key share a single parser generation.
+ *
+ * @author Gunther Rademacher
+ */
+public class ParserCache {
+  /** The default maximum number of cached parsers. */
+  public static final int DEFAULT_MAXIMUM_SIZE = 64;
+
+  private final int maximumSize;
+  private final boolean softReferences;
+  private final Map<String, Object> entries;
+  private final ReferenceQueue<Parser> referenceQueue = new ReferenceQueue<>();
+  private final Map<String, CompletableFuture<Parser>> pending = new ConcurrentHashMap<>();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder waits = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Create a parser cache of {@link #DEFAULT_MAXIMUM_SIZE} parsers, held by strong
+   * references.
+   */
+  public ParserCache() {
+    this(DEFAULT_MAXIMUM_SIZE, false);
+  }
+
+  /**
+   * Create a parser cache.
+   *
+   * @param maximumSize the maximum number of cached parsers
+   * @param softReferences whether to hold parsers by soft references
+   */
+  public ParserCache(int maximumSize, boolean softReferences) {
+    if (maximumSize < 1)
+      throw new IllegalArgumentException("maximum size must be positive: " + maximumSize);
+    this.maximumSize = maximumSize;
+    this.softReferences = softReferences;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+        if (size() <= ParserCache.this.maximumSize)
+          return false;
+        evictions.increment();
+        return true;
+      }
+    };
+  }
+
+  /**
+   * Get the parser for the given grammar and options from the cache. If it is not
+   * present, use the generator to create it, unless another thread is already doing so,
+   * in which case wait for that thread's result.
+   *
+   * @param grammar the grammar
+   * @param options the generation options
+   * @param generator the parser generator
+   * @return the parser
+   * @throws BlitzException if any error is detected while generating the parser
+   */
+  public Parser get(String grammar, Set<Option> options, Supplier<Parser> generator) throws BlitzException {
+    String key = key(grammar, options);
+    Parser parser = lookup(key);
+    if (parser != null) {
+      hits.increment();
+      return parser;
+    }
+
+    CompletableFuture<Parser> future = new CompletableFuture<>();
+    CompletableFuture<Parser> concurrent = pending.putIfAbsent(key, future);
+    if (concurrent != null) {
+      waits.increment();
+      try {
+        return concurrent.join();
+      }
+      catch (CompletionException e) {
+        if (e.getCause() instanceof RuntimeException)
+          throw (RuntimeException) e.getCause();
+        if (e.getCause() instanceof Error)
+          throw (Error) e.getCause();
+        throw e;
+      }
+    }
+
+    try {
+      parser = lookup(key);
+      if (parser != null) {
+        hits.increment();
+      }
+      else {
+        misses.increment();
+        parser = generator.get();
+        synchronized (entries) {
+          entries.put(key, softReferences ? new Entry(key, parser, referenceQueue) : parser);
+        }
+      }
+      future.complete(parser);
+      return parser;
+    }
+    catch (RuntimeException | Error e) {
+      future.completeExceptionally(e);
+      throw e;
+    }
+    finally {
+      pending.remove(key, future);
+    }
+  }
+
+  private Parser lookup(String key) {
+    synchronized (entries) {
+      for (Reference<? extends Parser> reference; (reference = referenceQueue.poll()) != null; )
+        if (entries.remove(((Entry) reference).key, reference))
+          evictions.increment();
+      Object entry = entries.get(key);
+      if (! (entry instanceof Entry))
+        return (Parser) entry;
+      Parser parser = ((Entry) entry).get();
+      if (parser == null) {
+        entries.remove(key);
+        evictions.increment();
+      }
+      return parser;
+    }
+  }
+
+  private static String key(String grammar, Set<Option> options) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(grammar.getBytes(StandardCharsets.UTF_8));
+      for (Option option : new TreeSet<>(options)) {
+        digest.update((byte) 0);
+        digest.update(option.name().getBytes(StandardCharsets.UTF_8));
+      }
+      StringBuilder sb = new StringBuilder();
+      for (byte b : digest.digest())
+        sb.append(String.format("%02x", b));
+      return sb.toString();
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new BlitzException(e);
+    }
+  }
+
+  /**
+   * Remove all entries from the cache.
+   */
+  public void clear() {
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  /**
+   * Get the current number of cached parsers.
+   *
+   * @return the number of cached parsers
+   */
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * Get the number of requests that were served without generating a parser.
+   *
+   * @return the number of cache hits
+   */
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  /**
+   * Get the number of requests that caused a parser to be generated.
+   *
+   * @return the number of cache misses
+   */
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /**
+   * Get the number of requests that were served by waiting for another thread's
+   * generation of the same parser.
+   *
+   * @return the number of waits
+   */
+  public long getWaitCount() {
+    return waits.sum();
+  }
+
+  /**
+   * Get the number of parsers that were dropped from the cache, either because the
+   * maximum size was exceeded, or because their soft reference was cleared.
+   *
+   * @return the number of evictions
+   */
+  public long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  private static class Entry extends SoftReference<Parser> {
+    private final String key;
+
+    public Entry(String key, Parser parser, ReferenceQueue<Parser> queue) {
+      super(parser, queue);
+      this.key = key;
+    }
+  }
+}
@@ -0,0 +1,948 @@
+// Copyright (c) 2023-2024 Gunther Rademacher. Provided under the Apache 2 License.
+
+package de.bottlecaps.markup.blitz;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.bottlecaps.markup.blitz.parser.Action;
+
+/**
+ * An Earley parser over the items of a BNF grammar, as an alternative to
+ * the GLR parser. The GLR parser clones a thread per alternative, so
+ * highly ambiguous grammars may cause the number of threads to grow
+ * exponentially, while the Earley parser represents all derivations in
+ * item sets, and is bounded by the cube of the input length.
+ *
+ * <p>Following recognition, a derivation is selected from the item sets,
+ * where for each node the one with the fewest events is preferred, like
+ * the GLR parser does when threads merge. Among derivations of equal size,
+ * the one is preferred, that the GLR parser would have kept, as far as
+ * this can be told by following its LR automaton along the items. The
+ * derivation is returned as the sequence of events, that the LR parser
+ * would have produced for it, i.e. shifts of terminals and reductions, so
+ * the parse tree is built in the same way. Input is ambiguous, when any
+ * node that is part of a derivation can be derived in more than one way.
+ *
+ * <p>Parsing starts with this parser, when requested by
+ * {@link de.bottlecaps.markup.Blitz.Option#EARLEY}, or when the grammar
+ * has many conflicts, and the GLR parser hands over to it, when it runs
+ * too many threads. Unless requested, the derivation is used only when it
+ * is the only one, so the result is the same as that of the GLR parser.
+ * When parsing fails, the GLR parser reports the error.
+ */
+public class Earley {
+  public static final byte TERMINAL_ITEM = 0;
+  public static final byte NONTERMINAL_ITEM = 1;
+  public static final byte REDUCE_ITEM = 2;
+
+  private static final int EXPAND = 0;
+  private static final int FINISH = 1;
+
+  /**
+   * Number of variants of each node, i.e. of derivations selected for
+   * whether or not the GLR parser forks at the node's end position,
+   * following it, because this affects which of the threads is kept.
+   */
+  private static final int VARIANTS = 2;
+  /** Number of fork positions that are kept per derivation. */
+  private static final int FORKS = 4;
+
+  /** Flag of a derivation, that has more fork positions than are kept. */
+  private static final byte MORE = 1;
+  /** Flag of a derivation, that forks at its begin position. */
+  private static final byte FORK_AT_BEGIN = 2;
+
+  private static final byte UNVISITED = 0;
+  private static final byte IN_PROGRESS = 1;
+  private static final byte DONE = 2;
+
+  /** Item kinds, by item id. */
+  final byte[] itemKind;
+  /** Terminal code, nonterminal code, or reduction id, by item id. */
+  final int[] itemSymbol;
+  /** Item ids of the initial items of each rule's alternatives, by nonterminal code. */
+  final int[][] ruleStartItems;
+  /** Whether a rule is nullable, by nonterminal code. */
+  final boolean[] isNullable;
+  /** Whether parsing should start with this parser, rather than with the GLR parser. */
+  final boolean isPreferred;
+
+  /** Nonterminal code of the rule containing an item, by item id. */
+  private final int[] itemRule;
+  /** Whether an item is the initial item of its alternative, by item id. */
+  private final boolean[] isStartItem;
+  /** Item id of the reduce item of an alternative, by item id of its initial item. */
+  private final int[] reduceItem;
+  /** Whether an alternative equals a preceding one of the same rule, by item id of its initial item. */
+  private final boolean[] isDuplicate;
+  /**
+   * Whether the grammar has left recursion that is hidden by a nullable
+   * prefix. The GLR parser may then repeat reductions of empty rules at
+   * the same input position, until it discards the threads doing so.
+   */
+  private final boolean isHiddenLeftRecursive;
+
+  /**
+   * Create an Earley parser.
+   *
+   * @param itemKind item kinds, by item id
+   * @param itemSymbol terminal code, nonterminal code, or reduction id, by item id
+   * @param ruleStartItems item ids of the initial items of each rule's alternatives, by nonterminal code
+   * @param isNullable whether a rule is nullable, by nonterminal code
+   * @param isPreferred whether parsing should start with this parser, rather than with the GLR parser
+   */
+  public Earley(byte[] itemKind, int[] itemSymbol, int[][] ruleStartItems, boolean[] isNullable, boolean isPreferred) {
+    this.itemKind = itemKind;
+    this.itemSymbol = itemSymbol;
+    this.ruleStartItems = ruleStartItems;
+    this.isNullable = isNullable;
+    this.isPreferred = isPreferred;
+
+    itemRule = new int[itemKind.length];
+    isStartItem = new boolean[itemKind.length];
+    reduceItem = new int[itemKind.length];
+    isDuplicate = new boolean[itemKind.length];
+    for (int rule = 0; rule < ruleStartItems.length; ++rule) {
+      for (int a = 0; a < ruleStartItems[rule].length; ++a) {
+        int startItem = ruleStartItems[rule][a];
+        isStartItem[startItem] = true;
+        int item = startItem;
+        for (; itemKind[item] != REDUCE_ITEM; ++item)
+          itemRule[item] = rule;
+        itemRule[item] = rule;
+        reduceItem[startItem] = item;
+        for (int b = 0; b < a && ! isDuplicate[startItem]; ++b)
+          isDuplicate[startItem] = equals(ruleStartItems[rule][b], startItem);
+      }
+    }
+    isHiddenLeftRecursive = isHiddenLeftRecursive();
+  }
+
+  /**
+   * Check whether a rule can derive a sentential form beginning with
+   * itself, where at least one step skips a nullable prefix.
+   */
+  private boolean isHiddenLeftRecursive() {
+    for (int rule = 0; rule < ruleStartItems.length; ++rule) {
+      for (int startItem : ruleStartItems[rule]) {
+        for (int item = startItem; itemKind[item] == NONTERMINAL_ITEM && isNullable[itemSymbol[item]]; ++item) {
+          if (itemKind[item + 1] == NONTERMINAL_ITEM && isLeftCorner(rule, itemSymbol[item + 1]))
+            return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Check whether a rule can derive a sentential form beginning with
+   * a nonterminal, possibly following a nullable prefix.
+   */
+  private boolean isLeftCorner(int rule, int nonterminal) {
+    BitSet visited = new BitSet();
+    Deque<Integer> queue = new ArrayDeque<>();
+    queue.add(nonterminal);
+    visited.set(nonterminal);
+    while (! queue.isEmpty()) {
+      int current = queue.remove();
+      if (current == rule)
+        return true;
+      for (int startItem : ruleStartItems[current]) {
+        for (int item = startItem; itemKind[item] == NONTERMINAL_ITEM; ++item) {
+          if (! visited.get(itemSymbol[item])) {
+            visited.set(itemSymbol[item]);
+            queue.add(itemSymbol[item]);
+          }
+          if (! isNullable[itemSymbol[item]])
+            break;
+        }
+      }
+    }
+    return false;
+  }
+
+  private boolean equals(int startItem, int otherStartItem) {
+    for (int i = startItem, j = otherStartItem; ; ++i, ++j) {
+      if (itemKind[i] != itemKind[j] || itemSymbol[i] != itemSymbol[j])
+        return false;
+      if (itemKind[i] == REDUCE_ITEM)
+        return true;
+    }
+  }
+
+  /**
+   * Check whether parsing should start with this parser, rather than with
+   * the GLR parser.
+   *
+   * @return true, if this parser is preferred
+   */
+  public boolean isPreferred() {
+    return isPreferred;
+  }
+
+  /**
+   * Parse a sequence of terminals. These are the original terminals of the
+   * grammar, rather than token codes, because the generator may have merged
+   * terminals that the LR automaton handles in the same way, even though
+   * they occur in different alternatives. The token codes are needed as
+   * well, for following the LR automaton of the parser, when selecting a
+   * derivation.
+   *
+   * @param parser the LR parser for the same grammar
+   * @param terminals the terminal codes, by input position, where the
+   * terminal following the last position is 0 at the end of input, or -1
+   * when the next character could not be classified
+   * @param tokens the token codes, by input position, where the token
+   * following the last position is 0
+   * @param end the number of terminals preceding the last position
+   * @return the result
+   */
+  Result parse(Parser parser, int[] terminals, int[] tokens, int end) {
+    ItemSet[] sets = new ItemSet[end + 1];
+    sets[0] = new ItemSet();
+    for (int startItem : ruleStartItems[0])
+      sets[0].add(startItem, 0);
+
+    for (int i = 0; i <= end && sets[i] != null; ++i) {
+      ItemSet set = sets[i];
+      for (int k = 0; k < set.size; ++k) {
+        int item = set.item[k];
+        if (item < 0)
+          continue;
+        int origin = set.origin[k];
+        int symbol = itemSymbol[item];
+        switch (itemKind[item]) {
+        case TERMINAL_ITEM:
+          if (i < end && symbol == terminals[i]) {
+            if (sets[i + 1] == null)
+              sets[i + 1] = new ItemSet();
+            sets[i + 1].add(item + 1, origin);
+          }
+          break;
+        case NONTERMINAL_ITEM:
+          set.link(k, symbol);
+          for (int startItem : ruleStartItems[symbol])
+            set.add(startItem, i);
+          if (isNullable[symbol])
+            set.add(item + 1, origin);
+          break;
+        default:
+          int rule = itemRule[item];
+          int completion = set.add(~rule, origin);
+          if (completion >= 0)
+            set.link(completion, ~rule);
+          ItemSet originSet = sets[origin];
+          for (int w = originSet.first(rule); w >= 0; w = originSet.next[w])
+            set.add(originSet.item[w] + 1, originSet.origin[w]);
+          break;
+        }
+      }
+    }
+
+    if (sets[end] != null && terminals[end] == 0) {
+      int root = sets[end].indexOf(~0, 0);
+      if (root >= 0)
+        return new Derivation(parser, sets, tokens).result(end, root);
+    }
+    return new Result(null, false, false);
+  }
+
+  /** The result of parsing. */
+  static class Result {
+    /**
+     * The events of the derivation, or null, if parsing failed. A
+     * nonnegative event is the shift of the terminal at that input position,
+     * and a negative event is the reduction, whose id is its complement.
+     */
+    final int[] events;
+    final boolean isAmbiguous;
+    /**
+     * Whether the derivation is the one that the GLR parser would have
+     * chosen, because it is the only one, and the GLR parser does not
+     * discard any threads, when it finds it.
+     */
+    final boolean isDecisive;
+
+    Result(int[] events, boolean isAmbiguous, boolean isDecisive) {
+      this.events = events;
+      this.isAmbiguous = isAmbiguous;
+      this.isDecisive = isDecisive;
+    }
+  }
+
+  /**
+   * The items at one input position, i.e. pairs of item id and origin
+   * position, and completions, i.e. pairs of the complement of a
+   * nonterminal code, and the position where its derivation begins. Items
+   * that wait for a nonterminal, and completions of a nonterminal, are
+   * chained in lists per nonterminal. Following recognition, each item and
+   * completion, in the context of the LR state where its rule was entered,
+   * serves as a node of the derivation forest.
+   */
+  private static class ItemSet {
+    private int[] item = new int[16];
+    private int[] origin = new int[16];
+    private int[] next = new int[16];
+    private int size = 0;
+    /** Indexes of items, plus one, by hash of item and origin. */
+    private int[] index = new int[32];
+    /** Heads of the lists of waiting items, and completions, by nonterminal code or its complement. */
+    private final Map<Integer, Integer> first = new HashMap<>();
+
+    /** Item index of each node. */
+    private int[] nodeItem;
+    /** LR state of each node, where the rule of its item was entered. */
+    private int[] nodeState;
+    private int numberOfNodes = 0;
+    /** Indexes of nodes, plus one, by hash of item index and state. */
+    private int[] nodeIndex;
+    /** Minimum number of events of each node. */
+    private int[] events;
+    private byte[] status;
+    /** Selected derivation of each variant of each node. */
+    private int[] choice;
+    /** Flags of the selected derivation of each variant of each node. */
+    private byte[] flags;
+    /** Latest fork positions of the selected derivation of each variant of each node, in descending order. */
+    private int[] forks;
+
+    /**
+     * Add an item, unless it is present already.
+     *
+     * @return the index of the item, or -1, if it was present
+     */
+    int add(int i, int o) {
+      int h = hash(i, o, index.length);
+      for (int k; (k = index[h]) != 0; h = (h + 1) & (index.length - 1))
+        if (item[k - 1] == i && origin[k - 1] == o)
+          return -1;
+      if (size == item.length) {
+        item = Arrays.copyOf(item, size << 1);
+        origin = Arrays.copyOf(origin, size << 1);
+        next = Arrays.copyOf(next, size << 1);
+      }
+      item[size] = i;
+      origin[size] = o;
+      next[size] = -1;
+      index[h] = ++size;
+      if (size << 1 > index.length)
+        rehash();
+      return size - 1;
+    }
+
+    int indexOf(int i, int o) {
+      for (int h = hash(i, o, index.length), k; (k = index[h]) != 0; h = (h + 1) & (index.length - 1))
+        if (item[k - 1] == i && origin[k - 1] == o)
+          return k - 1;
+      return -1;
+    }
+
+    void link(int k, int symbol) {
+      Integer head = first.put(symbol, k);
+      next[k] = head == null ? -1 : head;
+    }
+
+    int first(int symbol) {
+      Integer head = first.get(symbol);
+      return head == null ? -1 : head;
+    }
+
+    private void rehash() {
+      index = new int[index.length << 1];
+      for (int k = 0; k < size; ++k) {
+        int h = hash(item[k], origin[k], index.length);
+        while (index[h] != 0)
+          h = (h + 1) & (index.length - 1);
+        index[h] = k + 1;
+      }
+    }
+
+    /**
+     * Get the node of an item in an LR state, creating it, if it does not
+     * exist yet.
+     *
+     * @param k the item index
+     * @param state the LR state
+     * @return the node index
+     */
+    int node(int k, int state) {
+      if (nodeIndex == null) {
+        nodeIndex = new int[32];
+        nodeItem = new int[16];
+        nodeState = new int[16];
+        events = new int[16];
+        status = new byte[16];
+        choice = new int[16 * VARIANTS];
+        flags = new byte[16 * VARIANTS];
+        forks = new int[16 * VARIANTS * FORKS];
+      }
+      int h = hash(k, state, nodeIndex.length);
+      for (int n; (n = nodeIndex[h]) != 0; h = (h + 1) & (nodeIndex.length - 1))
+        if (nodeItem[n - 1] == k && nodeState[n - 1] == state)
+          return n - 1;
+      if (numberOfNodes == nodeItem.length) {
+        int capacity = numberOfNodes << 1;
+        nodeItem = Arrays.copyOf(nodeItem, capacity);
+        nodeState = Arrays.copyOf(nodeState, capacity);
+        events = Arrays.copyOf(events, capacity);
+        status = Arrays.copyOf(status, capacity);
+        choice = Arrays.copyOf(choice, capacity * VARIANTS);
+        flags = Arrays.copyOf(flags, capacity * VARIANTS);
+        forks = Arrays.copyOf(forks, capacity * VARIANTS * FORKS);
+      }
+      nodeItem[numberOfNodes] = k;
+      nodeState[numberOfNodes] = state;
+      nodeIndex[h] = ++numberOfNodes;
+      if (numberOfNodes << 1 > nodeIndex.length) {
+        nodeIndex = new int[nodeIndex.length << 1];
+        for (int n = 0; n < numberOfNodes; ++n) {
+          int g = hash(nodeItem[n], nodeState[n], nodeIndex.length);
+          while (nodeIndex[g] != 0)
+            g = (g + 1) & (nodeIndex.length - 1);
+          nodeIndex[g] = n + 1;
+        }
+      }
+      return numberOfNodes - 1;
+    }
+
+    private static int hash(int i, int o, int length) {
+      int h = i * 0x9E3779B9 + o * 0x85EBCA6B;
+      return (h ^ (h >>> 16)) & (length - 1);
+    }
+  }
+
+  /**
+   * The selection of a derivation from the item sets, such that it is the
+   * one that the GLR parser would have chosen. The GLR parser forks a
+   * thread per alternative of a conflict, and when threads merge, it keeps
+   * the one with fewer events, or else the one that was forked last. The
+   * number of events is determined here in the same way, and the order of
+   * forking by following the LR automaton of the parser along the items,
+   * to find the forks where a derivation does not take the first
+   * alternative, because that is where the GLR parser creates a new
+   * thread.
+   *
+   * <p>The GLR parser processes the threads at each input position in
+   * descending order of their creation, so of two threads that fork at the
+   * same position, the one that was created earlier is the last to fork
+   * there. Hence derivations are compared by the positions of their forks,
+   * in descending order, where at the first position that differs, the
+   * one having the later fork is preferred, if an even number of positions
+   * precedes it, and the other one otherwise. Whether the GLR parser forks
+   * at the end position of a node, after completing it, and before the
+   * threads get merged, thus affects the preference, so each node has a
+   * variant for either case. When the comparison does not tell, e.g.
+   * because both derivations fork at the same positions, the preference
+   * depends on the order in which the GLR parser processes threads of the
+   * same origin. The selection then falls back to the last alternative of
+   * a rule, and to the nonterminal that was completed last. This mostly,
+   * but not always, leads to the same choice as the GLR parser, so the
+   * derivation is only taken to be decisive, when it is the only one.
+   *
+   * <p>Nodes are visited depth-first, by means of an explicit stack,
+   * because derivations may be as deep as the input is long. A node that
+   * is reached again while it is still in progress is part of a cycle,
+   * i.e. it is infinitely ambiguous, and it is not used for the derivation
+   * that is selected. As this may miss derivations of nodes that were
+   * finished while such a node was in progress, the selection is then
+   * repeated for all nodes, until no node has fewer events. A node has
+   * more events than any node selected for its derivation, or than the
+   * node selected by that one, so the selected derivations never form a
+   * cycle.
+   */
+  private class Derivation {
+    /** Pseudo state following a transition that the LR automaton does not have. */
+    private static final int UNKNOWN = -1;
+
+    private final Parser parser;
+    private final ItemSet[] sets;
+    private final int[] tokens;
+    /**
+     * LR states following items, by item id and the state where its rule
+     * was entered. A reduction that immediately follows a shift, or a
+     * transition on a nonterminal, is represented by the complement of its
+     * id, minus one.
+     */
+    private final Map<Long, Integer> states = new HashMap<>();
+    /** The fork positions of the derivation under consideration. */
+    private final int[] candidate = new int[FORKS];
+    private boolean isAmbiguous = false;
+    private long[] stack = new long[64];
+    private int top = -1;
+    /** The nodes, in the order that they were finished. */
+    private long[] finished = new long[64];
+    private int numberOfFinished = 0;
+
+    Derivation(Parser parser, ItemSet[] sets, int[] tokens) {
+      this.parser = parser;
+      this.sets = sets;
+      this.tokens = tokens;
+    }
+
+    Result result(int end, int root) {
+      int node = sets[end].node(root, 0);
+      evaluate(end, node);
+      int[] events = events(end, node);
+      return new Result(events, isAmbiguous, ! isAmbiguous && ! isHiddenLeftRecursive);
+    }
+
+    /**
+     * Determine the minimum number of events, and the preferred derivation
+     * achieving it, for all nodes that are reachable from the root.
+     */
+    private void evaluate(int end, int root) {
+      push(task(end, root, EXPAND));
+      while (top >= 0) {
+        long task = stack[top--];
+        int i = (int) (task >>> 32);
+        int n = (int) task >>> 1;
+        ItemSet set = sets[i];
+        if ((task & 1) == FINISH) {
+          finish(i, n);
+        }
+        else if (set.status[n] == UNVISITED) {
+          set.status[n] = IN_PROGRESS;
+          push(task(i, n, FINISH));
+          int derivations = children(i, n, true);
+          if (derivations > 1)
+            isAmbiguous = true;
+        }
+      }
+
+      for (boolean changed = true; changed; ) {
+        changed = false;
+        for (int f = 0; f < numberOfFinished; ++f) {
+          int i = (int) (finished[f] >>> 32);
+          int n = (int) finished[f];
+          int events = sets[i].events[n];
+          select(i, n);
+          if (sets[i].events[n] < events)
+            changed = true;
+        }
+      }
+    }
+
+    /**
+     * Visit the children of a node, i.e. push the unvisited ones onto the
+     * stack, when expanding, or consider each derivation for selection,
+     * when finishing.
+     *
+     * @return the number of derivations
+     */
+    private int children(int i, int n, boolean expand) {
+      ItemSet set = sets[i];
+      int k = set.nodeItem[n];
+      int state = set.nodeState[n];
+      int item = set.item[k];
+      int origin = set.origin[k];
+      int derivations = 0;
+      if (item < 0) {
+        // completion of a nonterminal: one derivation per alternative
+        for (int startItem : ruleStartItems[~item]) {
+          int alternative = set.indexOf(reduceItem[startItem], origin);
+          if (alternative >= 0) {
+            ++derivations;
+            int child = set.node(alternative, state);
+            if (expand) {
+              visit(i, child);
+            }
+            else if (! isDuplicate[startItem] && consider(set, n, (long) eventCount(i, child) + 1)) {
+              int fork = reduction(i, reduceItem[startItem], state);
+              for (int c = 0; c < VARIANTS; ++c) {
+                int v = variant(child, fork >= 0 ? 1 : c);
+                int flags = merge(set.forks, v, set.flags[v], null, 0, 0, Math.max(fork, -1))
+                          | (forkAtBegin(set.flags[v]) || fork >= 0 && origin == i ? FORK_AT_BEGIN : 0);
+                consider(set, n, c, child, flags, origin, i, true);
+              }
+            }
+          }
+        }
+      }
+      else if (isStartItem[item]) {
+        derivations = 1;
+        if (! expand) {
+          set.events[n] = 0;
+          for (int c = 0; c < VARIANTS; ++c)
+            set.choice[variant(n, c)] = 0;
+        }
+      }
+      else if (itemKind[item - 1] == TERMINAL_ITEM) {
+        derivations = 1;
+        ItemSet previous = sets[i - 1];
+        int predecessor = previous.node(previous.indexOf(item - 1, origin), state);
+        if (expand) {
+          visit(i - 1, predecessor);
+        }
+        else if (consider(set, n, (long) eventCount(i - 1, predecessor) + 1)) {
+          int v = variant(predecessor, 0);
+          int flags = merge(previous.forks, v, previous.flags[v], null, 0, 0, -1)
+                    | previous.flags[v] & FORK_AT_BEGIN;
+          for (int c = 0; c < VARIANTS; ++c)
+            consider(set, n, c, i - 1, flags, origin, i, false);
+        }
+      }
+      else {
+        // item following a nonterminal: one derivation per position where the nonterminal begins
+        int symbol = ~itemSymbol[item - 1];
+        int entered = stateAfter(item - 1, state);
+        for (int c = set.first(symbol); c >= 0; c = set.next[c]) {
+          int split = set.origin[c];
+          if (split < origin)
+            continue;
+          ItemSet previous = sets[split];
+          int predecessor = previous.indexOf(item - 1, origin);
+          if (predecessor >= 0) {
+            ++derivations;
+            predecessor = previous.node(predecessor, state);
+            int completion = set.node(c, entered);
+            if (expand) {
+              visit(i, completion);
+              visit(split, predecessor);
+            }
+            else if (consider(set, n, (long) eventCount(split, predecessor) + eventCount(i, completion))) {
+              for (int d = 0; d < VARIANTS; ++d) {
+                int w = variant(completion, d);
+                int v = variant(predecessor, forkAtBegin(set.flags[w]) || split == i && d == 1 ? 1 : 0);
+                int flags = merge(previous.forks, v, previous.flags[v], set.forks, w, set.flags[w], -1)
+                          | (forkAtBegin(previous.flags[v]) || split == origin && forkAtBegin(set.flags[w]) ? FORK_AT_BEGIN : 0);
+                consider(set, n, d, split, flags, origin, i, false);
+              }
+            }
+          }
+        }
+      }
+      return derivations;
+    }
+
+    private void finish(int i, int n) {
+      select(i, n);
+      sets[i].status[n] = DONE;
+      if (numberOfFinished == finished.length)
+        finished = Arrays.copyOf(finished, numberOfFinished << 1);
+      finished[numberOfFinished++] = node(i, n);
+    }
+
+    /**
+     * Select the preferred derivation of each variant of a node, among all
+     * of its derivations.
+     */
+    private void select(int i, int n) {
+      ItemSet set = sets[i];
+      set.events[n] = Integer.MAX_VALUE;
+      for (int c = 0; c < VARIANTS; ++c)
+        clear(set, variant(n, c));
+      children(i, n, false);
+    }
+
+    /**
+     * Consider the number of events of a derivation. When it is less than
+     * that of the derivations selected before, these are discarded.
+     * Derivations involving nodes in progress are never selected.
+     *
+     * @return true, if the derivation needs to be considered further
+     */
+    private boolean consider(ItemSet set, int n, long events) {
+      if (events >= Integer.MAX_VALUE || events > set.events[n])
+        return false;
+      if (events < set.events[n]) {
+        set.events[n] = (int) events;
+        for (int c = 0; c < VARIANTS; ++c)
+          clear(set, variant(n, c));
+      }
+      return true;
+    }
+
+    /**
+     * Merge the fork positions of one or two child nodes, and possibly one
+     * more, into the candidate, in descending order. When a child has more
+     * fork positions than are kept, none below its last one are merged.
+     *
+     * @param forks the fork positions of the first child
+     * @param v the variant index of the first child
+     * @param vFlags the flags of the first child
+     * @param moreForks the fork positions of the second child, or null
+     * @param w the variant index of the second child
+     * @param wFlags the flags of the second child
+     * @param fork one more fork position, or -1
+     * @return MORE, if the candidate is lacking fork positions, or else 0
+     */
+    private int merge(int[] forks, int v, int vFlags, int[] moreForks, int w, int wFlags, int fork) {
+      int bound = -1;
+      if ((vFlags & MORE) != 0)
+        bound = last(forks, v);
+      if (moreForks != null && (wFlags & MORE) != 0)
+        bound = Math.max(bound, last(moreForks, w));
+      int more = 0;
+      int size = 0;
+      for (int p = 0, q = 0; ; ) {
+        int x = p < FORKS ? forks[v * FORKS + p] : -1;
+        int y = moreForks != null && q < FORKS ? moreForks[w * FORKS + q] : -1;
+        int max = Math.max(fork, Math.max(x, y));
+        if (max < 0)
+          break;
+        if (size == FORKS || max < bound) {
+          more = MORE;
+          break;
+        }
+        candidate[size++] = max;
+        if (x == max) ++p;
+        if (y == max) ++q;
+        if (fork == max) fork = -1;
+      }
+      Arrays.fill(candidate, size, FORKS, -1);
+      return more | (vFlags | wFlags) & MORE;
+    }
+
+    /**
+     * Consider the candidate for a variant of a node, as a derivation that
+     * has as many events as the ones selected before. It is selected, when
+     * it is preferred over the one selected before. When that cannot be
+     * told, the later derivation is selected, if ties are to be broken that
+     * way.
+     *
+     * @param set the item set of the node
+     * @param n the node
+     * @param c the variant
+     * @param choice the selection to be recorded for the node
+     * @param flags the flags of the candidate
+     * @param begin the begin position of the node
+     * @param end the end position of the node
+     * @param preferLater whether to break ties in favor of the later derivation
+     */
+    private void consider(ItemSet set, int n, int c, int choice, int flags, int begin, int end, boolean preferLater) {
+      int u = variant(n, c);
+      int comparison = set.choice[u] < 0
+                     ? 1
+                     : compare(candidate, 0, flags, set.forks, u * FORKS, set.flags[u], c == 1, begin, end);
+      if (comparison > 0 || comparison == 0 && preferLater) {
+        set.choice[u] = choice;
+        set.flags[u] = (byte) flags;
+        System.arraycopy(candidate, 0, set.forks, u * FORKS, FORKS);
+      }
+    }
+
+    /**
+     * Compare the fork positions of two derivations of the same node.
+     *
+     * @return a positive value, if the first one is preferred, a negative
+     * value, if the second one is preferred, or 0, if it cannot be told
+     */
+    private int compare(int[] x, int xOffset, int xFlags, int[] y, int yOffset, int yFlags,
+        boolean forkFollows, int begin, int end) {
+      int p = 0;
+      int q = 0;
+      int level = 0;
+      if (forkFollows) {
+        if (x[xOffset] == end) ++p;
+        if (y[yOffset] == end) ++q;
+        ++level;
+      }
+      for (;; ++level) {
+        int a = p < FORKS ? x[xOffset + p] : -1;
+        int b = q < FORKS ? y[yOffset + q] : -1;
+        if (a < 0 && (xFlags & MORE) != 0 || b < 0 && (yFlags & MORE) != 0)
+          return 0;
+        if (a != b) {
+          // a fork at the begin position may coincide with one preceding the node
+          if (Math.max(a, b) == begin)
+            return 0;
+          return (a > b) == (level % 2 == 0) ? 1 : -1;
+        }
+        if (a < 0)
+          return 0;
+        ++p;
+        ++q;
+      }
+    }
+
+    private int last(int[] forks, int v) {
+      int last = -1;
+      for (int p = 0; p < FORKS && forks[v * FORKS + p] >= 0; ++p)
+        last = forks[v * FORKS + p];
+      return last;
+    }
+
+    private void clear(ItemSet set, int v) {
+      set.choice[v] = -1;
+      set.flags[v] = 0;
+      Arrays.fill(set.forks, v * FORKS, (v + 1) * FORKS, -1);
+    }
+
+    private boolean forkAtBegin(int flags) {
+      return (flags & FORK_AT_BEGIN) != 0;
+    }
+
+    private int variant(int n, int c) {
+      return n * VARIANTS + c;
+    }
+
+    private int eventCount(int i, int n) {
+      ItemSet set = sets[i];
+      return set.status[n] == DONE
+           ? set.events[n]
+           : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Find the fork, where the GLR parser performs a reduction, unless it
+     * is the first alternative of the fork. When the fork has the same
+     * reduction in several alternatives, these are due to duplicate
+     * alternatives of a rule, so the threads produce the same events, and
+     * the one forked last is kept. Hence the last of these is used.
+     *
+     * @param i the input position of the reduction
+     * @param item the reduce item
+     * @param state the state where the rule of the item was entered
+     * @return the input position, if the reduction takes any but the first
+     * alternative of a fork, or -1, if not, or Integer.MIN_VALUE, if unknown,
+     * which is treated like -1
+     */
+    private int reduction(int i, int item, int state) {
+      int s = stateAfter(item, state);
+      if (s < UNKNOWN)
+        return ~s - 1 == itemSymbol[item]
+             ? -1
+             : Integer.MIN_VALUE; // chained reduction, counting fewer events in GLR
+      if (s == UNKNOWN)
+        return Integer.MIN_VALUE;
+      int action = parser.terminalTransition(s, tokens[i]);
+      if (type(action) != Action.Type.FORK.ordinal())
+        return -1;
+      int reduce = Action.code(Action.Type.REDUCE, itemSymbol[item]);
+      int found = -1;
+      for (int alternative = 0; ; ++alternative) {
+        int fork = action >> Action.Type.BITS;
+        if (parser.fork(2 * fork) == reduce)
+          found = alternative;
+        action = parser.fork(2 * fork + 1);
+        if (type(action) != Action.Type.FORK.ordinal()) {
+          if (action == reduce)
+            found = alternative + 1;
+          return found < 0 ? Integer.MIN_VALUE
+               : found == 0 ? -1
+               : i;
+        }
+      }
+    }
+
+    /**
+     * Get the LR state following an item.
+     *
+     * @param item the item
+     * @param state the state where the rule of the item was entered
+     * @return the state, or the complement of the id of a reduction that
+     * immediately follows, minus one, or UNKNOWN
+     */
+    private int stateAfter(int item, int state) {
+      if (state < 0)
+        return UNKNOWN;
+      if (isStartItem[item])
+        return state;
+      long key = (long) item << 32 | state;
+      Integer cached = states.get(key);
+      if (cached != null)
+        return cached;
+      int before = stateAfter(item - 1, state);
+      int after = UNKNOWN;
+      if (before >= 0) {
+        int symbol = itemSymbol[item - 1];
+        int action;
+        if (itemKind[item - 1] == TERMINAL_ITEM) {
+          int token = parser.token(symbol);
+          action = token > 0 ? parser.terminalTransition(before, token) : 0;
+          if (type(action) == Action.Type.FORK.ordinal())
+            action = parser.fork(2 * (action >> Action.Type.BITS));
+        }
+        else {
+          action = parser.nonterminalTransition(before, symbol);
+          if (action == 0)
+            action = parser.defaultGotos[symbol];
+        }
+        if (type(action) == Action.Type.SHIFT.ordinal())
+          after = action >> Action.Type.BITS;
+        else if (type(action) == Action.Type.SHIFT_REDUCE.ordinal())
+          after = ~(action >> Action.Type.BITS) - 1;
+      }
+      states.put(key, after);
+      return after;
+    }
+
+    private int type(int action) {
+      return action & ((1 << Action.Type.BITS) - 1);
+    }
+
+    private void visit(int i, int n) {
+      if (sets[i].status[n] == UNVISITED)
+        push(task(i, n, EXPAND));
+      else if (sets[i].status[n] == IN_PROGRESS)
+        isAmbiguous = true;
+    }
+
+    /**
+     * Create the events of the selected derivation, in the order of the LR
+     * parser, i.e. by a post-order traversal of the derivation tree.
+     */
+    private int[] events(int end, int root) {
+      int[] events = new int[Math.max(sets[end].events[root], 0)];
+      int size = 0;
+      push(node(end, variant(root, 0)));
+      while (top >= 0) {
+        long task = stack[top--];
+        if (task < 0) {
+          events[size++] = (int) task;
+          continue;
+        }
+        int i = (int) (task >>> 32);
+        int u = (int) task;
+        int n = u / VARIANTS;
+        int c = u % VARIANTS;
+        ItemSet set = sets[i];
+        int k = set.nodeItem[n];
+        int state = set.nodeState[n];
+        int item = set.item[k];
+        int choice = set.choice[u];
+        if (item < 0) {
+          int reduce = set.item[set.nodeItem[choice]];
+          push(~itemSymbol[reduce] & 0xFFFFFFFFL | 0xFFFFFFFF00000000L);
+          push(node(i, variant(choice, reduction(i, reduce, state) >= 0 ? 1 : c)));
+        }
+        else if (isStartItem[item]) {
+          // no events
+        }
+        else if (itemKind[item - 1] == TERMINAL_ITEM) {
+          ItemSet previous = sets[i - 1];
+          push(i - 1 | 0xFFFFFFFF00000000L);
+          push(node(i - 1, variant(previous.node(previous.indexOf(item - 1, set.origin[k]), state), 0)));
+        }
+        else {
+          ItemSet previous = sets[choice];
+          int completion = set.node(set.indexOf(~itemSymbol[item - 1], choice), stateAfter(item - 1, state));
+          int w = variant(completion, c);
+          int predecessor = previous.node(previous.indexOf(item - 1, set.origin[k]), state);
+          push(node(i, w));
+          push(node(choice, variant(predecessor, forkAtBegin(set.flags[w]) || choice == i && c == 1 ? 1 : 0)));
+        }
+      }
+      return events;
+    }
+
+    private long task(int i, int n, int phase) {
+      return (long) i << 32 | (long) n << 1 | phase;
+    }
+
+    private long node(int i, int n) {
+      return (long) i << 32 | n;
+    }
+
+    private void push(long task) {
+      if (++top == stack.length)
+        stack = Arrays.copyOf(stack, top << 1);
+      stack[top] = task;
+    }
+  }
+}
@@ -33,30 +33,40 @@ public class Parser
   public static final String IXML_NAMESPACE = "http://invisiblexml.org/NS";
 
   private static final int STALL_THRESHOLD = 8;
-
-  private final Set<Option> defaultOptions;
-  private final int[] asciiMap;
-  private final CompressedMap bmpMap;
-  private final int[] smpMap;
-  private final CompressedMap terminalTransitions;
-  private final int numberOfTokens;
-  private final CompressedMap nonterminalTransitions;
-  private final int numberOfNonterminals;
-  private final ReduceArgument[] reduceArguments;
-  private final String[] nonterminal;
-  private final RangeSet[] terminal;
-  private final int[] forks;
-  private final BitSet[] expectedTokens;
-  private final boolean isVersionMismatch;
-  private final boolean normalizeEol;
+  /** Number of live threads, beyond which the GLR parser hands over to the Earley parser. */
+  private static final int EARLEY_THRESHOLD = 256;
+
+  final Set<Option> defaultOptions;
+  final int[] asciiMap;
+  final int[][] asciiActions;
+  final CompressedMap charClassMap;
+  final int charClassMapEnd;
+  final CompressedMap terminalTransitions;
+  final int numberOfTokens;
+  final CompressedMap nonterminalTransitions;
+  final int numberOfNonterminals;
+  final int[] defaultReductions;
+  final int[] defaultGotos;
+  final ReduceArgument[] reduceArguments;
+  final String[] nonterminal;
+  final RangeSet[] terminal;
+  final int[] forks;
+  final BitSet[] expectedTokens;
+  final boolean isVersionMismatch;
+  final boolean normalizeEol;
+  final Earley earley;
 
   private Writer err = new OutputStreamWriter(System.err, StandardCharsets.UTF_8);
+  /** Token codes, by terminal index, created on first use. */
+  private volatile int[] tokenCodes;
 
   public Parser(
       Set<Option> defaultOptions,
-      int[] asciiMap, CompressedMap bmpMap, int[] smpMap,
+      int[] asciiMap, CompressedMap charClassMap, int charClassMapEnd,
+      int[][] asciiActions,
       CompressedMap terminalTransitions, int numberOfTokens,
       CompressedMap nonterminalTransitions, int numberOfNonterminals,
+      int[] defaultReductions, int[] defaultGotos,
       ReduceArgument[] reduceArguments,
       String[] nonterminal,
       RangeSet[] terminal,
@@ -64,15 +74,56 @@ public class Parser
       BitSet[] expectedTokens,
       boolean isVersionMismatch,
       boolean normalizeEol) {
+    this(defaultOptions,
+        asciiMap, charClassMap, charClassMapEnd,
+        asciiActions,
+        terminalTransitions, numberOfTokens,
+        nonterminalTransitions, numberOfNonterminals,
+        defaultReductions, defaultGotos,
+        reduceArguments,
+        nonterminal,
+        terminal,
+        forks,
+        expectedTokens,
+        isVersionMismatch,
+        normalizeEol,
+        null);
+  }
+
+  /**
+   * Create a parser, that may resort to an Earley parser for the same
+   * grammar, when the GLR parser is expected to be inefficient, or when
+   * requested by {@link Option#EARLEY}.
+   *
+   * @param earley the Earley parser, or null
+   */
+  public Parser(
+      Set<Option> defaultOptions,
+      int[] asciiMap, CompressedMap charClassMap, int charClassMapEnd,
+      int[][] asciiActions,
+      CompressedMap terminalTransitions, int numberOfTokens,
+      CompressedMap nonterminalTransitions, int numberOfNonterminals,
+      int[] defaultReductions, int[] defaultGotos,
+      ReduceArgument[] reduceArguments,
+      String[] nonterminal,
+      RangeSet[] terminal,
+      int[] forks,
+      BitSet[] expectedTokens,
+      boolean isVersionMismatch,
+      boolean normalizeEol,
+      Earley earley) {
 
     this.defaultOptions = defaultOptions;
     this.asciiMap = asciiMap;
-    this.bmpMap = bmpMap;
-    this.smpMap = smpMap;
+    this.asciiActions = asciiActions;
+    this.charClassMap = charClassMap;
+    this.charClassMapEnd = charClassMapEnd;
     this.terminalTransitions = terminalTransitions;
     this.numberOfTokens = numberOfTokens;
     this.nonterminalTransitions = nonterminalTransitions;
     this.numberOfNonterminals = numberOfNonterminals;
+    this.defaultReductions = defaultReductions;
+    this.defaultGotos = defaultGotos;
     this.reduceArguments = reduceArguments;
     this.nonterminal = nonterminal;
     this.terminal = terminal;
@@ -80,6 +131,25 @@ public class Parser
     this.expectedTokens = expectedTokens;
     this.isVersionMismatch = isVersionMismatch;
     this.normalizeEol = normalizeEol;
+    this.earley = earley;
+  }
+
+  protected Parser(Parser parser) {
+    this(
+        parser.defaultOptions,
+        parser.asciiMap, parser.charClassMap, parser.charClassMapEnd,
+        parser.asciiActions,
+        parser.terminalTransitions, parser.numberOfTokens,
+        parser.nonterminalTransitions, parser.numberOfNonterminals,
+        parser.defaultReductions, parser.defaultGotos,
+        parser.reduceArguments,
+        parser.nonterminal,
+        parser.terminal,
+        parser.forks,
+        parser.expectedTokens,
+        parser.isVersionMismatch,
+        parser.normalizeEol,
+        parser.earley);
   }
 
   /**
@@ -93,6 +163,152 @@ public class Parser
     return new ParsingContext(input).parse(options);
   }
 
+  /**
+   * Parse the given inputs, and record how often each state and each token
+   * is used. The resulting profile can be passed to the generator, for
+   * laying out the tables of a parser for the same grammar, such that the
+   * entries that are used most are close to each other.
+   *
+   * @param inputs representative input strings
+   * @return the profile
+   */
+  public Profile profile(String... inputs) {
+    Profile profile = new Profile(expectedTokens.length, numberOfTokens);
+    for (String input : inputs) {
+      ParsingContext context = new ParsingContext(input);
+      context.profile = profile;
+      context.parse(new Option[] {});
+    }
+    return profile;
+  }
+
+  /**
+   * Look up the action for a token in a state. Specialized parser classes
+   * override this with a lookup on constant tables.
+   *
+   * @param state the state
+   * @param token the token code
+   * @return the action code
+   */
+  protected int terminalTransition(int state, int token) {
+    return terminalTransitions.get(state * numberOfTokens + token);
+  }
+
+  /**
+   * Look up the action for a nonterminal in a state, following a reduction.
+   *
+   * @param state the state
+   * @param nonterminalId the nonterminal code
+   * @return the action code
+   */
+  protected int nonterminalTransition(int state, int nonterminalId) {
+    return nonterminalTransitions.get(state * numberOfNonterminals + nonterminalId);
+  }
+
+  /**
+   * Get the reduction for an expected token, that has no entry in the
+   * terminal transitions of a state.
+   *
+   * @param state the state
+   * @param token the token code
+   * @return the action code of the default reduction, or 0, if the token is not expected
+   */
+  protected int defaultReduction(int state, int token) {
+    return expectedTokens[state].get(token)
+         ? defaultReductions[state]
+         : 0;
+  }
+
+  /**
+   * Get the tokens that are expected in a state.
+   *
+   * @param state the state
+   * @return the token codes
+   */
+  protected BitSet expectedTokens(int state) {
+    return expectedTokens[state];
+  }
+
+  /**
+   * Get an action of a fork. Each fork has two actions, the first at index
+   * 2 * fork, and the second following it.
+   *
+   * @param i the index of the action
+   * @return the action code
+   */
+  protected int fork(int i) {
+    return forks[i];
+  }
+
+  /**
+   * Check whether parsing never forks, so a single thread suffices.
+   *
+   * @return true, if there are no forks
+   */
+  protected boolean isDeterministic() {
+    return forks.length == 0;
+  }
+
+  /**
+   * Look up the character class of a codepoint.
+   *
+   * @param codepoint the codepoint, less than the end of the character class map
+   * @return the character class, or 0 when not covered by any terminal
+   */
+  protected int charClass(int codepoint) {
+    return codepoint < 0x80
+         ? asciiMap[codepoint]
+         : charClassMap.get(codepoint);
+  }
+
+  /**
+   * Classify the characters of the input in a single pass ahead of parsing,
+   * stopping at the first character that is not covered by any terminal,
+   * as parsing cannot proceed beyond it. The result is indexed by the offset
+   * of the first code unit of each character, and holds 0 for any offset
+   * where no character starts, or that follows the first unclassifiable
+   * character. Return null, if the character classes do not fit into a short.
+   *
+   * @param input the input string
+   * @return the character classes
+   */
+  private short[] classify(String input) {
+    if (terminal.length > Short.MAX_VALUE)
+      return null;
+    final int size = input.length();
+    short[] charClasses = new short[size];
+    for (int i = 0; i < size; ) {
+      int c = input.charAt(i);
+      int next = i + 1;
+      int charclass;
+      if (c < 0x80) {
+        if (c == 0xD && normalizeEol)
+          c = 0xA;
+        charclass = asciiMap[c];
+      }
+      else if (c < 0xd800) {
+        charclass = charClass(c);
+      }
+      else {
+        if (c < 0xdc00 && next < size) {
+          final int lowSurrogate = input.charAt(next);
+          if (lowSurrogate >= 0xdc00 && lowSurrogate < 0xe000) {
+            ++next;
+            c = ((c & 0x3ff) << 10) + (lowSurrogate & 0x3ff) + 0x10000;
+          }
+        }
+        charclass = c < charClassMapEnd
+                  ? charClass(c)
+                  : 0;
+      }
+      if (charclass <= 0)
+        break;
+      charClasses[i] = (short) charclass;
+      i = next;
+    }
+    return charClasses;
+  }
+
   public void setTraceWriter(Writer w) {
     err = w;
   }
@@ -108,12 +324,75 @@ public class Parser
 
   private String[] getExpectedTokenSet(ParseException e) {
     List<String> expected = new ArrayList<>();
-    BitSet tokens = expectedTokens[e.getState()];
-    for (int i = tokens.nextSetBit(0); i >= 0; i = tokens.nextSetBit(i + 1))
-      expected.add(terminal[i].shortName());
+    BitSet terminals = e.getExpectedTerminals();
+    BitSet tokens = terminals == null
+                  ? expectedTokens(e.getState())
+                  : null;
+    for (int i = 0; i < terminal.length; ++i)
+      if (terminals != null ? terminals.get(i) : token(i) >= 0 && tokens.get(token(i)))
+        expected.add(terminal[i].shortName());
     return expected.toArray(String[]::new);
   }
 
+  /**
+   * Get the token code of a terminal. This is not necessarily the terminal's
+   * index, because the generator may have merged terminals that are
+   * indistinguishable, and may have renumbered tokens by a profile. So the
+   * code is found by classifying a codepoint of the terminal.
+   *
+   * @param i the terminal index
+   * @return the token code, or -1 for a terminal without any codepoints
+   */
+  int token(int i) {
+    int[] codes = tokenCodes;
+    if (codes == null) {
+      codes = new int[terminal.length];
+      for (int t = 1; t < codes.length; ++t)
+        codes[t] = terminal[t].isEmpty()
+                 ? -1
+                 : charClass(terminal[t].iterator().next().getFirstCodepoint());
+      tokenCodes = codes;
+    }
+    return codes[i];
+  }
+
+  /**
+   * Get the terminals that were merged into each token.
+   *
+   * @return the terminal indexes, by token code
+   */
+  private int[][] terminalsByToken() {
+    int[] count = new int[numberOfTokens];
+    for (int i = 1; i < terminal.length; ++i)
+      if (token(i) > 0)
+        ++count[token(i)];
+    int[][] terminals = new int[numberOfTokens][];
+    for (int token = 0; token < numberOfTokens; ++token)
+      terminals[token] = new int[count[token]];
+    for (int i = terminal.length - 1; i > 0; --i)
+      if (token(i) > 0)
+        terminals[token(i)][--count[token(i)]] = i;
+    return terminals;
+  }
+
+  /**
+   * Get the terminal for a token, for use in messages. When terminals were
+   * merged, this is the terminal of the token that contains the codepoint.
+   *
+   * @param token the token code
+   * @param codepoint the codepoint that was classified as the token
+   * @return the terminal
+   */
+  private RangeSet terminal(int token, int codepoint) {
+    if (token == 0)
+      return terminal[0];
+    RangeSet result = null;
+    for (int i = terminal.length - 1; i > 0; --i)
+      if (token(i) == token && (result == null || terminal[i].containsCodepoint(codepoint)))
+        result = terminal[i];
+    return result;
+  }
+
   private static String xmlEscape(String s) {
     StringBuilder sb = new StringBuilder();
     for (int i = 0; i < s.length(); ++i) {
@@ -132,6 +411,7 @@ public class Parser
     private static final long serialVersionUID = 1L;
     private int begin, end, offending, state;
     private boolean wasStalled;
+    private BitSet expectedTerminals;
 
     public ParseException(int begin, int end, int state, int offending, boolean wasStalled) {
       this.begin = begin;
@@ -141,6 +421,11 @@ public class Parser
       this.wasStalled = wasStalled;
     }
 
+    public ParseException(int begin, int end, BitSet expectedTerminals, int offending) {
+      this(begin, end, -1, offending, false);
+      this.expectedTerminals = expectedTerminals;
+    }
+
     @Override
     public String getMessage() {
       return offending < 0
@@ -153,6 +438,7 @@ public class Parser
     public int getState() {return state;}
     public int getOffending() {return offending;}
     public boolean wasStalled() {return wasStalled;}
+    public BitSet getExpectedTerminals() {return expectedTerminals;}
   }
 
   private static abstract class Symbol {
@@ -201,13 +487,17 @@ public class Parser
   private static class Nonterminal extends Symbol {
     private static final Symbol[] NO_CHILDREN = new Symbol[] {};
 
+    /** Child symbols, in an array that may have room for more. */
     private Symbol[] children;
+    /** Number of child symbols. */
+    private int size;
     private String name;
     private boolean isAttribute;
 
     public Nonterminal(String name) {
       this.name = name;
       children = NO_CHILDREN;
+      size = 0;
       isAttribute = false;
     }
 
@@ -220,23 +510,36 @@ public class Parser
     }
 
     public void addChildren(Symbol[] newChildren) {
-      if (children == NO_CHILDREN) {
+      addChildren(newChildren, newChildren.length);
+    }
+
+    /**
+     * Add the given number of child symbols. When there are no children yet,
+     * the array is taken over, rather than copied. Otherwise, the capacity is
+     * at least doubled, when it does not suffice, so appending items to a
+     * list one by one takes amortized constant time.
+     *
+     * @param newChildren the array of child symbols
+     * @param count the number of child symbols
+     */
+    public void addChildren(Symbol[] newChildren, int count) {
+      if (size == 0) {
         children = newChildren;
       }
       else {
-        children = Arrays.copyOf(children, children.length + newChildren.length);
-        System.arraycopy(newChildren, 0, children, children.length - newChildren.length, newChildren.length);
+        if (size + count > children.length)
+          children = Arrays.copyOf(children, Math.max(size + count, children.length << 1));
+        System.arraycopy(newChildren, 0, children, size, count);
       }
+      size += count;
     }
 
     public void addChild(Symbol child) {
-      if (children == NO_CHILDREN) {
-        children = new Symbol[] {child};
-      }
-      else {
-        children = Arrays.copyOf(children, children.length + 1);
-        children[children.length - 1] = child;
-      }
+      if (size == 0)
+        children = new Symbol[1];
+      else if (size == children.length)
+        children = Arrays.copyOf(children, size << 1);
+      children[size++] = child;
     }
 
     @Override
@@ -247,35 +550,35 @@ public class Parser
         if (name.equals("xmlns"))
           Errors.D07.thro();
         e.startAttribute(name);
-        for (Symbol c : children)
-          c.sendContent(e);
+        for (int i = 0; i < size; ++i)
+          children[i].sendContent(e);
         e.endAttribute();
       }
       else {
         e.startNonterminal(name);
         Set<String> names = null;
-        for (Symbol c : children)
-          if (c instanceof Nonterminal) {
-            Nonterminal nonterminal = (Nonterminal) c;
+        for (int i = 0; i < size; ++i)
+          if (children[i] instanceof Nonterminal) {
+            Nonterminal nonterminal = (Nonterminal) children[i];
             if (nonterminal.isAttribute) {
               if (names == null)
                 names = new HashSet<>();
               if (! names.add(nonterminal.name))
                 Errors.D02.thro(nonterminal.name);
-              c.send(e);
+              nonterminal.send(e);
             }
           }
-        for (Symbol c : children)
-          if (! (c instanceof Nonterminal) || ! ((Nonterminal) c).isAttribute)
-            c.send(e);
+        for (int i = 0; i < size; ++i)
+          if (! (children[i] instanceof Nonterminal) || ! ((Nonterminal) children[i]).isAttribute)
+            children[i].send(e);
         e.endNonterminal(name);
       }
     }
 
     @Override
     public void sendContent(XmlSerializer e) {
-      for (Symbol c : children)
-        c.sendContent(e);
+      for (int i = 0; i < size; ++i)
+        children[i].sendContent(e);
     }
 
     public static Nonterminal attribute(String name, String value) {
@@ -524,7 +827,10 @@ public class Parser
       int from = top + 1;
       int to = top + count + 1;
 
-      final Nonterminal nt = new Nonterminal(nonterminal[reduceArgument.getNonterminalId()]);
+      // when appending, the first symbol is the node to append to
+      final Nonterminal nt = reduceArgument.isAppend()
+          ? (Nonterminal) stack[from++]
+          : new Nonterminal(nonterminal[reduceArgument.getNonterminalId()]);
 
       for (int i = from; i < to; ++i) {
         Symbol symbol = stack[i];
@@ -546,7 +852,7 @@ public class Parser
             nt.addChild(n);
             break;
           case DELETE:
-            nt.addChildren(n.children);
+            nt.addChildren(n.children, n.size);
             break;
           default:
             throw new IllegalStateException("Unexpected mark: " + mark);
@@ -565,6 +871,13 @@ public class Parser
       push(new Terminal(codepoint));
     }
 
+    public void run(int[] codepoints, int count) {
+      Symbol[] terminals = new Symbol[count];
+      for (int i = 0; i < count; ++i)
+        terminals[i] = new Terminal(codepoints[i]);
+      ((Nonterminal) stack[top]).addChildren(terminals, count);
+    }
+
     public void serialize(XmlSerializer e) {
       ((Nonterminal) stack[0]).children[0].send(e);
     }
@@ -581,8 +894,15 @@ public class Parser
 
     private ParseTreeBuilder eventHandler;
     private int size = 0;
+    private short[] charClasses;
+    private int[] run = new int[64];
     private int maxId = 0;
     private boolean trace;
+    /** The result of the Earley parser, or null, if it did not run yet. */
+    private Earley.Result earleyResult;
+    /** The codepoints of the input, as tokenized for the Earley parser. */
+    private int[] codepoints;
+    private Profile profile;
 
     public ParsingContext(String input) {
       this.input = input;
@@ -602,10 +922,14 @@ public class Parser
         if (trace)
           writeTrace("<?xml version=\"1.0\" encoding=\"UTF-8\"?" + ">\n<trace>\n");
         size = input.length();
+        charClasses = classify(input);
         maxId = 0;
-        ParsingThread thread;
+        earleyResult = null;
+        boolean isAmbiguous;
         try {
-          thread = parse();
+          isAmbiguous = earley != null && profile == null && (earley.isPreferred() || currentOptions.contains(Option.EARLEY))
+                      ? parseEarley(currentOptions.contains(Option.EARLEY))
+                      : parse();
         }
         catch (ParseException pe) {
           int begin = pe.getBegin();
@@ -615,7 +939,7 @@ public class Parser
           int column = prefix.length() - prefix.lastIndexOf('\n');
           throw new BlitzParseException(
               "Failed to parse input:\n" + getErrorMessage(pe),
-              offending >= 0 ? terminal[offending].shortName()
+              offending >= 0 ? terminal(offending, begin < input.length() ? input.codePointAt(begin) : -1).shortName()
                              : begin < input.length() ? ("'" + Character.toString(input.codePointAt(begin)) + "'")
                                                        : "$",
               line,
@@ -634,20 +958,20 @@ public class Parser
         }
 
         Nonterminal startSymbol = ((Nonterminal) eventHandler.stack[0]);
-        if (startSymbol.children == null || startSymbol.children.length == 0)
+        if (startSymbol.size == 0)
           Errors.D01.thro(); // not well-formed
         if (! (startSymbol.children[0] instanceof Nonterminal))
           Errors.D06.thro(); // not exactly one element
         Nonterminal nonterminal = (Nonterminal) startSymbol.children[0];
         if (nonterminal.isAttribute)
           Errors.D05.thro(); // attribute as root
-        if (startSymbol.children.length != 1)
+        if (startSymbol.size != 1)
           Errors.D06.thro(); // not exactly one element
 
-        if (thread.isAmbiguous || isVersionMismatch) {
-          String state = thread.isAmbiguous && isVersionMismatch
+        if (isAmbiguous || isVersionMismatch) {
+          String state = isAmbiguous && isVersionMismatch
               ? "ambiguous version-mismatch"
-              : thread.isAmbiguous
+              : isAmbiguous
                   ? "ambiguous"
                   : "version-mismatch";
           nonterminal.addChildren(new Symbol[] {
@@ -693,7 +1017,18 @@ public class Parser
       return w.toString();
     }
 
-    private ParsingThread parse() throws ParseException {
+    /**
+     * Parse by the GLR algorithm, and hand over to the Earley parser, when
+     * the number of live threads exceeds the threshold. The Earley parser's
+     * derivation is used only if it is the one that GLR would choose,
+     * otherwise GLR continues, and reports any error on its own.
+     *
+     * @return true, if the input is ambiguous
+     */
+    private boolean parse() throws ParseException {
+      if (isDeterministic())
+        return parseDeterministic();
+
       Queue<ParsingThread> currentThreads = new LinkedList<>();
       Queue<ParsingThread> otherThreads = new PriorityQueue<>();
       ParsingThread thread = new ParsingThread();
@@ -720,7 +1055,7 @@ public class Parser
         if (thread.status == Status.ACCEPTED) {
           if (! isUnambiguous)
             throw new IllegalStateException();
-          return thread;
+          return thread.isAmbiguous;
         }
 
         Arrays.fill(thread.forkCount, (byte) 0);
@@ -729,10 +1064,12 @@ public class Parser
           int fork = thread.parse(isUnambiguous);
           if (fork >= 0) {
             isUnambiguous = false;
-            thread.action = forks[2 * fork];
+            if (fork >= thread.forkCount.length)
+              thread.forkCount = Arrays.copyOf(thread.forkCount, fork + 1);
+            thread.action = fork(2 * fork);
             if (thread.e0 > pos) {
               otherThreads.add(thread);
-              otherThreads.add(new ParsingThread(thread, forks[2 * fork + 1]));
+              otherThreads.add(new ParsingThread(thread, fork(2 * fork + 1)));
             }
             else if (thread.forkCount[fork] > 0 && repeatedForks >= STALL_THRESHOLD) {
               stalled = true;
@@ -743,7 +1080,7 @@ public class Parser
               if (thread.forkCount[fork]++ > 1)
                 ++repeatedForks;
               currentThreads.add(thread);
-              currentThreads.add(new ParsingThread(thread, forks[2 * fork + 1]));
+              currentThreads.add(new ParsingThread(thread, fork(2 * fork + 1)));
             }
           }
           else if (thread.status != Status.ERROR) {
@@ -755,18 +1092,110 @@ public class Parser
         }
         while ((thread = currentThreads.poll()) != null);
 
+        if (otherThreads.size() > EARLEY_THRESHOLD && earley != null && profile == null && earleyResult == null) {
+          if (trace)
+            writeTrace("  <parse offset=\"" + pos + "\" threads=\"" + otherThreads.size() + "\" action=\"earley\"/>\n");
+          parseEarley();
+          if (earleyResult.events != null && earleyResult.isDecisive) {
+            eventHandler = new ParseTreeBuilder();
+            return release();
+          }
+        }
+
         thread = otherThreads.remove();
         if (thread.e0 > pos)
           pos = thread.e0;
       }
     }
 
+    private boolean parseDeterministic() throws ParseException {
+      ParsingThread thread = new ParsingThread();
+      thread.parse(true);
+      if (thread.status != Status.ACCEPTED)
+        throw new ParseException(thread.b1, thread.e1, thread.state, thread.l1, false);
+      return false;
+    }
+
+    /**
+     * Parse by the Earley algorithm, and pass the events of the resulting
+     * derivation to the parse tree builder. Unless the Earley parser was
+     * requested, this is done only when the derivation is the one that GLR
+     * would choose. Otherwise, and when parsing fails, parse by GLR, which
+     * then reports the same error as it does when parsing by GLR alone.
+     *
+     * @param isRequested whether the Earley parser was requested
+     * @return true, if the input is ambiguous
+     */
+    private boolean parseEarley(boolean isRequested) throws ParseException {
+      parseEarley();
+      return earleyResult.events != null && (isRequested || earleyResult.isDecisive)
+           ? release()
+           : parse();
+    }
+
+    /**
+     * Run the Earley parser. The input is tokenized in advance, and the
+     * result is kept for passing its events to the parse tree builder.
+     */
+    private void parseEarley() {
+      int[][] terminalsByToken = terminalsByToken();
+      codepoints = new int[size];
+      int[] terminals = new int[size + 1];
+      int[] tokens = new int[size + 1];
+      int end = 0;
+      for (int e = 0; ; ++end) {
+        if (e >= size) {
+          terminals[end] = 0;
+          break;
+        }
+        int c = input.codePointAt(e);
+        e += Character.charCount(c);
+        if (c == 0xD && normalizeEol) {
+          if (e < size && input.charAt(e) == 0xA)
+            ++e;
+          c = 0xA;
+        }
+        int token = c < charClassMapEnd
+                  ? charClass(c)
+                  : 0;
+        if (token <= 0) {
+          terminals[end] = -1;
+          break;
+        }
+        int[] candidates = terminalsByToken[token];
+        int t = 0;
+        while (t < candidates.length - 1 && ! terminal[candidates[t]].containsCodepoint(c))
+          ++t;
+        codepoints[end] = c;
+        terminals[end] = candidates[t];
+        tokens[end] = token;
+      }
+
+      earleyResult = earley.parse(Parser.this, terminals, tokens, end);
+    }
+
+    /**
+     * Pass the events of the Earley parser's derivation to the parse tree
+     * builder.
+     *
+     * @return true, if the input is ambiguous
+     */
+    private boolean release() {
+      for (int event : earleyResult.events) {
+        if (event >= 0)
+          eventHandler.terminal(codepoints[event]);
+        else
+          eventHandler.nonterminal(reduceArguments[~event]);
+      }
+      return earleyResult.isAmbiguous;
+    }
+
     private String getErrorMessage(ParseException e) {
       String message = e.getMessage();
       String[] tokenSet = getExpectedTokenSet(e);
       String found = e.getOffending() < 0
                    ? null
-                   : terminal[e.getOffending()].shortName();
+                   : terminal(e.getOffending(), e.getBegin() < input.length() ? input.codePointAt(e.getBegin()) : -1).shortName();
       int size = e.getEnd() - e.getBegin();
       message += (found == null ? "" : ", found " + found)
               + "\nwhile expecting "
@@ -790,7 +1219,7 @@ public class Parser
     }
 
     private class ParsingThread implements Comparable<ParsingThread> {
-      public final byte[] forkCount;
+      public byte[] forkCount;
       public DeferredEvent deferredEvent;
       public Status status;
       public final int id;
@@ -817,9 +1246,7 @@ public class Parser
         stack = new StackNode();
         state = 0;
         l1 = match();
-        action = l1 < 0
-               ? 0
-               : terminalTransitions.get(state * numberOfTokens + l1);
+        action = terminalAction();
       }
 
       public ParsingThread(ParsingThread other, int action) {
@@ -872,7 +1299,7 @@ public class Parser
                 writeTrace(" ");
             }
             if (l1 > 0)
-              writeTrace(xmlEscape(terminal[l1].shortName()));
+              writeTrace(xmlEscape(terminal(l1, c1).shortName()));
             writeTrace("\" action=\"");
           }
 
@@ -885,6 +1312,10 @@ public class Parser
             break;
 
           case 2: // SHIFT+REDUCE
+            if (isUnambiguous && ! trace && nonterminalId < 0 && reduceArguments[argument].isRun()) {
+              scanRun();
+              continue;
+            }
             shift = state;
             // fall through
 
@@ -934,9 +1365,7 @@ public class Parser
               writeTrace("\"/>\n");
             if (l1 == 0)
               l1 = match();
-            action = l1 < 0
-               ? 0
-               : terminalTransitions.get(state * numberOfTokens + l1);
+            action = terminalAction();
             if (e0 > limit)
               return -1;
             nonterminalId = -1;
@@ -950,8 +1379,12 @@ public class Parser
                 writeTrace(" ");
               writeTrace("reduce\" nonterminal=\"" + xmlEscape(nonterminal[nonterminalId]) + "\" count=\"" + symbols + "\"/>\n");
             }
+            // when appending to N, return to the state following N, rather
+            // than to the state preceding it, and then taking the transition
+            // on N, because that would lead to the same state
+            boolean append = reduceArgument.isAppend() && ! trace;
             if (symbols > 0) {
-              for (int i = 1; i < symbols; i++)
+              for (int i = append ? 2 : 1; i < symbols; i++)
                 stack = stack.pop();
               state = stack.getState();
               stack = stack.pop();
@@ -960,9 +1393,72 @@ public class Parser
               eventHandler.nonterminal(reduceArgument);
             else
               deferredEvent = new NonterminalEvent(deferredEvent, reduceArgument);
-            action = nonterminalTransitions.get(state * numberOfNonterminals + nonterminalId);
+            if (append) {
+              if (l1 == 0)
+                l1 = match();
+              action = terminalAction();
+              if (e0 > limit)
+                return -1;
+              nonterminalId = -1;
+            }
+            else {
+              if (profile != null)
+                profile.countState(state);
+              action = nonterminalTransition(state, nonterminalId);
+              if (action == 0)
+                action = defaultGotos[nonterminalId];
+            }
+          }
+        }
+      }
+
+      /**
+       * Shift a run of characters that are reduced by run rules, N: -N, t,
+       * in one step. Each such reduction returns to the current state, with
+       * N on top of the stack, so there is no need for pushing and popping
+       * states, or for creating a new node for N per character. Instead, the
+       * characters are appended to N when the run ends.
+       */
+      private void scanRun() {
+        int count = 0;
+        do {
+          if (reduceArguments[action >> Action.Type.BITS].getMarks()[1] == Mark.NODE) {
+            if (count == run.length)
+              run = Arrays.copyOf(run, count << 1);
+            run[count++] = c1;
           }
+          b0 = b1;
+          e0 = e1;
+          l1 = match();
+          action = terminalAction();
         }
+        while ((action & ((1 << Action.Type.BITS) - 1)) == 2 // SHIFT+REDUCE
+            && reduceArguments[action >> Action.Type.BITS].isRun());
+        if (count > 0)
+          eventHandler.run(run, count);
+      }
+
+      /**
+       * Get the action for the current token in the current state. For an
+       * ASCII character, use the fused action table of the state, if there
+       * is one, rather than the terminal transition map. Otherwise, when
+       * there is no transition for an expected token, this is the default
+       * reduction of the state.
+       */
+      private int terminalAction() {
+        if (l1 < 0)
+          return 0;
+        if (profile != null)
+          profile.countState(state);
+        if (asciiActions != null && c1 >= 0 && c1 < 0x80) {
+          int[] actions = asciiActions[state];
+          if (actions != null)
+            return actions[c1];
+        }
+        int action = terminalTransition(state, l1);
+        return action != 0
+             ? action
+             : defaultReduction(state, l1);
       }
 
       private int match() {
@@ -986,10 +1482,14 @@ public class Parser
                 ++e1;
               c1 = 0xA;
             }
-            charclass = asciiMap[c1];
+            charclass = charClasses != null
+                      ? charClasses[b1]
+                      : charClass(c1);
           }
           else if (c1 < 0xd800) {
-            charclass = bmpMap.get(c1);
+            charclass = charClasses != null
+                      ? charClasses[b1]
+                      : charClass(c1);
           }
           else {
             if (c1 < 0xdc00) {
@@ -1000,14 +1500,9 @@ public class Parser
               }
             }
 
-            final int smpMapSize = smpMap.length / 3;
-            int lo = 0, hi = smpMapSize - 1;
-            for (int m = hi >> 1; ; m = (hi + lo) >> 1) {
-              if (smpMap[m] > c1) {hi = m - 1;}
-              else if (smpMap[smpMapSize + m] < c1) {lo = m + 1;}
-              else {charclass = smpMap[2 * smpMapSize + m]; break;}
-              if (lo > hi) {charclass = -1; break;}
-            }
+            charclass = charClasses != null ? charClasses[b1]
+                      : c1 < charClassMapEnd ? charClass(c1)
+                      : 0;
           }
           if (trace && c1 >= 0)
             writeTrace(" codepoint=\"" + c1 + "\"");
@@ -1019,10 +1514,12 @@ public class Parser
           }
         }
 
+        if (profile != null)
+          profile.countToken(charclass);
         if (trace) {
           writeTrace(" class=\"" + charclass + "\"");
           writeTrace(" status=\"success\" result=\"");
-          writeTrace(xmlEscape(terminal[charclass].shortName()));
+          writeTrace(xmlEscape(terminal(charclass, c1).shortName()));
           writeTrace("\" end=\"" + e1 + "\"/>\n");
         }
         return charclass;
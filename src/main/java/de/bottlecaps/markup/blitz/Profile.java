@@ -0,0 +1,118 @@
+// Copyright (c) 2023-2024 Gunther Rademacher. Provided under the Apache 2 License.
+
+package de.bottlecaps.markup.blitz;
+
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+import de.bottlecaps.markup.BlitzException;
+
+/**
+ * Frequencies of parser states and tokens, as recorded by
+ * {@link Parser#profile(String...)} while parsing representative input.
+ * When passed to the generator, states and tokens are renumbered by
+ * descending frequency, so the table entries that are used most are close
+ * to each other. A profile applies to parsers generated from the same
+ * grammar, with the same generator options, and without a profile.
+ *
+ * <p>A profile can be persisted in its string representation, and be
+ * restored by {@link #valueOf(String)}.
+ */
+public class Profile {
+  private final long[] stateCount;
+  private final long[] tokenCount;
+
+  /**
+   * Create an empty profile.
+   *
+   * @param numberOfStates the number of parser states
+   * @param numberOfTokens the number of token codes
+   */
+  public Profile(int numberOfStates, int numberOfTokens) {
+    this(new long[numberOfStates], new long[numberOfTokens]);
+  }
+
+  private Profile(long[] stateCount, long[] tokenCount) {
+    this.stateCount = stateCount;
+    this.tokenCount = tokenCount;
+  }
+
+  void countState(int state) {
+    ++stateCount[state];
+  }
+
+  void countToken(int token) {
+    ++tokenCount[token];
+  }
+
+  public int numberOfStates() {
+    return stateCount.length;
+  }
+
+  public int numberOfTokens() {
+    return tokenCount.length;
+  }
+
+  /**
+   * Get the number of table lookups for a state.
+   *
+   * @param state the state id
+   * @return the number of lookups
+   */
+  public long stateCount(int state) {
+    return stateCount[state];
+  }
+
+  /**
+   * Get the number of times a token was scanned.
+   *
+   * @param token the token code
+   * @return the number of times
+   */
+  public long tokenCount(int token) {
+    return tokenCount[token];
+  }
+
+  /**
+   * Get the string representation of this profile, i.e. one line of state
+   * counts, and one line of token counts.
+   */
+  @Override
+  public String toString() {
+    return "states:" + toString(stateCount) + "\ntokens:" + toString(tokenCount) + "\n";
+  }
+
+  private static String toString(long[] counts) {
+    return Arrays.stream(counts)
+        .mapToObj(count -> " " + count)
+        .collect(Collectors.joining());
+  }
+
+  /**
+   * Restore a profile from its string representation.
+   *
+   * @param profile the string representation, as returned by {@link #toString()}
+   * @return the profile
+   * @throws BlitzException if the string is not a valid profile
+   */
+  public static Profile valueOf(String profile) throws BlitzException {
+    String[] lines = profile.strip().split("\\s*\n\\s*");
+    if (lines.length != 2 || ! lines[0].startsWith("states:") || ! lines[1].startsWith("tokens:"))
+      throw new BlitzException("Invalid profile: expected lines \"states:\" and \"tokens:\"");
+    return new Profile(
+        counts(lines[0].substring("states:".length())),
+        counts(lines[1].substring("tokens:".length())));
+  }
+
+  private static long[] counts(String counts) {
+    try {
+      return Arrays.stream(counts.strip().split("\\s+"))
+          .filter(count -> ! count.isEmpty())
+          .mapToLong(Long::parseLong)
+          .toArray();
+    }
+    catch (NumberFormatException e) {
+      throw new BlitzException("Invalid profile", e);
+    }
+  }
+}
@@ -0,0 +1,435 @@
+// Copyright (c) 2023-2024 Gunther Rademacher. Provided under the Apache 2 License.
+
+package de.bottlecaps.markup.blitz;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.bottlecaps.markup.blitz.transform.CompressedMap;
+
+/**
+ * Specialize a parser into a hidden class, that holds the tables in static
+ * final fields, and has the table lookups unrolled for the actual depth and
+ * data type of their compressed maps. This is the runtime counterpart of {@link ToJava}.
+ * It requires JDK 16 or higher, otherwise the generic parser is used.
+ */
+public class Specializer {
+  private static final String CLASS_NAME = "de/bottlecaps/markup/blitz/SpecializedParser";
+  private static final String PARSER = "de/bottlecaps/markup/blitz/Parser";
+  private static final String INT_ARRAY = "[I";
+  private static final String SHORT_ARRAY = "[S";
+  private static final String BYTE_ARRAY = "[B";
+
+  private static final String ASCII_MAP = "ASCII_MAP";
+  private static final String CHAR_CLASS_DATA = "CHAR_CLASS_DATA";
+  private static final String TERMINAL_TRANSITION_DATA = "TERMINAL_TRANSITION_DATA";
+  private static final String NONTERMINAL_TRANSITION_DATA = "NONTERMINAL_TRANSITION_DATA";
+
+  private final ConstantPool cp = new ConstantPool();
+  private final Map<String, String> fieldTypes = new HashMap<>();
+
+  private Specializer() {
+  }
+
+  /**
+   * Specialize the given parser into a hidden class. Return the generic parser,
+   * if hidden class definition is not available or not permitted. Any other
+   * failure, e.g. a class file that does not pass verification, is propagated.
+   *
+   * @param parser the generic parser
+   * @param verbose whether to report the reason for falling back to the generic parser
+   * @return the specialized parser, or the generic parser
+   */
+  public static Parser specialize(Parser parser, boolean verbose) {
+    byte[] bytes;
+    try {
+      bytes = new Specializer().classFile(parser);
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    Object classData = new Object[] {
+      parser.asciiMap,
+      parser.charClassMap.array(),
+      parser.terminalTransitions.array(),
+      parser.nonterminalTransitions.array()
+    };
+
+    Lookup lookup;
+    try {
+      Class<?> classOption = Class.forName(Lookup.class.getName() + "$ClassOption");
+      Object noOptions = Array.newInstance(classOption, 0);
+      Method define = Lookup.class.getMethod("defineHiddenClassWithClassData",
+          byte[].class, Object.class, boolean.class, noOptions.getClass());
+      lookup = (Lookup) define.invoke(MethodHandles.lookup(), bytes, classData, true, noOptions);
+    }
+    catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException e) {
+      // hidden classes with class data are not available before JDK 16
+      return generic(parser, verbose, e);
+    }
+    catch (InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IllegalAccessException || cause instanceof UnsupportedOperationException)
+        return generic(parser, verbose, cause);
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new IllegalStateException(cause);
+    }
+
+    try {
+      return (Parser) lookup
+          .findConstructor(lookup.lookupClass(), MethodType.methodType(void.class, Parser.class))
+          .invoke(parser);
+    }
+    catch (RuntimeException | Error e) {
+      throw e;
+    }
+    catch (Throwable e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static Parser generic(Parser parser, boolean verbose, Throwable reason) {
+    if (verbose) {
+      System.err.println();
+      System.err.println("Hidden class specialization failed, using generic parser: " + reason);
+    }
+    return parser;
+  }
+
+  private byte[] classFile(Parser parser) throws IOException {
+    fieldTypes.put(ASCII_MAP, INT_ARRAY);
+    fieldTypes.put(CHAR_CLASS_DATA, arrayType(parser.charClassMap));
+    fieldTypes.put(TERMINAL_TRANSITION_DATA, arrayType(parser.terminalTransitions));
+    fieldTypes.put(NONTERMINAL_TRANSITION_DATA, arrayType(parser.nonterminalTransitions));
+    List<byte[]> methods = new ArrayList<>();
+    methods.add(constructor());
+    methods.add(staticInitializer());
+    methods.add(transition("terminalTransition", parser.numberOfTokens,
+        TERMINAL_TRANSITION_DATA, parser.terminalTransitions.shift()));
+    methods.add(transition("nonterminalTransition", parser.numberOfNonterminals,
+        NONTERMINAL_TRANSITION_DATA, parser.nonterminalTransitions.shift()));
+    methods.add(charClass(parser.charClassMap.shift()));
+
+    int thisClass = cp.classRef(CLASS_NAME);
+    int superClass = cp.classRef(PARSER);
+    String[] fields = {ASCII_MAP, CHAR_CLASS_DATA, TERMINAL_TRANSITION_DATA, NONTERMINAL_TRANSITION_DATA};
+    int[][] fieldRefs = new int[fields.length][];
+    for (int i = 0; i < fields.length; ++i)
+      fieldRefs[i] = new int[] {cp.utf8(fields[i]), cp.utf8(fieldTypes.get(fields[i]))};
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(0xCAFEBABE);
+    out.writeShort(0);
+    out.writeShort(55);
+    cp.write(out);
+    out.writeShort(0x0010 | 0x0020); // final super
+    out.writeShort(thisClass);
+    out.writeShort(superClass);
+    out.writeShort(0);
+    out.writeShort(fields.length);
+    for (int[] field : fieldRefs) {
+      out.writeShort(0x0002 | 0x0008 | 0x0010); // private static final
+      out.writeShort(field[0]);
+      out.writeShort(field[1]);
+      out.writeShort(0);
+    }
+    out.writeShort(methods.size());
+    for (byte[] method : methods)
+      out.write(method);
+    out.writeShort(0);
+    return bytes.toByteArray();
+  }
+
+  private byte[] constructor() throws IOException {
+    Code code = new Code();
+    code.op(0x2a);                          // aload_0
+    code.op(0x2b);                          // aload_1
+    code.op(0xb7);                          // invokespecial
+    code.u2(cp.methodRef(PARSER, "<init>", "(L" + PARSER + ";)V"));
+    code.op(0xb1);                          // return
+    return method(0x0001, "<init>", "(L" + PARSER + ";)V", 2, 2, code, null);
+  }
+
+  private byte[] staticInitializer() throws IOException {
+    Code code = new Code();
+    code.op(0xb8);                          // invokestatic
+    code.u2(cp.methodRef("java/lang/invoke/MethodHandles", "lookup", "()Ljava/lang/invoke/MethodHandles$Lookup;"));
+    code.op(0x13);                          // ldc_w
+    code.u2(cp.string("_"));
+    code.op(0x13);                          // ldc_w
+    code.u2(cp.classRef("[Ljava/lang/Object;"));
+    code.op(0xb8);                          // invokestatic
+    code.u2(cp.methodRef("java/lang/invoke/MethodHandles", "classData",
+        "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/Object;"));
+    code.op(0xc0);                          // checkcast
+    code.u2(cp.classRef("[Ljava/lang/Object;"));
+    code.op(0x4b);                          // astore_0
+    String[] fields = {ASCII_MAP, CHAR_CLASS_DATA, TERMINAL_TRANSITION_DATA, NONTERMINAL_TRANSITION_DATA};
+    for (int i = 0; i < fields.length; ++i) {
+      code.op(0x2a);                        // aload_0
+      code.pushInt(i);
+      code.op(0x32);                        // aaload
+      code.op(0xc0);                        // checkcast
+      code.u2(cp.classRef(fieldTypes.get(fields[i])));
+      code.op(0xb3);                        // putstatic
+      code.u2(cp.fieldRef(CLASS_NAME, fields[i], fieldTypes.get(fields[i])));
+    }
+    code.op(0xb1);                          // return
+    return method(0x0008, "<clinit>", "()V", 3, 1, code, null);
+  }
+
+  private byte[] transition(String name, int columns, String data, int[] shift) throws IOException {
+    Code code = new Code();
+    code.op(0x1b);                          // iload_1
+    code.pushInt(columns);
+    code.op(0x68);                          // imul
+    code.op(0x1c);                          // iload_2
+    code.op(0x60);                          // iadd
+    code.op(0x3e);                          // istore_3
+    lookup(code, 3, data, shift);
+    code.op(0xac);                          // ireturn
+    return method(0x0004, name, "(II)I", 2 * shift.length + 4, 4, code, null);
+  }
+
+  private byte[] charClass(int[] shift) throws IOException {
+    Code code = new Code();
+    code.op(0x1b);                          // iload_1
+    code.pushInt(0x80);
+    int branch = code.size();
+    code.op(0xa2);                          // if_icmpge
+    code.u2(0);
+    code.op(0xb2);                          // getstatic
+    code.u2(cp.fieldRef(CLASS_NAME, ASCII_MAP, INT_ARRAY));
+    code.op(0x1b);                          // iload_1
+    code.op(0x2e);                          // iaload
+    code.op(0xac);                          // ireturn
+    int target = code.size();
+    code.patch(branch + 1, target - branch);
+    lookup(code, 1, CHAR_CLASS_DATA, shift);
+    code.op(0xac);                          // ireturn
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream stackMapTable = new DataOutputStream(bytes);
+    stackMapTable.writeShort(1);            // number of entries
+    stackMapTable.writeByte(251);           // same_frame_extended
+    stackMapTable.writeShort(target);
+    return method(0x0004, "charClass", "(I)I", 2 * shift.length + 4, 2, code, bytes.toByteArray());
+  }
+
+  private static String arrayType(CompressedMap map) {
+    Object array = map.array();
+    return array instanceof int[] ? INT_ARRAY
+         : array instanceof short[] ? SHORT_ARRAY
+         : BYTE_ARRAY;
+  }
+
+  /**
+   * Emit code for a compressed map lookup, i.e. for
+   * data[(i0 & m0) + data[(i1 & m1) + ... data[i(n-1) >> s(n-1)]]],
+   * where i(k+1) = i(k) >> s(k), and m(k) = (1 << s(k)) - 1. For a dense
+   * map, i.e. when there is no shift, this is just data[i0].
+   */
+  private void lookup(Code code, int local, String data, int[] shift) {
+    String type = fieldTypes.get(data);
+    int dataRef = cp.fieldRef(CLASS_NAME, data, type);
+    int load = type.equals(INT_ARRAY) ? 0x2e   // iaload
+             : type.equals(SHORT_ARRAY) ? 0x35 // saload
+             : 0x33;                           // baload
+    int totalShift = 0;
+    for (int k = 0; k < shift.length; ++k) {
+      code.op(0xb2);                        // getstatic
+      code.u2(dataRef);
+      code.op(0x15);                        // iload
+      code.u1(local);
+      if (totalShift != 0) {
+        code.pushInt(totalShift);
+        code.op(0x7a);                      // ishr
+      }
+      code.pushInt((1 << shift[k]) - 1);
+      code.op(0x7e);                        // iand
+      totalShift += shift[k];
+    }
+    code.op(0xb2);                          // getstatic
+    code.u2(dataRef);
+    code.op(0x15);                          // iload
+    code.u1(local);
+    if (totalShift != 0) {
+      code.pushInt(totalShift);
+      code.op(0x7a);                        // ishr
+    }
+    code.op(load);
+    for (int k = 0; k < shift.length; ++k) {
+      code.op(0x60);                        // iadd
+      code.op(load);
+    }
+  }
+
+  private byte[] method(int access, String name, String descriptor, int maxStack, int maxLocals, Code code, byte[] stackMapTable) throws IOException {
+    int codeAttribute = cp.utf8("Code");
+    int stackMapTableAttribute = stackMapTable == null ? 0 : cp.utf8("StackMapTable");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeShort(access);
+    out.writeShort(cp.utf8(name));
+    out.writeShort(cp.utf8(descriptor));
+    out.writeShort(1);
+    out.writeShort(codeAttribute);
+    byte[] bytecode = code.toByteArray();
+    int attributesLength = stackMapTable == null ? 0 : 6 + stackMapTable.length;
+    out.writeInt(12 + bytecode.length + attributesLength);
+    out.writeShort(maxStack);
+    out.writeShort(maxLocals);
+    out.writeInt(bytecode.length);
+    out.write(bytecode);
+    out.writeShort(0);
+    if (stackMapTable == null) {
+      out.writeShort(0);
+    }
+    else {
+      out.writeShort(1);
+      out.writeShort(stackMapTableAttribute);
+      out.writeInt(stackMapTable.length);
+      out.write(stackMapTable);
+    }
+    return bytes.toByteArray();
+  }
+
+  private class Code extends ByteArrayOutputStream {
+    public void op(int opcode) {
+      write(opcode);
+    }
+
+    public void u1(int value) {
+      write(value);
+    }
+
+    public void u2(int value) {
+      write(value >> 8);
+      write(value);
+    }
+
+    public void patch(int offset, int value) {
+      buf[offset] = (byte) (value >> 8);
+      buf[offset + 1] = (byte) value;
+    }
+
+    public void pushInt(int value) {
+      if (value >= -1 && value <= 5) {
+        op(0x03 + value);                   // iconst_<n>
+      }
+      else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+        op(0x10);                           // bipush
+        u1(value);
+      }
+      else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+        op(0x11);                           // sipush
+        u2(value);
+      }
+      else {
+        op(0x13);                           // ldc_w
+        u2(cp.integer(value));
+      }
+    }
+  }
+
+  private static class ConstantPool {
+    private final Map<String, Integer> index = new HashMap<>();
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+    private int count = 1;
+
+    public int utf8(String value) {
+      return entry("U" + value, () -> {
+        out.writeByte(1);
+        out.writeUTF(value);
+      });
+    }
+
+    public int integer(int value) {
+      return entry("I" + value, () -> {
+        out.writeByte(3);
+        out.writeInt(value);
+      });
+    }
+
+    public int classRef(String name) {
+      int nameIndex = utf8(name);
+      return entry("C" + name, () -> {
+        out.writeByte(7);
+        out.writeShort(nameIndex);
+      });
+    }
+
+    public int string(String value) {
+      int valueIndex = utf8(value);
+      return entry("S" + value, () -> {
+        out.writeByte(8);
+        out.writeShort(valueIndex);
+      });
+    }
+
+    public int fieldRef(String owner, String name, String descriptor) {
+      return memberRef(9, owner, name, descriptor);
+    }
+
+    public int methodRef(String owner, String name, String descriptor) {
+      return memberRef(10, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+      int classIndex = classRef(owner);
+      int nameIndex = utf8(name);
+      int descriptorIndex = utf8(descriptor);
+      int nameAndType = entry("N" + name + " " + descriptor, () -> {
+        out.writeByte(12);
+        out.writeShort(nameIndex);
+        out.writeShort(descriptorIndex);
+      });
+      return entry("M" + tag + owner + "." + name + " " + descriptor, () -> {
+        out.writeByte(tag);
+        out.writeShort(classIndex);
+        out.writeShort(nameAndType);
+      });
+    }
+
+    private int entry(String key, Writer writer) {
+      Integer i = index.get(key);
+      if (i == null) {
+        try {
+          writer.write();
+        }
+        catch (IOException e) {
+          throw new IllegalStateException(e);
+        }
+        i = count++;
+        index.put(key, i);
+      }
+      return i;
+    }
+
+    public void write(DataOutputStream classFile) throws IOException {
+      classFile.writeShort(count);
+      classFile.write(bytes.toByteArray());
+    }
+
+    private interface Writer {
+      void write() throws IOException;
+    }
+  }
+}
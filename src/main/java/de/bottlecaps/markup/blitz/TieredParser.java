@@ -0,0 +1,78 @@
+// Copyright (c) 2023-2024 Gunther Rademacher. Provided under the Apache 2 License.
+
+package de.bottlecaps.markup.blitz;
+
+import java.io.Writer;
+import java.util.concurrent.CompletableFuture;
+
+import de.bottlecaps.markup.Blitz.Option;
+
+/**
+ * A parser that is available right away, and upgrades itself once a
+ * better parser for the same grammar becomes available. It starts with a
+ * parser that is quick to generate, while the generation of the optimized
+ * parser runs in the background. When that completes, it is swapped in for
+ * subsequent parses, while parses that are in progress finish with the
+ * parser that they started with. If generation of the optimized parser
+ * fails, the initial parser stays in place.
+ */
+public class TieredParser extends Parser {
+  /** The parser that new parses are delegated to. */
+  private volatile Parser parser;
+  /** The upgrade, completing with the optimized parser. */
+  private final CompletableFuture<Parser> upgrade;
+  private volatile Writer traceWriter;
+
+  /**
+   * Create a tiered parser.
+   *
+   * @param initialParser the parser to use until the upgrade is complete
+   * @param upgrade the generation of the optimized parser
+   */
+  public TieredParser(Parser initialParser, CompletableFuture<Parser> upgrade) {
+    super(initialParser);
+    this.parser = initialParser;
+    this.upgrade = upgrade.thenApply(optimizedParser -> {
+      parser = optimizedParser;
+      // a trace writer that is set concurrently reaches the optimized parser either here, or via setTraceWriter
+      Writer w = traceWriter;
+      if (w != null)
+        optimizedParser.setTraceWriter(w);
+      return optimizedParser;
+    });
+  }
+
+  @Override
+  public String parse(String input, Option... options) {
+    return parser.parse(input, options);
+  }
+
+  @Override
+  public Profile profile(String... inputs) {
+    return parser.profile(inputs);
+  }
+
+  @Override
+  public void setTraceWriter(Writer w) {
+    traceWriter = w;
+    parser.setTraceWriter(w);
+  }
+
+  /**
+   * Get the upgrade, for waiting until the optimized parser is in place.
+   *
+   * @return the upgrade, completing with the optimized parser
+   */
+  public CompletableFuture<Parser> getUpgrade() {
+    return upgrade;
+  }
+
+  /**
+   * Check whether the optimized parser is in place.
+   *
+   * @return true, if the upgrade is complete
+   */
+  public boolean isUpgraded() {
+    return upgrade.isDone() && ! upgrade.isCompletedExceptionally();
+  }
+}
@@ -0,0 +1,528 @@
+// Copyright (c) 2023-2024 Gunther Rademacher. Provided under the Apache 2 License.
+
+package de.bottlecaps.markup.blitz;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import de.bottlecaps.markup.Blitz;
+import de.bottlecaps.markup.Blitz.Option;
+import de.bottlecaps.markup.blitz.codepoints.Range;
+import de.bottlecaps.markup.blitz.codepoints.RangeSet;
+import de.bottlecaps.markup.blitz.grammar.Mark;
+import de.bottlecaps.markup.blitz.parser.ReduceArgument;
+import de.bottlecaps.markup.blitz.transform.CompressedMap;
+
+/**
+ * Create the Java source of a parser class, that is specialized to the
+ * tables of a generated parser. The tables are held in static final arrays,
+ * and the table lookups are unrolled for the actual depth of their
+ * compressed maps.
+ */
+public class ToJava {
+  private static final int LINE_LENGTH = 80;
+  private static final int LINES_PER_METHOD = 1000;
+
+  private final StringBuilder sb = new StringBuilder();
+  private final StringBuilder methods = new StringBuilder();
+  private final Set<String> narrowTypes = new TreeSet<>();
+
+  private ToJava() {
+  }
+
+  /**
+   * Create the Java source of a parser class for the given parser.
+   *
+   * @param parser the parser
+   * @param className the fully qualified name of the class to be created
+   * @return the Java source
+   */
+  public static String process(Parser parser, String className) {
+    return new ToJava().parserClass(parser, className);
+  }
+
+  private String parserClass(Parser parser, String className) {
+    int dot = className.lastIndexOf('.');
+    String packageName = dot < 0 ? null : className.substring(0, dot);
+    String simpleName = className.substring(dot + 1);
+    String version = Blitz.class.getPackage().getImplementationVersion();
+
+    sb.append("// This file was generated on ")
+      .append(new SimpleDateFormat("EEE MMM d, yyyy HH:mm (zzz)").format(new Date()))
+      .append(" by Markup Blitz")
+      .append(version == null ? "" : " v" + version)
+      .append("\n\n");
+    if (packageName != null)
+      sb.append("package ").append(packageName).append(";\n\n");
+    sb.append("import java.util.BitSet;\n");
+    sb.append("import java.util.Set;\n");
+    sb.append("\n");
+    sb.append("import de.bottlecaps.markup.Blitz.Option;\n");
+    sb.append("import de.bottlecaps.markup.blitz.Earley;\n");
+    sb.append("import de.bottlecaps.markup.blitz.Parser;\n");
+    sb.append("import de.bottlecaps.markup.blitz.codepoints.RangeSet;\n");
+    sb.append("import de.bottlecaps.markup.blitz.grammar.Mark;\n");
+    sb.append("import de.bottlecaps.markup.blitz.parser.ReduceArgument;\n");
+    sb.append("import de.bottlecaps.markup.blitz.transform.CompressedMap;\n");
+    sb.append("\n");
+    sb.append("public class ").append(simpleName).append(" extends Parser\n");
+    sb.append("{\n");
+    sb.append("  public ").append(simpleName).append("(Option... defaultOptions)\n");
+    sb.append("  {\n");
+    sb.append("    super(\n");
+    sb.append("      Set.of(defaultOptions),\n");
+    sb.append("      ASCII_MAP, CHAR_CLASS_MAP, ").append(parser.charClassMapEnd).append(",\n");
+    sb.append("      ASCII_ACTIONS,\n");
+    sb.append("      TERMINAL_TRANSITIONS, ").append(parser.numberOfTokens).append(",\n");
+    sb.append("      NONTERMINAL_TRANSITIONS, ").append(parser.numberOfNonterminals).append(",\n");
+    sb.append("      DEFAULT_REDUCTIONS, DEFAULT_GOTOS,\n");
+    sb.append("      REDUCE_ARGUMENTS,\n");
+    sb.append("      NONTERMINAL,\n");
+    sb.append("      TERMINAL,\n");
+    sb.append("      FORKS,\n");
+    sb.append("      EXPECTED_TOKENS,\n");
+    sb.append("      ").append(parser.isVersionMismatch).append(",\n");
+    sb.append("      ").append(parser.normalizeEol).append(",\n");
+    sb.append("      EARLEY);\n");
+    sb.append("  }\n");
+
+    sb.append("\n");
+    sb.append("  @Override\n");
+    sb.append("  protected int terminalTransition(int state, int token)\n");
+    sb.append("  {\n");
+    sb.append("    int i0 = state * ").append(parser.numberOfTokens).append(" + token;\n");
+    lookup("TERMINAL_TRANSITION_DATA", parser.terminalTransitions.shift());
+    sb.append("  }\n");
+
+    sb.append("\n");
+    sb.append("  @Override\n");
+    sb.append("  protected int nonterminalTransition(int state, int nonterminalId)\n");
+    sb.append("  {\n");
+    sb.append("    int i0 = state * ").append(parser.numberOfNonterminals).append(" + nonterminalId;\n");
+    lookup("NONTERMINAL_TRANSITION_DATA", parser.nonterminalTransitions.shift());
+    sb.append("  }\n");
+
+    sb.append("\n");
+    sb.append("  @Override\n");
+    sb.append("  protected int charClass(int codepoint)\n");
+    sb.append("  {\n");
+    sb.append("    if (codepoint < 0x80)\n");
+    sb.append("      return ASCII_MAP[codepoint];\n");
+    sb.append("    int i0 = codepoint;\n");
+    lookup("CHAR_CLASS_DATA", parser.charClassMap.shift());
+    sb.append("  }\n");
+
+    intArray("ASCII_MAP", parser.asciiMap);
+    mapData("CHAR_CLASS_DATA", parser.charClassMap);
+    intArray("CHAR_CLASS_SHIFT", parser.charClassMap.shift());
+    sb.append("  private static final CompressedMap CHAR_CLASS_MAP = new CompressedMap(CHAR_CLASS_DATA, CHAR_CLASS_SHIFT);\n");
+    mapData("TERMINAL_TRANSITION_DATA", parser.terminalTransitions);
+    intArray("TERMINAL_TRANSITION_SHIFT", parser.terminalTransitions.shift());
+    sb.append("  private static final CompressedMap TERMINAL_TRANSITIONS = new CompressedMap(TERMINAL_TRANSITION_DATA, TERMINAL_TRANSITION_SHIFT);\n");
+    mapData("NONTERMINAL_TRANSITION_DATA", parser.nonterminalTransitions);
+    intArray("NONTERMINAL_TRANSITION_SHIFT", parser.nonterminalTransitions.shift());
+    sb.append("  private static final CompressedMap NONTERMINAL_TRANSITIONS = new CompressedMap(NONTERMINAL_TRANSITION_DATA, NONTERMINAL_TRANSITION_SHIFT);\n");
+    intArray("DEFAULT_REDUCTIONS", parser.defaultReductions);
+    intArray("DEFAULT_GOTOS", parser.defaultGotos);
+    intArray("FORKS", parser.forks);
+
+    if (parser.asciiActions == null) {
+      sb.append("  private static final int[][] ASCII_ACTIONS = null;\n");
+    }
+    else {
+      List<Integer> values = new ArrayList<>();
+      for (int[] actions : parser.asciiActions) {
+        values.add(actions == null ? 0 : 1);
+        if (actions != null)
+          for (int action : actions)
+            values.add(action);
+      }
+      intArray("ASCII_ACTION_DATA", values.stream().mapToInt(Integer::intValue).toArray());
+      sb.append("  private static final int[][] ASCII_ACTIONS = asciiActions(")
+        .append(parser.asciiActions.length).append(", ASCII_ACTION_DATA);\n");
+    }
+
+    List<Integer> values = new ArrayList<>();
+    for (ReduceArgument reduceArgument : parser.reduceArguments) {
+      Mark[] marks = reduceArgument.getMarks();
+      values.add(reduceArgument.getNonterminalId());
+      values.add((reduceArgument.isRun() ? 1 : 0) | (reduceArgument.isAppend() ? 2 : 0));
+      values.add(marks.length);
+      for (int i = 0; i < marks.length; ++i) {
+        values.add(marks[i].ordinal());
+        values.add(reduceArgument.getAliases()[i]);
+      }
+      int[] insertion = reduceArgument.getInsertion();
+      values.add(insertion == null ? -1 : insertion.length);
+      if (insertion != null)
+        for (int codepoint : insertion)
+          values.add(codepoint);
+    }
+    intArray("REDUCE_ARGUMENT_DATA", values.stream().mapToInt(Integer::intValue).toArray());
+    sb.append("  private static final ReduceArgument[] REDUCE_ARGUMENTS = reduceArguments(")
+      .append(parser.reduceArguments.length).append(", REDUCE_ARGUMENT_DATA);\n");
+
+    values.clear();
+    for (RangeSet rangeSet : parser.terminal) {
+      values.add(rangeSet.size());
+      for (Range range : rangeSet) {
+        values.add(range.getFirstCodepoint());
+        values.add(range.getLastCodepoint());
+      }
+    }
+    intArray("TERMINAL_DATA", values.stream().mapToInt(Integer::intValue).toArray());
+    sb.append("  private static final RangeSet[] TERMINAL = terminals(")
+      .append(parser.terminal.length).append(", TERMINAL_DATA);\n");
+
+    values.clear();
+    for (BitSet tokens : parser.expectedTokens) {
+      values.add(tokens.cardinality());
+      tokens.stream().forEach(values::add);
+    }
+    intArray("EXPECTED_TOKEN_DATA", values.stream().mapToInt(Integer::intValue).toArray());
+    sb.append("  private static final BitSet[] EXPECTED_TOKENS = expectedTokens(")
+      .append(parser.expectedTokens.length).append(", EXPECTED_TOKEN_DATA);\n");
+
+    if (parser.earley == null) {
+      sb.append("  private static final Earley EARLEY = null;\n");
+    }
+    else {
+      Earley earley = parser.earley;
+      values.clear();
+      for (int i = 0; i < earley.itemKind.length; ++i) {
+        values.add((int) earley.itemKind[i]);
+        values.add(earley.itemSymbol[i]);
+      }
+      for (int i = 0; i < earley.ruleStartItems.length; ++i) {
+        values.add(earley.isNullable[i] ? 1 : 0);
+        values.add(earley.ruleStartItems[i].length);
+        for (int startItem : earley.ruleStartItems[i])
+          values.add(startItem);
+      }
+      intArray("EARLEY_DATA", values.stream().mapToInt(Integer::intValue).toArray());
+      sb.append("  private static final Earley EARLEY = earley(")
+        .append(earley.itemKind.length).append(", ")
+        .append(earley.ruleStartItems.length).append(", EARLEY_DATA, ")
+        .append(earley.isPreferred).append(");\n");
+    }
+
+    sb.append("\n");
+    sb.append("  private static final String[] NONTERMINAL =\n");
+    sb.append("  {\n");
+    for (int i = 0; i < parser.nonterminal.length; ++i)
+      sb.append("    /* ").append(i).append(" */ ").append(stringLiteral(parser.nonterminal[i])).append(",\n");
+    sb.append("  };\n");
+
+    sb.append("\n");
+    sb.append("  private static ReduceArgument[] reduceArguments(int size, int[] data)\n");
+    sb.append("  {\n");
+    sb.append("    Mark[] mark = Mark.values();\n");
+    sb.append("    ReduceArgument[] reduceArguments = new ReduceArgument[size];\n");
+    sb.append("    for (int i = 0, j = 0; i < size; ++i)\n");
+    sb.append("    {\n");
+    sb.append("      int nonterminalId = data[j++];\n");
+    sb.append("      int flags = data[j++];\n");
+    sb.append("      Mark[] marks = new Mark[data[j++]];\n");
+    sb.append("      int[] aliases = new int[marks.length];\n");
+    sb.append("      for (int k = 0; k < marks.length; ++k)\n");
+    sb.append("      {\n");
+    sb.append("        marks[k] = mark[data[j++]];\n");
+    sb.append("        aliases[k] = data[j++];\n");
+    sb.append("      }\n");
+    sb.append("      int length = data[j++];\n");
+    sb.append("      int[] insertion = length < 0 ? null : new int[length];\n");
+    sb.append("      for (int k = 0; k < length; ++k)\n");
+    sb.append("        insertion[k] = data[j++];\n");
+    sb.append("      reduceArguments[i] = new ReduceArgument(marks, aliases, insertion, nonterminalId, (flags & 1) != 0, (flags & 2) != 0);\n");
+    sb.append("    }\n");
+    sb.append("    return reduceArguments;\n");
+    sb.append("  }\n");
+
+    if (parser.asciiActions != null) {
+      sb.append("\n");
+      sb.append("  private static int[][] asciiActions(int size, int[] data)\n");
+      sb.append("  {\n");
+      sb.append("    int[][] asciiActions = new int[size][];\n");
+      sb.append("    for (int i = 0, j = 0; i < size; ++i)\n");
+      sb.append("    {\n");
+      sb.append("      if (data[j++] != 0)\n");
+      sb.append("      {\n");
+      sb.append("        asciiActions[i] = java.util.Arrays.copyOfRange(data, j, j + 128);\n");
+      sb.append("        j += 128;\n");
+      sb.append("      }\n");
+      sb.append("    }\n");
+      sb.append("    return asciiActions;\n");
+      sb.append("  }\n");
+    }
+
+    sb.append("\n");
+    sb.append("  private static RangeSet[] terminals(int size, int[] data)\n");
+    sb.append("  {\n");
+    sb.append("    RangeSet[] terminals = new RangeSet[size];\n");
+    sb.append("    for (int i = 0, j = 0; i < size; ++i)\n");
+    sb.append("    {\n");
+    sb.append("      RangeSet.Builder builder = RangeSet.builder();\n");
+    sb.append("      for (int k = data[j++]; k > 0; --k, j += 2)\n");
+    sb.append("        builder.add(data[j], data[j + 1]);\n");
+    sb.append("      RangeSet rangeSet = builder.build();\n");
+    sb.append("      terminals[i] = rangeSet.equals(RangeSet.EOF) ? RangeSet.EOF : rangeSet;\n");
+    sb.append("    }\n");
+    sb.append("    return terminals;\n");
+    sb.append("  }\n");
+
+    sb.append("\n");
+    sb.append("  private static BitSet[] expectedTokens(int size, int[] data)\n");
+    sb.append("  {\n");
+    sb.append("    BitSet[] expectedTokens = new BitSet[size];\n");
+    sb.append("    for (int i = 0, j = 0; i < size; ++i)\n");
+    sb.append("    {\n");
+    sb.append("      expectedTokens[i] = new BitSet();\n");
+    sb.append("      for (int k = data[j++]; k > 0; --k)\n");
+    sb.append("        expectedTokens[i].set(data[j++]);\n");
+    sb.append("    }\n");
+    sb.append("    return expectedTokens;\n");
+    sb.append("  }\n");
+
+    if (parser.earley != null) {
+      sb.append("\n");
+      sb.append("  private static Earley earley(int items, int rules, int[] data, boolean isPreferred)\n");
+      sb.append("  {\n");
+      sb.append("    byte[] itemKind = new byte[items];\n");
+      sb.append("    int[] itemSymbol = new int[items];\n");
+      sb.append("    int j = 0;\n");
+      sb.append("    for (int i = 0; i < items; ++i)\n");
+      sb.append("    {\n");
+      sb.append("      itemKind[i] = (byte) data[j++];\n");
+      sb.append("      itemSymbol[i] = data[j++];\n");
+      sb.append("    }\n");
+      sb.append("    int[][] ruleStartItems = new int[rules][];\n");
+      sb.append("    boolean[] isNullable = new boolean[rules];\n");
+      sb.append("    for (int i = 0; i < rules; ++i)\n");
+      sb.append("    {\n");
+      sb.append("      isNullable[i] = data[j++] != 0;\n");
+      sb.append("      ruleStartItems[i] = java.util.Arrays.copyOfRange(data, j + 1, j + 1 + data[j]);\n");
+      sb.append("      j += 1 + ruleStartItems[i].length;\n");
+      sb.append("    }\n");
+      sb.append("    return new Earley(itemKind, itemSymbol, ruleStartItems, isNullable, isPreferred);\n");
+      sb.append("  }\n");
+    }
+
+    sb.append("\n");
+    sb.append("  private static int[] decode(int size, String[]... chunks)\n");
+    sb.append("  {\n");
+    sb.append("    int[] values = new int[size];\n");
+    sb.append("    int i = 0;\n");
+    sb.append("    for (String[] chunk : chunks)\n");
+    sb.append("      for (String line : chunk)\n");
+    sb.append("        for (String value : line.split(\", \"))\n");
+    sb.append("          values[i++] = Integer.parseInt(value);\n");
+    sb.append("    return values;\n");
+    sb.append("  }\n");
+
+    for (String type : narrowTypes) {
+      sb.append("\n");
+      sb.append("  private static ").append(type).append("[] ").append(type).append("s(int[] values)\n");
+      sb.append("  {\n");
+      sb.append("    ").append(type).append("[] narrowed = new ").append(type).append("[values.length];\n");
+      sb.append("    for (int i = 0; i < values.length; ++i)\n");
+      sb.append("      narrowed[i] = (").append(type).append(") values[i];\n");
+      sb.append("    return narrowed;\n");
+      sb.append("  }\n");
+    }
+
+    sb.append(methods);
+    sb.append("}\n");
+    return sb.toString();
+  }
+
+  private void lookup(String data, int[] shift) {
+    int depth = shift.length;
+    if (depth == 0) {
+      sb.append("    return ").append(data).append("[i0];\n");
+      return;
+    }
+    for (int i = 1; i < depth; ++i)
+      sb.append("    int i").append(i).append(" = i").append(i - 1).append(" >> ").append(shift[i - 1]).append(";\n");
+    sb.append("    return ");
+    for (int i = 0; i < depth; ++i)
+      sb.append(data).append("[(i").append(i).append(" & ").append((1 << shift[i]) - 1).append(") + ");
+    sb.append(data).append("[i").append(depth - 1).append(" >> ").append(shift[depth - 1]).append("]");
+    for (int i = 0; i < depth; ++i)
+      sb.append("]");
+    sb.append(";\n");
+  }
+
+  private void mapData(String name, CompressedMap map) {
+    Object array = map.array();
+    if (array instanceof int[]) {
+      intArray(name, (int[]) array);
+    }
+    else {
+      String type = array instanceof short[] ? "short" : "byte";
+      narrowTypes.add(type);
+      array(type, name, map.data());
+    }
+  }
+
+  private void intArray(String name, int[] values) {
+    array("int", name, values);
+  }
+
+  private void array(String type, String name, int[] values) {
+    List<String> lines = new ArrayList<>();
+    List<Integer> offsets = new ArrayList<>();
+    StringBuilder line = new StringBuilder();
+    for (int i = 0; i < values.length; ++i) {
+      if (line.length() == 0)
+        offsets.add(i);
+      else
+        line.append(", ");
+      line.append(values[i]);
+      if (line.length() >= LINE_LENGTH || i == values.length - 1) {
+        lines.add(line.toString());
+        line.setLength(0);
+      }
+    }
+
+    String methodName = methodName(name);
+    sb.append("\n");
+    String conversion = type.equals("int") ? "" : type + "s(";
+    sb.append("  private static final ").append(type).append("[] ").append(name).append(" = ")
+      .append(conversion).append("decode(").append(values.length);
+    int width = Integer.toString(values.length).length();
+    for (int chunk = 0; chunk * LINES_PER_METHOD < lines.size(); ++chunk) {
+      sb.append(", ").append(methodName).append(chunk).append("()");
+      methods.append("\n");
+      methods.append("  private static String[] ").append(methodName).append(chunk).append("()\n");
+      methods.append("  {\n");
+      methods.append("    return new String[]\n");
+      methods.append("    {\n");
+      for (int i = chunk * LINES_PER_METHOD; i < lines.size() && i < (chunk + 1) * LINES_PER_METHOD; ++i)
+        methods.append(String.format("      /* %" + width + "d */ \"%s\",\n", offsets.get(i), lines.get(i)));
+      methods.append("    };\n");
+      methods.append("  }\n");
+    }
+    sb.append(conversion.isEmpty() ? ");\n" : "));\n");
+  }
+
+  private static String methodName(String constantName) {
+    StringBuilder sb = new StringBuilder();
+    for (String part : constantName.toLowerCase().split("_"))
+      sb.append(sb.length() == 0 ? part : Character.toUpperCase(part.charAt(0)) + part.substring(1));
+    return sb.toString();
+  }
+
+  private static String stringLiteral(String s) {
+    StringBuilder sb = new StringBuilder("\"");
+    for (char c : s.toCharArray()) {
+      if (c == '"' || c == '\\')
+        sb.append('\\').append(c);
+      else if (c >= ' ' && c <= '~')
+        sb.append(c);
+      else
+        sb.append(String.format("\\u%04x", (int) c));
+    }
+    return sb.append('"').toString();
+  }
+
+  /**
+   * Process a command line in order to generate a parser from an Invisible XML grammar, in
+   * ixml notation, and write the Java source of the specialized parser class.
+   *
+   * @param args command line arguments
+   * @throws IOException if any input cannot be accessed, or the output cannot be written
+   */
+  public static void main(String[] args) throws IOException {
+    System.setOut(new PrintStream(System.out, true, StandardCharsets.UTF_8));
+    System.setErr(new PrintStream(System.err, true, StandardCharsets.UTF_8));
+
+    Set<Option> options = new HashSet<>();
+    List<String> profileInputs = new ArrayList<>();
+    int i = 0;
+    for (; i < args.length; ++i) {
+      if (args[i].equals("--profile") && i + 1 < args.length)
+        profileInputs.add(args[++i]);
+      else if (args[i].equals("--timing"))
+        options.add(Option.TIMING);
+      else if (args[i].equals("--verbose"))
+        options.add(Option.VERBOSE);
+      else if (args[i].equals("--fast-tables"))
+        options.add(Option.FAST_TABLES);
+      else if (args[i].equals("--optimize"))
+        options.add(Option.OPTIMIZE);
+      else if (args[i].startsWith("-"))
+        usage(1);
+      else
+        break;
+    }
+
+    if (i != args.length - 3 && i != args.length - 2)
+      usage(1);
+    String grammar = args[i];
+    String className = args[i + 1];
+    String grammarString = grammar.startsWith("!")
+                         ? grammar.substring(1)
+                         : Blitz.urlContent(Blitz.url(grammar));
+    Option[] generatorOptions = options.toArray(Option[]::new);
+    String source;
+    if (profileInputs.isEmpty()) {
+      source = Blitz.generateJava(grammarString, className, generatorOptions);
+    }
+    else {
+      String[] inputStrings = new String[profileInputs.size()];
+      for (int j = 0; j < inputStrings.length; ++j) {
+        String input = profileInputs.get(j);
+        inputStrings[j] = input.startsWith("!")
+                        ? input.substring(1)
+                        : Blitz.urlContent(Blitz.url(input));
+      }
+      Profile profile = Blitz.generate(grammarString, generatorOptions).profile(inputStrings);
+      source = Blitz.generateJava(grammarString, className, profile, generatorOptions);
+    }
+    if (i == args.length - 2) {
+      System.out.print(source);
+    }
+    else {
+      File file = new File(args[i + 2], className.replace('.', File.separatorChar) + ".java");
+      file.getParentFile().mkdirs();
+      Files.writeString(file.toPath(), source, StandardCharsets.UTF_8);
+    }
+  }
+
+  private static void usage(int exitCode) {
+    System.err.println("Usage: java " + ToJava.class.getName() + " [<OPTION>...] <GRAMMAR> <CLASS> [<DIRECTORY>]");
+    System.err.println();
+    System.err.println("  Compile an Invisible XML grammar, and write the Java source of a parser class");
+    System.err.println("  that is specialized to the resulting parser tables.");
+    System.err.println();
+    System.err.println("  <GRAMMAR>          the grammar (literal, file name or URL), in ixml notation.");
+    System.err.println("  <CLASS>            the fully qualified name of the parser class.");
+    System.err.println("  <DIRECTORY>        the source root directory for the resulting Java file.");
+    System.err.println("                     When omitted, the Java source goes to standard output.");
+    System.err.println();
+    System.err.println("  <OPTION>:");
+    System.err.println("    --profile <INPUT>");
+    System.err.println("                     parse representative input (literal, file name or URL),");
+    System.err.println("                     and lay out the parser tables by the frequencies of states");
+    System.err.println("                     and tokens. May be repeated.");
+    System.err.println("    --timing         print timing information.");
+    System.err.println("    --verbose        print intermediate results.");
+    System.err.println("    --fast-tables    use faster, but larger table layouts.");
+    System.err.println("    --optimize       optimize the BNF grammar for fewer states.");
+    System.err.println();
+    System.err.println("  A literal grammar or input must be preceded by an exclamation point (!).");
+    System.err.println();
+    System.exit(exitCode);
+  }
+}
@@ -6,6 +6,7 @@ import java.util.AbstractSet;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.stream.Collectors;
 import java.util.stream.LongStream;
 import java.util.stream.Stream;
@@ -27,12 +28,29 @@ public class RangeSet extends AbstractSet<Range> implements Comparable<RangeSet>
   }
 
   public RangeSet union(RangeSet rangeSet) {
-    Builder builder = new Builder();
-    for (long range : ranges)
-      builder.add(range);
-    for (long range : rangeSet.ranges)
-      builder.add(range);
-    return builder.build();
+    if (rangeSet.ranges.length == 0)
+      return this;
+    if (ranges.length == 0)
+      return rangeSet;
+    long[] result = new long[ranges.length + rangeSet.ranges.length];
+    int size = 0;
+    int lhsI = 0;
+    int rhsI = 0;
+    while (lhsI < ranges.length || rhsI < rangeSet.ranges.length) {
+      final long range = rhsI == rangeSet.ranges.length
+                      || lhsI < ranges.length && ranges[lhsI] < rangeSet.ranges[rhsI]
+                       ? ranges[lhsI++]
+                       : rangeSet.ranges[rhsI++];
+      if (size > 0 && firstCodepoint(range) <= lastCodepoint(result[size - 1]) + 1) {
+        // overlapping or adjacent, extend last range
+        if (lastCodepoint(range) > lastCodepoint(result[size - 1]))
+          result[size - 1] = range(firstCodepoint(result[size - 1]), lastCodepoint(range));
+      }
+      else {
+        result[size++] = range;
+      }
+    }
+    return new RangeSet(size == result.length ? result : Arrays.copyOf(result, size));
   }
 
   public RangeSet intersection(RangeSet rangeSet) {
@@ -191,7 +209,22 @@ public class RangeSet extends AbstractSet<Range> implements Comparable<RangeSet>
 
   @Override
   public Iterator<Range> iterator() {
-    return rangesAsStream().iterator();
+    return new Iterator<>() {
+      private int i = 0;
+
+      @Override
+      public boolean hasNext() {
+        return i < ranges.length;
+      }
+
+      @Override
+      public Range next() {
+        if (i >= ranges.length)
+          throw new NoSuchElementException();
+        long range = ranges[i++];
+        return new Range(firstCodepoint(range), lastCodepoint(range));
+      }
+    };
   }
 
   @Override
@@ -9,6 +9,7 @@ public abstract class Node implements Cloneable {
   protected Rule rule;
   protected Node parent;
   protected Node next;
+  private int itemId;
 
   public abstract void accept(Visitor v);
 
@@ -44,6 +45,14 @@ public abstract class Node implements Cloneable {
     this.next = next;
   }
 
+  public void setItemId(int itemId) {
+    this.itemId = itemId;
+  }
+
+  public int getItemId() {
+    return itemId;
+  }
+
   @SuppressWarnings("unchecked")
   public <T extends Node> T copy() {
     return (T) this.clone();
@@ -2,58 +2,124 @@
 
 package de.bottlecaps.markup.blitz.item;
 
-import java.util.BitSet;
+import java.util.Arrays;
 
 public class TokenSet {
-  private BitSet set;
+  private static final long[] NO_WORDS = {};
+
+  private long[] words;
 
   public TokenSet() {
-    set = new BitSet();
+    words = NO_WORDS;
   }
 
   public TokenSet(int token) {
     this();
-    set.set(token + 1);
+    add(token);
   }
 
   public TokenSet(TokenSet other) {
-    set = (BitSet) other.set.clone();
+    words = other.words.clone();
   }
 
   public boolean contains(int token) {
-    return set.get(token + 1);
+    int bit = token + 1;
+    int index = bit >> 6;
+    return index < words.length && (words[index] & 1L << bit) != 0;
   }
 
   public boolean containsAll(TokenSet other) {
-    BitSet intersection = (BitSet) set.clone();
-    intersection.and(other.set);
-    return intersection.equals(other.set);
+    long[] otherWords = other.words;
+    int common = Math.min(words.length, otherWords.length);
+    for (int i = 0; i < common; ++i)
+      if ((otherWords[i] & ~ words[i]) != 0)
+        return false;
+    for (int i = common; i < otherWords.length; ++i)
+      if (otherWords[i] != 0)
+        return false;
+    return true;
+  }
+
+  public boolean intersects(TokenSet other) {
+    long[] otherWords = other.words;
+    for (int i = Math.min(words.length, otherWords.length) - 1; i >= 0; --i)
+      if ((words[i] & otherWords[i]) != 0)
+        return true;
+    return false;
   }
 
   public void add(int token) {
-    set.set(token + 1);
+    int bit = token + 1;
+    int index = bit >> 6;
+    if (index >= words.length)
+      words = Arrays.copyOf(words, index + 1);
+    words[index] |= 1L << bit;
   }
 
   public void addAll(TokenSet other) {
-    set.or(other.set);
+    long[] otherWords = other.words;
+    if (otherWords.length > words.length)
+      words = Arrays.copyOf(words, otherWords.length);
+    for (int i = 0; i < otherWords.length; ++i)
+      words[i] |= otherWords[i];
   }
 
   public void remove(int token) {
-    set.clear(token + 1);
+    int bit = token + 1;
+    int index = bit >> 6;
+    if (index < words.length)
+      words[index] &= ~ (1L << bit);
   }
 
   public int nextToken(int token) {
-    return set.nextSetBit(token + 1) - 1;
+    int bit = token + 1;
+    int index = bit >> 6;
+    if (index >= words.length)
+      return -2;
+    long word = words[index] & -1L << bit;
+    while (word == 0) {
+      if (++index == words.length)
+        return -2;
+      word = words[index];
+    }
+    return (index << 6) + Long.numberOfTrailingZeros(word) - 1;
+  }
+
+  @Override
+  public int hashCode() {
+    int hashCode = 1;
+    for (int i = lastNonZeroWord(); i >= 0; --i)
+      hashCode = 31 * hashCode + Long.hashCode(words[i]);
+    return hashCode;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj)
+      return true;
+    if (! (obj instanceof TokenSet))
+      return false;
+    TokenSet other = (TokenSet) obj;
+    int length = lastNonZeroWord() + 1;
+    return length == other.lastNonZeroWord() + 1
+        && Arrays.equals(words, 0, length, other.words, 0, length);
+  }
+
+  private int lastNonZeroWord() {
+    int i = words.length - 1;
+    while (i >= 0 && words[i] == 0)
+      --i;
+    return i;
   }
 
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder("{");
     String delimiter = "";
-    for (int token = set.nextSetBit(0); token >= 0; token = set.nextSetBit(token + 1)) {
-      sb.append(delimiter).append(token == 0 ? "\u03b5" : token);
+    for (int token = nextToken(-1); token >= -1; token = nextToken(token + 1)) {
+      sb.append(delimiter).append(token == -1 ? "\u03b5" : token + 1);
       delimiter = ", ";
     }
     return sb.append("}").toString();
   }
-}
\ No newline at end of file
+}
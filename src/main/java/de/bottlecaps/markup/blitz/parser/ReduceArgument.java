@@ -15,12 +15,22 @@ public class ReduceArgument {
   private final int[] insertion;
   /** Nonterminal to create. */
   private final int nonterminalId;
+  /** Whether this reduces a run rule, N: -N, t, that appends a character to N. */
+  private final boolean isRun;
+  /** Whether this reduces a left-recursive rule, N: -N, ..., that appends symbols to N. */
+  private final boolean isAppend;
 
   public ReduceArgument(Mark[] marks, int[] aliases, int[] insertion, int nonterminalCode) {
+    this(marks, aliases, insertion, nonterminalCode, false, false);
+  }
+
+  public ReduceArgument(Mark[] marks, int[] aliases, int[] insertion, int nonterminalCode, boolean isRun, boolean isAppend) {
     this.marks = marks;
     this.aliases = aliases;
     this.insertion = insertion;
     this.nonterminalId = nonterminalCode;
+    this.isRun = isRun;
+    this.isAppend = isAppend;
   }
 
   public Mark[] getMarks() {
@@ -39,6 +49,14 @@ public class ReduceArgument {
     return nonterminalId;
   }
 
+  public boolean isRun() {
+    return isRun;
+  }
+
+  public boolean isAppend() {
+    return isAppend;
+  }
+
   @Override
   public int hashCode() {
     final int prime = 31;
@@ -47,6 +65,8 @@ public class ReduceArgument {
     result = prime * result + Arrays.hashCode(marks);
     result = prime * result + Arrays.hashCode(aliases);
     result = prime * result + nonterminalId;
+    result = prime * result + (isRun ? 1231 : 1237);
+    result = prime * result + (isAppend ? 1231 : 1237);
     return result;
   }
 
@@ -65,6 +85,10 @@ public class ReduceArgument {
       return false;
     if (nonterminalId != other.nonterminalId)
       return false;
+    if (isRun != other.isRun)
+      return false;
+    if (isAppend != other.isAppend)
+      return false;
     return true;
   }
 
@@ -4,6 +4,7 @@ package de.bottlecaps.markup.blitz.transform;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -69,19 +70,14 @@ public class ClassifyCharacters extends Copy {
     t.add(System.currentTimeMillis()); // ---> 25 ms
 
     copy.setAdditionalNames(g.getAdditionalNames());
-    PostProcess.process(copy);
-
-    t.add(System.currentTimeMillis());
-
-    Set<RangeSet> charClasses = classify(allSets);
+    HashMap<RangeSet, Set<RangeSet>> charsetToClasses = mapToClasses(allSets);
 
     t.add(System.currentTimeMillis());
 
-    HashMap<RangeSet, Set<RangeSet>> charsetToClasses = mapToClasses(allSets, charClasses);
-
-    t.add(System.currentTimeMillis());
-
-    Grammar result = ReplaceCharsets.process(copy, charsetToClasses);
+    // the copy is private to this pass, so replace charsets in place, and
+    // then post-process once, rather than creating yet another copy
+    new ReplaceCharsets(copy.getAdditionalNames(), charsetToClasses).visit(copy);
+    PostProcess.process(copy);
 
     t.add(System.currentTimeMillis());
 
@@ -89,7 +85,7 @@ public class ClassifyCharacters extends Copy {
       for (int i = 1; i < t.size(); ++i)
         System.err.println("                                                                   time: " + (t.get(i) - t.get(i - 1)) + " msec");
 
-    return result;
+    return copy;
   }
 
   @Override
@@ -345,81 +341,136 @@ public class ClassifyCharacters extends Copy {
     }
   }
 
-  private static class ReplaceCharsets extends Copy {
-    private Map<RangeSet, Set<RangeSet>> charsetToCharclasses;
+  /**
+   * Replace each charset that is a union of multiple character classes by a
+   * choice of those classes, in place. Parent links become invalid, so this
+   * must be followed by post-processing.
+   */
+  private static class ReplaceCharsets extends Visitor {
+    private final Map<Term, String[]> additionalNames;
+    private final Map<RangeSet, Set<RangeSet>> charsetToCharclasses;
+
+    private ReplaceCharsets(Map<Term, String[]> additionalNames, Map<RangeSet, Set<RangeSet>> charsetToCharclasses) {
+      this.additionalNames = additionalNames;
+      this.charsetToCharclasses = charsetToCharclasses;
+    }
 
-    private ReplaceCharsets(Grammar grammar) {
-      super(grammar);
+    @Override
+    public void visit(Alt a) {
+      List<Term> terms = a.getTerms();
+      for (int i = 0; i < terms.size(); ++i)
+        terms.set(i, replace(terms.get(i)));
     }
 
-    public static Grammar process(Grammar g, Map<RangeSet, Set<RangeSet>> charsetToCharclasses) {
-      ReplaceCharsets rc = new ReplaceCharsets(new Grammar(g));
-      rc.charsetToCharclasses = charsetToCharclasses;
-      rc.visit(g);
-      rc.copy.setAdditionalNames(g.getAdditionalNames());
-      PostProcess.process(rc.copy);
-      return rc.copy;
+    private Term replace(Term term) {
+      if (term instanceof Charset)
+        return replace((Charset) term);
+      if (term instanceof Control) {
+        Control c = (Control) term;
+        Term t = replace(c.getTerm());
+        Term s = c.getSeparator() == null
+               ? null
+               : replace(c.getSeparator());
+        return t == c.getTerm() && s == c.getSeparator()
+             ? c
+             : new Control(c.getOccurrence(), t, s);
+      }
+      term.accept(this);
+      return term;
     }
 
-    @Override
-    public void visit(Charset c) {
+    private Term replace(Charset c) {
       Set<RangeSet> charClass = charsetToCharclasses.get(c.getRangeSet());
       if (charClass.size() <= 1) {
         // c.getRangeSet is equal to charClass
-        alts.peek().last().getTerms().add(c.copy());
+        return c;
       }
-      else {
-        Alts a = new Alts();
-        for (RangeSet rangeSet : charClass) {
-          Alt alt = new Alt();
-          alt.getTerms().add(rangeSet.toCharset(c.isDeleted()));
-          a.addAlt(alt);
-        }
-        alts.peek().last().getTerms().add(a);
-
-        // preserve charset name for choice of charclasses
-        String[] name = c.getGrammar().getAdditionalNames().get(c);
-        if (name != null)
-          c.getGrammar().getAdditionalNames().put(a, name);
+      Alts a = new Alts();
+      for (RangeSet rangeSet : charClass) {
+        Alt alt = new Alt();
+        alt.getTerms().add(rangeSet.toCharset(c.isDeleted()));
+        a.addAlt(alt);
       }
+
+      // preserve charset name for choice of charclasses
+      String[] name = additionalNames.get(c);
+      if (name != null)
+        additionalNames.put(a, name);
+      return a;
     }
   }
 
   public static Set<RangeSet> classify(Collection<RangeSet> allRangeSets) {
-    if (allRangeSets.isEmpty())
-      return Collections.emptySet();
-    Builder builder = RangeSet.builder();
-    allRangeSets.forEach(builder::add);
-    RangeSet[] charClasses = new RangeSet[allRangeSets.size()];
-    int classCount = 1;
-    charClasses[0] = builder.build();
-    for (RangeSet rangeSet : allRangeSets) {
-      RangeSet divisor = rangeSet;
-      int classesToCheck = classCount;
-      for (int i = 0; i < classesToCheck; ++i) {
-        RangeSet intersection = divisor.intersection(charClasses[i]);
-        if (! intersection.isEmpty()) {
-          if (! intersection.equals(charClasses[i])) {
-            if (classCount == charClasses.length)
-              charClasses = Arrays.copyOf(charClasses, charClasses.length << 1);
-            charClasses[classCount++] = intersection;
-            charClasses[i] = charClasses[i].minus(intersection);
-          }
-          divisor = divisor.minus(intersection);
-          if (divisor.isEmpty())
-            break;
-        }
-      }
-    }
-    return new TreeSet<>(Arrays.asList(charClasses).subList(0, classCount));
+    return new TreeSet<>(partition(new ArrayList<>(allRangeSets)).keySet());
   }
 
-  private static HashMap<RangeSet, Set<RangeSet>> mapToClasses(Set<RangeSet> allSets, Set<RangeSet> charClasses) {
+  private static HashMap<RangeSet, Set<RangeSet>> mapToClasses(Set<RangeSet> allSets) {
+    List<RangeSet> sets = new ArrayList<>(allSets);
+    List<Set<RangeSet>> classes = new ArrayList<>(sets.size());
+    for (int i = 0; i < sets.size(); ++i)
+      classes.add(new TreeSet<>());
+    partition(sets).forEach((charClass, signature) -> {
+      for (int i = signature.nextSetBit(0); i >= 0; i = signature.nextSetBit(i + 1))
+        classes.get(i).add(charClass);
+    });
     HashMap<RangeSet, Set<RangeSet>> charsetToClasses = new HashMap<>();
-    allSets.forEach(s -> charsetToClasses.put(s, charClasses(s, charClasses)));
+    for (int i = 0; i < sets.size(); ++i)
+      charsetToClasses.put(sets.get(i), classes.get(i));
     return charsetToClasses;
   }
 
+  /**
+   * Partition the characters of the given sets into character classes, such
+   * that all characters of a class are members of the same sets. This sweeps
+   * over the sorted range boundaries of all sets, tracking the sets that
+   * contain the current segment in a membership signature. Each segment
+   * between two boundaries is added to the class of its signature.
+   *
+   * @param sets the character sets
+   * @return the character classes, mapped to their membership signatures,
+   * i.e. the indexes of the sets that contain them
+   */
+  private static Map<RangeSet, BitSet> partition(List<RangeSet> sets) {
+    int size = 0;
+    for (RangeSet set : sets)
+      size += set.size() << 1;
+    // boundary codepoint in the upper bits, set index and start flag in the lower 31
+    long[] boundaries = new long[size];
+    size = 0;
+    for (int i = 0; i < sets.size(); ++i) {
+      for (Range range : sets.get(i)) {
+        boundaries[size++] = ((long) range.getFirstCodepoint() << 31) | (i << 1) | 1;
+        boundaries[size++] = ((long) range.getLastCodepoint() + 1 << 31) | (i << 1);
+      }
+    }
+    Arrays.sort(boundaries);
+
+    Map<BitSet, Builder> builders = new HashMap<>();
+    BitSet signature = new BitSet(sets.size());
+    long segmentStart = 0;
+    for (long boundary : boundaries) {
+      long codepoint = boundary >>> 31;
+      if (codepoint > segmentStart && ! signature.isEmpty()) {
+        Builder builder = builders.get(signature);
+        if (builder == null) {
+          builder = RangeSet.builder();
+          builders.put((BitSet) signature.clone(), builder);
+        }
+        builder.add((int) segmentStart, (int) (codepoint - 1));
+      }
+      int set = (int) (boundary & 0x7fffffff) >> 1;
+      if ((boundary & 1) != 0)
+        signature.set(set);
+      else
+        signature.clear(set);
+      segmentStart = codepoint;
+    }
+
+    Map<RangeSet, BitSet> charClasses = new HashMap<>();
+    builders.forEach((k, v) -> charClasses.put(v.build(), k));
+    return charClasses;
+  }
+
   public static Set<RangeSet> charClasses(RangeSet characters, Set<RangeSet> charClasses) {
     if (characters.isEmpty())
       return Collections.emptySet();
@@ -3,17 +3,64 @@
 package de.bottlecaps.markup.blitz.transform;
 
 import java.util.Arrays;
-import java.util.Comparator;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.List;
 import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+/**
+ * A map of non-negative int values, stored as a hierarchy of deduplicated
+ * tiles. The number of levels is given by the length of the shift array;
+ * with no levels, the data array is indexed directly. The data may be held
+ * in a short[] or byte[] array instead of int[], when all values fit.
+ */
 public class CompressedMap {
+  /** The largest number of tile index bits, that keeps the tile size within int range. */
+  private static final int MAX_TILE_INDEX_BITS = 30;
+
   private int[] data;
+  private short[] shortData;
+  private byte[] byteData;
   private int[] shift;
 
+  /**
+   * Get the data of this map, widened to int[], if it is held in a narrower
+   * array.
+   *
+   * @return the data
+   */
   public int[] data() {
-    return data;
+    if (data != null)
+      return data;
+    int[] values = new int[length()];
+    for (int i = 0; i < values.length; ++i)
+      values[i] = shortData != null ? shortData[i] : byteData[i];
+    return values;
+  }
+
+  /**
+   * Get the array that holds the data of this map, i.e. an int[], short[],
+   * or byte[] array.
+   *
+   * @return the data array
+   */
+  public Object array() {
+    return data != null ? data : shortData != null ? shortData : byteData;
+  }
+
+  /**
+   * Get the number of bytes of the data array.
+   *
+   * @return the size in bytes
+   */
+  public int byteSize() {
+    return data != null ? data.length * Integer.BYTES
+         : shortData != null ? shortData.length * Short.BYTES
+         : byteData.length;
+  }
+
+  private int length() {
+    return data != null ? data.length : shortData != null ? shortData.length : byteData.length;
   }
 
   public int[] shift() {
@@ -24,39 +71,133 @@ public class CompressedMap {
     this(iteratorSupplier, maxDepth, false);
   }
 
-  private CompressedMap(Function<Integer, TileIterator> iteratorSupplier, int maxDepth, boolean isNested) {
-    int[] bestShift = null;
-    int[] bestTiles = null;
-    for (int tileIndexBits = 2;; ++tileIndexBits) {
-      create(iteratorSupplier.apply(tileIndexBits), maxDepth, isNested);
-      if (bestTiles != null && bestTiles.length <= data.length)
+  /**
+   * Create a compressed map, optionally evaluating candidate tile sizes
+   * concurrently. The result does not depend on whether this is done in
+   * parallel.
+   *
+   * @param iteratorSupplier supplier of a tile iterator for a given number of tile index bits
+   * @param maxDepth the maximum number of levels
+   * @param parallel whether to evaluate candidate tile sizes concurrently
+   */
+  public CompressedMap(Function<Integer, TileIterator> iteratorSupplier, int maxDepth, boolean parallel) {
+    this(iteratorSupplier, maxDepth, parallel ? Runtime.getRuntime().availableProcessors() : 1, false);
+  }
+
+  /**
+   * Create a compressed map, evaluating a given number of candidate tile
+   * sizes concurrently.
+   *
+   * @param iteratorSupplier supplier of a tile iterator for a given number of tile index bits
+   * @param maxDepth the maximum number of levels
+   * @param batchSize the number of candidate tile sizes to evaluate concurrently
+   */
+  CompressedMap(Function<Integer, TileIterator> iteratorSupplier, int maxDepth, int batchSize) {
+    this(iteratorSupplier, maxDepth, batchSize, false);
+  }
+
+  public CompressedMap(int[] data, int[] shift) {
+    this.data = data;
+    this.shift = shift;
+  }
+
+  public CompressedMap(short[] data, int[] shift) {
+    this.shortData = data;
+    this.shift = shift;
+  }
+
+  public CompressedMap(byte[] data, int[] shift) {
+    this.byteData = data;
+    this.shift = shift;
+  }
+
+  /**
+   * Create an uncompressed map, with a single data array that is indexed
+   * directly.
+   *
+   * @param it a tile iterator with a tile size of 1
+   * @return the dense map
+   */
+  public static CompressedMap dense(TileIterator it) {
+    if (it.tileSize() != 1)
+      throw new IllegalArgumentException("tile size must be 1: " + it.tileSize());
+    int[] data = new int[it.numberOfTiles()];
+    int[] tile = new int[1];
+    for (int end = 0, count; (count = it.next(tile, 0)) != 0; end += count)
+      Arrays.fill(data, end, end + count, tile[0]);
+    return new CompressedMap(data, new int[0]);
+  }
+
+  /**
+   * Get an equivalent map, that holds the data in the narrowest array type
+   * that can represent all values.
+   *
+   * @return the narrowed map, or this map, if no narrowing is possible
+   */
+  public CompressedMap narrow() {
+    if (data == null)
+      return this;
+    int max = 0;
+    for (int value : data)
+      max = Math.max(max, value);
+    if (max <= Byte.MAX_VALUE) {
+      byte[] bytes = new byte[data.length];
+      for (int i = 0; i < data.length; ++i)
+        bytes[i] = (byte) data[i];
+      return new CompressedMap(bytes, shift);
+    }
+    if (max <= Short.MAX_VALUE) {
+      short[] shorts = new short[data.length];
+      for (int i = 0; i < data.length; ++i)
+        shorts[i] = (short) data[i];
+      return new CompressedMap(shorts, shift);
+    }
+    return this;
+  }
+
+  private CompressedMap(Function<Integer, TileIterator> iteratorSupplier, int maxDepth, int batchSize, boolean isNested) {
+    // beyond a single tile covering the whole map, tiles only get larger
+    int end = iteratorSupplier.apply(2).end();
+    int maxTileIndexBits = Math.max(2, Math.min(MAX_TILE_INDEX_BITS, 32 - Integer.numberOfLeadingZeros(Math.max(end, 2) - 1)));
+    CompressedMap best = null;
+    for (int tileIndexBits = 2; tileIndexBits <= maxTileIndexBits; tileIndexBits += batchSize) {
+      List<CompressedMap> candidates;
+      if (batchSize == 1) {
+        candidates = List.of(create(iteratorSupplier.apply(tileIndexBits), maxDepth, batchSize, isNested));
+      }
+      else {
+        candidates = IntStream.rangeClosed(tileIndexBits, Math.min(tileIndexBits + batchSize - 1, maxTileIndexBits))
+          .parallel()
+          .mapToObj(bits -> create(iteratorSupplier.apply(bits), maxDepth, batchSize, isNested))
+          .collect(Collectors.toList());
+      }
+      for (CompressedMap candidate : candidates) {
+        if (best != null && best.data.length <= candidate.data.length)
+          break;
+        best = candidate;
+      }
+      if (best != candidates.get(candidates.size() - 1))
         break;
-      bestTiles = data;
-      bestShift = shift;
     }
-    this.data = bestTiles;
-    this.shift = bestShift;
+    this.data = best.data;
+    this.shift = best.shift;
   }
 
-  private void create(TileIterator it, int maxDepth, boolean isNested) {
+  private static CompressedMap create(TileIterator it, int maxDepth, int batchSize, boolean isNested) {
     int tileSize = it.tileSize();
     int numberOfTiles = it.numberOfTiles();
     int end = numberOfTiles;
     int idOffset = 0;
-    data = new int[(end + tileSize) + 1];
-
-    Comparator<Integer> indexComparator = (lhs, rhs) ->
-      Arrays.compare(data, lhs, lhs + tileSize, data, rhs, rhs + tileSize);
-    Map<Integer, Integer> distinctTiles = new TreeMap<>(indexComparator);
+    int[] data = new int[(end + tileSize) + 1];
+    TileSet distinctTiles = new TileSet(tileSize);
 
     for (int count; (count = it.next(data, end)) != 0; ) {
-      Integer id = distinctTiles.putIfAbsent(end,  end);
-      if (id == null) {
+      int id = distinctTiles.intern(data, end);
+      if (id == end) {
 // no tile overlapping - advantage would be marginal
 //        if (end > numberOfTiles)
 //          for (int i = end - tileSize + 1; i < end; ++i)
-//            distinctTiles.putIfAbsent(i, i);
-        id = end;
+//            distinctTiles.intern(data, i);
         end += tileSize;
         if (end + tileSize > data.length)
           data = Arrays.copyOf(data, data.length << 1);
@@ -67,11 +208,12 @@ public class CompressedMap {
 
     distinctTiles = null;
     int distinctTileSize = end - numberOfTiles;
-    shift = new int[] {it.tileIndexBits()};
+    int[] shift = new int[] {it.tileIndexBits()};
 
     if (maxDepth > 1) {
-      Function<Integer, TileIterator> indexIterator = bits -> TileIterator.of(data, numberOfTiles, bits, 0);
-      CompressedMap nestedMap = new CompressedMap(indexIterator, maxDepth - 1, true);
+      int[] tiles = data;
+      Function<Integer, TileIterator> indexIterator = bits -> TileIterator.of(tiles, numberOfTiles, bits, 0);
+      CompressedMap nestedMap = new CompressedMap(indexIterator, maxDepth - 1, batchSize, true);
       if (nestedMap.data().length <= numberOfTiles >> 1) {
         shift = Arrays.copyOf(shift, nestedMap.shift().length + 1);
         System.arraycopy(nestedMap.shift(), 0, shift, 1, nestedMap.shift().length);
@@ -87,11 +229,82 @@ public class CompressedMap {
         data[i] += displacement;
     }
 
-    data = Arrays.copyOf(data, end);
+    return new CompressedMap(Arrays.copyOf(data, end), shift);
+  }
+
+  /**
+   * An open addressing hash set of tiles, each identified by its offset in
+   * the data array. The data array may be reallocated between calls, but
+   * the contents of interned tiles must not change.
+   */
+  private static class TileSet {
+    private final int tileSize;
+    private int[] offsets;
+    private int[] hashes;
+    private int size;
+
+    public TileSet(int tileSize) {
+      this.tileSize = tileSize;
+      offsets = new int[64];
+      hashes = new int[64];
+      Arrays.fill(offsets, -1);
+    }
+
+    /**
+     * Look up the tile at the given offset, and add it if it is not yet
+     * present.
+     *
+     * @param data the data array
+     * @param offset the offset of the tile in the data array
+     * @return the offset of the first occurrence of an equal tile
+     */
+    public int intern(int[] data, int offset) {
+      int hash = hash(data, offset);
+      int mask = offsets.length - 1;
+      int i = hash & mask;
+      for (int other; (other = offsets[i]) >= 0; i = i + 1 & mask)
+        if (hashes[i] == hash && Arrays.equals(data, offset, offset + tileSize, data, other, other + tileSize))
+          return other;
+      offsets[i] = offset;
+      hashes[i] = hash;
+      if (++size << 1 > offsets.length)
+        rehash();
+      return offset;
+    }
+
+    private int hash(int[] data, int offset) {
+      int hash = 0;
+      for (int i = offset; i < offset + tileSize; ++i)
+        hash = 31 * hash + data[i];
+      return hash ^ hash >>> 16;
+    }
+
+    private void rehash() {
+      int[] oldOffsets = offsets;
+      int[] oldHashes = hashes;
+      offsets = new int[oldOffsets.length << 1];
+      hashes = new int[offsets.length];
+      Arrays.fill(offsets, -1);
+      int mask = offsets.length - 1;
+      for (int j = 0; j < oldOffsets.length; ++j) {
+        if (oldOffsets[j] >= 0) {
+          int i = oldHashes[j] & mask;
+          while (offsets[i] >= 0)
+            i = i + 1 & mask;
+          offsets[i] = oldOffsets[j];
+          hashes[i] = oldHashes[j];
+        }
+      }
+    }
   }
 
   public int get(int i0) {
+    if (data == null)
+      return getNarrowed(i0);
     switch (shift.length) {
+    case 0: {
+        return data[i0];
+      }
     case 1: {
         return data[(i0 & (1 << shift[0]) - 1) + data[i0 >> shift[0]]];
       }
@@ -155,4 +368,40 @@ public class CompressedMap {
     }
   }
 
+  private int getNarrowed(int i0) {
+    if (shortData != null) {
+      switch (shift.length) {
+      case 0:
+        return shortData[i0];
+      case 1:
+        return shortData[(i0 & (1 << shift[0]) - 1) + shortData[i0 >> shift[0]]];
+      default:
+        break;
+      }
+    }
+    else {
+      switch (shift.length) {
+      case 0:
+        return byteData[i0];
+      case 1:
+        return byteData[(i0 & (1 << shift[0]) - 1) + byteData[i0 >> shift[0]]];
+      default:
+        break;
+      }
+    }
+    final int length = shift.length;
+    int[] index = new int[length];
+    index[0] = i0;
+    for (int i = 1; i < length; ++i) {
+      index[i] = index[i - 1] >> shift[i - 1];
+    }
+    int value = element(index[length - 1] >> shift[length - 1]);
+    for (int i = length - 1; i >= 0; --i)
+      value = element(value + (index[i] & (1 << shift[i]) - 1));
+    return value;
+  }
+
+  private int element(int i) {
+    return shortData != null ? shortData[i] : byteData[i];
+  }
 }
@@ -7,27 +7,27 @@ import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Deque;
+import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.IdentityHashMap;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.Set;
-import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import de.bottlecaps.markup.Blitz.Option;
+import de.bottlecaps.markup.BlitzException;
+import de.bottlecaps.markup.blitz.Earley;
 import de.bottlecaps.markup.blitz.Parser;
+import de.bottlecaps.markup.blitz.Profile;
+import de.bottlecaps.markup.blitz.Specializer;
 import de.bottlecaps.markup.blitz.codepoints.Range;
 import de.bottlecaps.markup.blitz.codepoints.RangeSet;
 import de.bottlecaps.markup.blitz.codepoints.UnicodeCategory;
@@ -45,7 +45,17 @@ import de.bottlecaps.markup.blitz.parser.Action;
 import de.bottlecaps.markup.blitz.parser.ReduceArgument;
 
 public class Generator {
+  /** The maximum size in bytes of a table in a faster, but larger layout. */
+  public static final int FAST_TABLE_BUDGET = 1 << 20;
+
   private static final int EPSILON = -1;
+  private static final int PARALLEL_BATCH_SIZE = 1024;
+  /** Number of forks per state, beyond which parsing starts with the Earley parser. */
+  private static final double EARLEY_FORK_DENSITY = 0.5;
+
+  private static final byte TERMINAL_ITEM = Earley.TERMINAL_ITEM;
+  private static final byte NONTERMINAL_ITEM = Earley.NONTERMINAL_ITEM;
+  private static final byte REDUCE_ITEM = Earley.REDUCE_ITEM;
 
   private Grammar grammar;
 
@@ -57,17 +67,50 @@ public class Generator {
   private NavigableMap<Range, Integer> terminalCodeByRange;
 
   private Map<Node, TokenSet> first = new IdentityHashMap<>();
-  private Map<State, State> states = new LinkedHashMap<>();
+
+  /** Grammar nodes, by item id. */
+  private Node[] item;
+  /** Item kinds, by item id. */
+  private byte[] itemKind;
+  /** Terminal code, nonterminal code, or reduction id, by item id. */
+  private int[] itemSymbol;
+  /** Item ids of the initial items of each rule's alternatives, by nonterminal code. */
+  private int[][] ruleStartItems;
+  /** Nonnull first set of the node following a nonterminal item, by item id. */
+  private TokenSet[] firstOfNext;
+  /** Whether the node following a nonterminal item is nullable, by item id. */
+  private boolean[] nextIsNullable;
+  /** Whether a rule is nullable, by nonterminal code. */
+  private boolean[] isNullable;
+  /** Interned lookahead sets. */
+  private Map<TokenSet, TokenSet> tokenSets = new ConcurrentHashMap<>();
+  private ThreadLocal<Workspace> workspace = ThreadLocal.withInitial(() -> new Workspace());
+  /** States, by id. */
+  private List<State> states = new ArrayList<>();
+  /** States, by kernel items. There is more than one only when splitting states. */
+  private Map<Kernel, List<State>> kernelStates = new HashMap<>();
   private Set<State> statesTodo = new LinkedHashSet<>();
 
   private Map<Integer, Integer> forkId;
   private int[] forks;
 
   private ReduceArgument[] reduceArguments;
+  /** Reduction ids, by reduce argument, including those of collapsed reduction chains. */
+  private Map<ReduceArgument, Integer> reductionIdByArgument;
+  /** Number of transitions, where a chain of reductions was collapsed into one. */
+  private int reductionChains;
 
   private Map2D terminalTransitionData;
   private Map2D nonterminalTransitionData;
-
+  /** Reduction performed for an expected token without terminal transition, by state id. */
+  private int[] defaultReductions;
+  /** Action following a reduction without nonterminal transition, by nonterminal code. */
+  private int[] defaultGotos;
+
+  /** Whether lookaheads are calculated from relations, after LR(0) state construction. */
+  private boolean relationalLookaheads;
+  /** Whether states with the same kernel are kept separate, when merging them might cause conflicts. */
+  private boolean splitStates;
   private boolean verbose;
 
   private Generator() {
@@ -78,18 +121,36 @@ public class Generator {
   }
 
   public static Parser generate(Grammar g, Set<Option> options) {
+    return generate(g, options, null);
+  }
+
+  /**
+   * Generate a parser, and lay out its tables according to a profile, when
+   * given. The profile must have been recorded with a parser that was
+   * generated from the same grammar, with the same options, and without a
+   * profile.
+   *
+   * @param g the BNF grammar
+   * @param options the generator options
+   * @param profile the profile, or null
+   * @return the parser
+   * @throws BlitzException if the profile does not match the parser tables
+   */
+  public static Parser generate(Grammar g, Set<Option> options, Profile profile) throws BlitzException {
     Generator ci  = new Generator();
     ci.verbose = options.contains(Option.VERBOSE);
-    ci.grammar = g;
+    ci.grammar = options.contains(Option.OPTIMIZE)
+               ? OptimizeGrammar.process(g)
+               : g;
 
     if (ci.verbose) {
       System.err.println();
-      System.err.println("BNF grammar:");
-      System.err.println("------------");
-      System.err.println(g);
+      System.err.println(options.contains(Option.OPTIMIZE) ? "optimized BNF grammar:" : "BNF grammar:");
+      System.err.println(options.contains(Option.OPTIMIZE) ? "----------------------" : "------------");
+      System.err.println(ci.grammar);
     }
 
-    ci.new SymbolCodeAssigner().visit(g);
+    ci.new SymbolCodeAssigner().visit(ci.grammar);
 
     if (options.contains(Option.VERBOSE)) {
       System.err.println();
@@ -98,31 +159,10 @@ public class Generator {
       ci.terminalCode.forEach((k, v) -> System.err.println(v + ": " + k));
     }
 
-    ci.reduceArguments = ci.reduceArguments();
-    ci.collectFirst();
-
-    Term startNode = g.getRules().values().iterator().next().getAlts().getAlts().get(0).getTerms().get(0);
-    Integer endToken = ci.terminalCode.get(Charset.END.getRangeSet());
-    State initialState = ci.new State();
-    initialState.put(startNode, new TokenSet(endToken));
-    initialState.id = 0;
-    ci.states.put(initialState, initialState);
-    ci.statesTodo.add(initialState);
-
-    ci.forks = new int[32];
-    Comparator<Integer> forkComparator = (lhs, rhs) ->
-      Arrays.compare(ci.forks, 2 * lhs, 2 * lhs + 2, ci.forks, 2 * rhs, 2 * rhs + 2);
-    ci.forkId = new TreeMap<>(forkComparator);
-
-    while (! ci.statesTodo.isEmpty()) {
-      State s = ci.statesTodo.iterator().next();
-      ci.statesTodo.remove(s);
-      s.close();
-      s.transitions();
-    }
-
-    ci.forks = Arrays.copyOf(ci.forks, 2 * ci.forkId.size());
+    if (options.contains(Option.LAZY))
+      return ci.lazyParser(options);
 
+    ci.constructStates(options);
     ci.parserData();
 
     // report status
@@ -131,7 +171,39 @@ public class Generator {
       System.err.println();
       System.err.println(ci.states.size() + " states (not counting LR(0) reduce states)");
       System.err.println(ci.reduceArguments.length + " reduce arguments");
+      System.err.println(ci.reductionChains + " transitions with collapsed reduction chains");
       System.err.println(ci.forks.length / 2 + " forks");
+      if (options.contains(Option.MINIMAL_LR1)) {
+        Set<Option> lalrOptions = EnumSet.noneOf(Option.class);
+        lalrOptions.addAll(options);
+        lalrOptions.remove(Option.MINIMAL_LR1);
+        lalrOptions.remove(Option.VERBOSE);
+        // compare with the same grammar, without touching the nodes of the one in use
+        Generator lalr = new Generator();
+        lalr.grammar = ci.grammar.copy();
+        lalr.grammar.setAdditionalNames(ci.grammar.getAdditionalNames());
+        PostProcess.process(lalr.grammar);
+        lalr.new SymbolCodeAssigner().visit(lalr.grammar);
+        lalr.constructStates(lalrOptions);
+        System.err.println(ci.conflicts() + " conflicts in " + ci.states.size() + " states, "
+            + (lalr.conflicts() - ci.conflicts()) + " conflicts eliminated compared to "
+            + lalr.conflicts() + " in " + lalr.states.size() + " LALR(1) states");
+      }
+
+      if (options.contains(Option.OPTIMIZE)) {
+        Set<Option> unoptimizedOptions = EnumSet.noneOf(Option.class);
+        unoptimizedOptions.addAll(options);
+        unoptimizedOptions.remove(Option.OPTIMIZE);
+        unoptimizedOptions.remove(Option.VERBOSE);
+        Generator unoptimized = new Generator();
+        unoptimized.grammar = g;
+        unoptimized.new SymbolCodeAssigner().visit(g);
+        unoptimized.constructStates(unoptimizedOptions);
+        System.err.println(ci.grammar.getRules().size() + " rules, " + ci.states.size() + " states, and "
+            + ci.forks.length / 2 + " forks after grammar optimization, compared to "
+            + g.getRules().size() + " rules, " + unoptimized.states.size() + " states, and "
+            + unoptimized.forks.length / 2 + " forks before");
+      }
 
       for (int i = 0; i < ci.forks.length / 2; ++i) {
         System.err.println("\nfork " + i + ":");
@@ -148,82 +220,548 @@ public class Generator {
         }
       }
 
-      for (State state : ci.states.keySet())
+      for (State state : ci.states)
         System.err.println("\nstate " + state.id + ":\n" + state);
     }
 
-    final BitSet[] expectedTokens = new BitSet[ci.states.size()];
-    for (State state : ci.states.keySet()) {
-      expectedTokens[state.id] = new BitSet(ci.terminalCode.size());
-      state.terminalTransitions.keySet().forEach(expectedTokens[state.id]::set);
-      state.reductions.keySet().forEach(expectedTokens[state.id]::set);
+    final BitSet[] stateExpectedTokens = new BitSet[ci.states.size()];
+    for (State state : ci.states) {
+      stateExpectedTokens[state.id] = new BitSet(ci.terminalCode.size());
+      state.expectedTokens(stateExpectedTokens[state.id]);
     }
+    final BitSet[] expectedTokens = profile == null
+        ? ci.mergeTerminals(ci.mergeStates(stateExpectedTokens))
+        : ci.renumber(ci.mergeTerminals(ci.mergeStates(stateExpectedTokens)), profile);
+    int transitions = ci.terminalTransitionData.size() + ci.nonterminalTransitionData.size();
+    ci.defaultActions(expectedTokens.length);
 
-    final int bmpMapEnd = 0xD800;
-    Function<Integer, TileIterator> tokenMapIterator =
-        bits -> TileIterator.of(ci.terminalCodeByRange, bmpMapEnd, bits, 0);
-    CompressedMap bmpMap = new CompressedMap(tokenMapIterator, 3);
+    Earley earley = ci.earley(options, expectedTokens.length);
 
-    int[] asciiMap = ci.asciiMap(bmpMap);
-    int[] smpMap = ci.supplementaryMap(bmpMapEnd);
+    if (ci.verbose) {
+      System.err.println();
+      System.err.println(expectedTokens.length + " states after merging " + (ci.states.size() - expectedTokens.length) + " equivalent states");
+      System.err.println(ci.terminalTransitionData.getEndY() + " tokens after merging " + (ci.terminal.length - ci.terminalTransitionData.getEndY()) + " equivalent terminals");
+      if (profile != null)
+        System.err.println("states and tokens renumbered by descending frequency in profile");
+      System.err.println(ci.terminalTransitionData.size() + ci.nonterminalTransitionData.size() + " transitions after removing "
+          + (transitions - ci.terminalTransitionData.size() - ci.nonterminalTransitionData.size()) + " default actions");
+      if (earley != null && earley.isPreferred())
+        System.err.println("parsing starts with the Earley parser, because of " + ci.forks.length / 2 + " forks in " + expectedTokens.length + " states");
+    }
+
+    final int charClassMapEnd = ci.charClassMapEnd();
+    boolean parallel = options.contains(Option.PARALLEL);
+    boolean fastTables = options.contains(Option.FAST_TABLES);
+    Function<Integer, TileIterator> tokenMapIterator =
+        bits -> TileIterator.of(ci.terminalCodeByRange, charClassMapEnd, bits, 0);
+    CompletableFuture<CompressedMap> charClassMapFuture = compressedMapFuture(tokenMapIterator, parallel, fastTables);
 
     Function<Integer, TileIterator> terminalTransitionIterator =
         bits -> TileIterator.of(ci.terminalTransitionData, bits, 0);
-    CompressedMap terminalTransitions = new CompressedMap(terminalTransitionIterator, 3);
+    CompletableFuture<CompressedMap> terminalTransitionsFuture = compressedMapFuture(terminalTransitionIterator, parallel, fastTables);
 
     Function<Integer, TileIterator> nonterminalTransitionIterator =
         bits -> TileIterator.of(ci.nonterminalTransitionData, bits, 0);
-    CompressedMap nonterminalTransitions = new CompressedMap(nonterminalTransitionIterator, 3);
+    CompletableFuture<CompressedMap> nonterminalTransitionsFuture = compressedMapFuture(nonterminalTransitionIterator, parallel, fastTables);
+
+    CompressedMap charClassMap = charClassMapFuture.join();
+    CompressedMap terminalTransitions = terminalTransitionsFuture.join();
+    CompressedMap nonterminalTransitions = nonterminalTransitionsFuture.join();
+
+    int[] asciiMap = ci.asciiMap(charClassMap);
 
     if (ci.verbose) {
       System.err.println();
-      System.err.println("size of token code map: " + bmpMap.data().length + ", shift: " + Arrays.toString(bmpMap.shift()));
+      System.err.println("size of token code map: " + charClassMap.data().length + ", shift: " + Arrays.toString(charClassMap.shift()) + ", end: " + charClassMapEnd);
       System.err.println("size of terminal transition map: " + terminalTransitions.data().length + ", shift: " + Arrays.toString(terminalTransitions.shift()));
       System.err.println("size of nonterminal transition map: " + nonterminalTransitions.data().length + ", shift: " + Arrays.toString(nonterminalTransitions.shift()));
       System.err.println();
     }
 
-    return new Parser(options,
-        asciiMap, bmpMap, smpMap,
+    int[][] asciiActions = fastTables
+        ? asciiActions(asciiMap, terminalTransitions, ci.terminalTransitionData.getEndY(), expectedTokens, ci.defaultReductions)
+        : null;
+
+    Parser parser = new Parser(options,
+        asciiMap, charClassMap, charClassMapEnd,
+        asciiActions,
         terminalTransitions, ci.terminalTransitionData.getEndY(),
         nonterminalTransitions, ci.nonterminalTransitionData.getEndY(),
+        ci.defaultReductions, ci.defaultGotos,
         ci.reduceArguments,
         ci.nonterminal,
         ci.terminal,
         ci.forks,
         expectedTokens,
         ci.grammar.isMismatch(),
-        ci.grammar.getVersion().isAtLeast(Grammar.Version.V1_1));
+        ci.grammar.getVersion().isAtLeast(Grammar.Version.V1_1),
+        earley);
+    return options.contains(Option.SPECIALIZE)
+         ? Specializer.specialize(parser, ci.verbose)
+         : parser;
+  }
+
+  /**
+   * Create a parser that constructs its states on demand. Only the character
+   * class map is created up front.
+   *
+   * @param options the generator options
+   * @return the parser
+   */
+  private Parser lazyParser(Set<Option> options) {
+    State initialState = initialState();
+    final int charClassMapEnd = charClassMapEnd();
+    CompressedMap charClassMap = compressedMap(
+        bits -> TileIterator.of(terminalCodeByRange, charClassMapEnd, bits, 0),
+        false,
+        options.contains(Option.FAST_TABLES));
+    if (verbose) {
+      System.err.println();
+      System.err.println("states are constructed on demand, while parsing");
+    }
+    return new LazyParser(options, asciiMap(charClassMap), charClassMap, charClassMapEnd, initialState);
+  }
+
+  /**
+   * Create the Earley parser for the grammar, that the GLR parser hands
+   * over to, when it runs too many threads. Parsing starts with the Earley
+   * parser, when there are many forks relative to the number of states, as
+   * then the number of threads is likely to grow quickly. Otherwise, it is
+   * created only when requested by {@link Option#EARLEY}.
+   *
+   * @param options the generator options
+   * @param numberOfStates the number of states, or 0, if unknown
+   * @return the Earley parser, or null
+   */
+  private Earley earley(Set<Option> options, int numberOfStates) {
+    boolean isPreferred = numberOfStates > 0 && forks.length / 2 > numberOfStates * EARLEY_FORK_DENSITY;
+    return isPreferred || options.contains(Option.EARLEY)
+         ? new Earley(itemKind, itemSymbol, ruleStartItems, isNullable, isPreferred)
+         : null;
+  }
+
+  /**
+   * Create a compressed map. When in parallel mode, this is done
+   * asynchronously, and candidate tile sizes are evaluated concurrently.
+   */
+  private static CompletableFuture<CompressedMap> compressedMapFuture(Function<Integer, TileIterator> iteratorSupplier, boolean parallel, boolean fastTables) {
+    return parallel
+         ? CompletableFuture.supplyAsync(() -> compressedMap(iteratorSupplier, true, fastTables))
+         : CompletableFuture.completedFuture(compressedMap(iteratorSupplier, false, fastTables));
+  }
+
+  /**
+   * Create a map in the fastest layout that fits into the table budget, when
+   * fast tables are requested, i.e. a dense map, or a single-level map, each
+   * with the narrowest data type. Otherwise, or when none of these fits,
+   * create a map with up to three levels.
+   */
+  private static CompressedMap compressedMap(Function<Integer, TileIterator> iteratorSupplier, boolean parallel, boolean fastTables) {
+    if (fastTables) {
+      TileIterator it = iteratorSupplier.apply(0);
+      if (it.end() <= FAST_TABLE_BUDGET) {
+        CompressedMap dense = CompressedMap.dense(it).narrow();
+        if (dense.byteSize() <= FAST_TABLE_BUDGET)
+          return dense;
+      }
+      CompressedMap singleLevel = new CompressedMap(iteratorSupplier, 1, parallel).narrow();
+      if (singleLevel.byteSize() <= FAST_TABLE_BUDGET)
+        return singleLevel;
+    }
+    return new CompressedMap(iteratorSupplier, 3, parallel);
+  }
+
+  private void constructStates(Set<Option> options) {
+    relationalLookaheads = options.contains(Option.RELATIONAL_LALR) && ! options.contains(Option.MINIMAL_LR1);
+    splitStates = options.contains(Option.MINIMAL_LR1);
+    State initialState = initialState();
+    states.add(initialState);
+    kernelStates.put(new Kernel(initialState.kernel), new ArrayList<>(List.of(initialState)));
+    statesTodo.add(initialState);
+
+    if (options.contains(Option.PARALLEL)) {
+      constructStatesInParallel();
+    }
+    else {
+      while (! statesTodo.isEmpty()) {
+        State s = statesTodo.iterator().next();
+        statesTodo.remove(s);
+        s.successors();
+        s.resolve();
+      }
+    }
+
+    if (relationalLookaheads)
+      lalrLookaheads(terminalCode.get(Charset.END.getRangeSet()));
+
+    forks = Arrays.copyOf(forks, 2 * forkId.size());
   }
 
-  private int[] asciiMap(CompressedMap bmpMap) {
+  /**
+   * Prepare the grammar analysis for state construction, and create the
+   * initial state, with id 0.
+   *
+   * @return the initial state
+   */
+  private State initialState() {
+    reduceArguments = reduceArguments();
+    assignItemIds();
+    collectFirst();
+    collectFirstOfNext();
+
+    forks = new int[32];
+    Comparator<Integer> forkComparator = (lhs, rhs) ->
+      Arrays.compare(forks, 2 * lhs, 2 * lhs + 2, forks, 2 * rhs, 2 * rhs + 2);
+    forkId = new TreeMap<>(forkComparator);
+
+    Term startNode = grammar.getRules().values().iterator().next().getAlts().getAlts().get(0).getTerms().get(0);
+    Integer endToken = terminalCode.get(Charset.END.getRangeSet());
+    State initialState = new State();
+    initialState.add(startNode.getItemId(), intern(relationalLookaheads ? new TokenSet() : new TokenSet(endToken)));
+    initialState.completeKernel();
+    initialState.id = 0;
+    return initialState;
+  }
+
+  private int conflicts() {
+    return states.stream()
+        .mapToInt(state -> state.conflictTokens.length)
+        .sum();
+  }
+
+  /**
+   * Construct states like the serial loop, but close and expand batches of
+   * pending states concurrently. The results are then resolved serially, in
+   * the order of the serial loop. A state whose kernel lookahead was extended
+   * by the resolution of a preceding state in the same batch is recalculated,
+   * so state numbering and tables are identical to those of the serial loop.
+   */
+  private void constructStatesInParallel() {
+    while (! statesTodo.isEmpty()) {
+      List<State> batch = statesTodo.stream()
+          .limit(PARALLEL_BATCH_SIZE)
+          .collect(Collectors.toList());
+      List<List<TokenSet>> lookaheads = batch.stream()
+          .map(State::lookaheads)
+          .collect(Collectors.toList());
+      batch.parallelStream().forEach(State::successors);
+      for (int i = 0; i < batch.size(); ++i) {
+        State s = batch.get(i);
+        statesTodo.remove(s);
+        if (! s.lookaheads().equals(lookaheads.get(i)))
+          s.successors();
+        s.resolve();
+      }
+    }
+  }
+
+  /**
+   * Create fused action tables, that map ASCII characters directly to the
+   * terminal action, for the states with the most ASCII transitions, as far
+   * as they fit into the table budget.
+   *
+   * @return the fused action tables by state, null for any state without one
+   */
+  private static int[][] asciiActions(int[] asciiMap, CompressedMap terminalTransitions, int numberOfTokens,
+      BitSet[] expectedTokens, int[] defaultReductions) {
+    int numberOfStates = expectedTokens.length;
+    int[][] asciiActions = new int[numberOfStates][];
+    int[] transitions = new int[numberOfStates];
+    for (int state = 0; state < numberOfStates; ++state) {
+      int[] actions = new int[asciiMap.length];
+      for (int c = 0; c < asciiMap.length; ++c) {
+        if (asciiMap[c] > 0) {
+          actions[c] = terminalTransitions.get(state * numberOfTokens + asciiMap[c]);
+          if (actions[c] == 0 && expectedTokens[state].get(asciiMap[c]))
+            actions[c] = defaultReductions[state];
+          if (actions[c] != 0)
+            ++transitions[state];
+        }
+      }
+      asciiActions[state] = actions;
+    }
+    int maxStates = FAST_TABLE_BUDGET / (asciiMap.length * Integer.BYTES);
+    if (numberOfStates > maxStates) {
+      Integer[] byTransitions = new Integer[numberOfStates];
+      for (int state = 0; state < numberOfStates; ++state)
+        byTransitions[state] = state;
+      Arrays.sort(byTransitions, Comparator.comparing((Integer state) -> transitions[state]).reversed());
+      for (int i = maxStates; i < numberOfStates; ++i)
+        asciiActions[byTransitions[i]] = null;
+    }
+    for (int state = 0; state < numberOfStates; ++state)
+      if (transitions[state] == 0)
+        asciiActions[state] = null;
+    return asciiActions;
+  }
+
+  /**
+   * Merge equivalent states, i.e. states that have the same expected tokens,
+   * and the same actions, where shifts to equivalent states are considered
+   * equal. The equivalence classes are found by partition refinement,
+   * starting from classes of states with the same expected tokens. The
+   * transition data, and the shifts in forks, are then rewritten to use
+   * class ids as state ids. These are assigned in order of the original
+   * state ids, so the initial state keeps id 0.
+   *
+   * @param expectedTokens the expected tokens, by state id
+   * @return the expected tokens, by merged state id
+   */
+  private BitSet[] mergeStates(BitSet[] expectedTokens) {
+    int numberOfStates = expectedTokens.length;
+    int[] stateClass = new int[numberOfStates];
+    Map<BitSet, Integer> classByExpectedTokens = new HashMap<>();
+    for (int state = 0; state < numberOfStates; ++state) {
+      Integer id = classByExpectedTokens.putIfAbsent(expectedTokens[state], classByExpectedTokens.size());
+      stateClass[state] = id == null ? classByExpectedTokens.size() - 1 : id;
+    }
+    for (int numberOfClasses = classByExpectedTokens.size(); ; ) {
+      Map<List<Integer>, Integer> classBySignature = new HashMap<>();
+      int[] refinedClass = new int[numberOfStates];
+      for (int state = 0; state < numberOfStates; ++state) {
+        List<Integer> signature = new ArrayList<>();
+        signature.add(stateClass[state]);
+        addTransitions(signature, terminalTransitionData, state, stateClass);
+        signature.add(-1);
+        addTransitions(signature, nonterminalTransitionData, state, stateClass);
+        Integer id = classBySignature.putIfAbsent(signature, classBySignature.size());
+        refinedClass[state] = id == null ? classBySignature.size() - 1 : id;
+      }
+      stateClass = refinedClass;
+      if (classBySignature.size() == numberOfClasses)
+        break;
+      numberOfClasses = classBySignature.size();
+    }
+
+    int numberOfClasses = Arrays.stream(stateClass).max().orElse(-1) + 1;
+    if (numberOfClasses == numberOfStates)
+      return expectedTokens;
+    BitSet[] classExpectedTokens = new BitSet[numberOfClasses];
+    Map2D terminalData = new Map2D(numberOfClasses, terminalTransitionData.getEndY());
+    Map2D nonterminalData = new Map2D(numberOfClasses, nonterminalTransitionData.getEndY());
+    for (int state = 0; state < numberOfStates; ++state) {
+      int id = stateClass[state];
+      if (classExpectedTokens[id] == null) {
+        classExpectedTokens[id] = expectedTokens[state];
+        for (int i = 0; i < terminalTransitionData.rowSize(state); ++i)
+          terminalData.put(id, terminalTransitionData.column(state, i), mergedCode(terminalTransitionData.value(state, i), stateClass));
+        for (int i = 0; i < nonterminalTransitionData.rowSize(state); ++i)
+          nonterminalData.put(id, nonterminalTransitionData.column(state, i), mergedCode(nonterminalTransitionData.value(state, i), stateClass));
+      }
+    }
+    terminalTransitionData = terminalData;
+    nonterminalTransitionData = nonterminalData;
+    for (int i = 0; i < forks.length; ++i)
+      forks[i] = mergedCode(forks[i], stateClass);
+    return classExpectedTokens;
+  }
+
+  private static void addTransitions(List<Integer> signature, Map2D data, int state, int[] stateClass) {
+    for (int i = 0; i < data.rowSize(state); ++i) {
+      signature.add(data.column(state, i));
+      signature.add(mergedCode(data.value(state, i), stateClass));
+    }
+  }
+
+  private static int mergedCode(int code, int[] stateClass) {
+    return (code & ((1 << Action.Type.BITS) - 1)) == Action.Type.SHIFT.ordinal()
+         ? Action.code(Action.Type.SHIFT, stateClass[code >> Action.Type.BITS])
+         : code;
+  }
+
+  /**
+   * Merge equivalent terminals, i.e. terminals that have the same transitions
+   * in all states, and that are expected in the same states, by mapping
+   * their character classes to the same token code. Token codes are
+   * renumbered in order of the original codes, so they stay dense. The end
+   * of input keeps code 0, and is never merged, because the parser uses that
+   * code for any character that is not covered by a terminal. The terminal
+   * array is left unchanged, so the parser can still report the original
+   * terminals in messages.
+   *
+   * @param expectedTokens the expected tokens, by state id
+   * @return the expected tokens, by state id, using the merged terminal codes
+   */
+  private BitSet[] mergeTerminals(BitSet[] expectedTokens) {
+    int numberOfStates = expectedTokens.length;
+    int numberOfTerminals = terminalTransitionData.getEndY();
+    List<List<Integer>> signature = new ArrayList<>();
+    for (int token = 0; token < numberOfTerminals; ++token)
+      signature.add(new ArrayList<>());
+    for (int state = 0; state < numberOfStates; ++state) {
+      for (int i = 0; i < terminalTransitionData.rowSize(state); ++i) {
+        List<Integer> column = signature.get(terminalTransitionData.column(state, i));
+        column.add(state);
+        column.add(terminalTransitionData.value(state, i));
+      }
+    }
+    for (List<Integer> column : signature)
+      column.add(-1);
+    for (int state = 0; state < numberOfStates; ++state)
+      for (int token = expectedTokens[state].nextSetBit(0); token >= 0; token = expectedTokens[state].nextSetBit(token + 1))
+        signature.get(token).add(state);
+
+    int[] mergedCode = new int[numberOfTerminals];
+    Map<List<Integer>, Integer> codeBySignature = new HashMap<>();
+    for (int token = 1; token < numberOfTerminals; ++token) {
+      Integer code = codeBySignature.putIfAbsent(signature.get(token), codeBySignature.size() + 1);
+      mergedCode[token] = code == null ? codeBySignature.size() : code;
+    }
+    int numberOfCodes = codeBySignature.size() + 1;
+    if (numberOfCodes == numberOfTerminals)
+      return expectedTokens;
+
+    terminalCodeByRange.replaceAll((range, token) -> mergedCode[token]);
+
+    Map2D terminalData = new Map2D(numberOfStates, numberOfCodes);
+    BitSet[] mergedExpectedTokens = new BitSet[numberOfStates];
+    for (int state = 0; state < numberOfStates; ++state) {
+      for (int i = 0; i < terminalTransitionData.rowSize(state); ++i)
+        terminalData.put(state, mergedCode[terminalTransitionData.column(state, i)], terminalTransitionData.value(state, i));
+      mergedExpectedTokens[state] = new BitSet(numberOfCodes);
+      for (int token = expectedTokens[state].nextSetBit(0); token >= 0; token = expectedTokens[state].nextSetBit(token + 1))
+        mergedExpectedTokens[state].set(mergedCode[token]);
+    }
+    terminalTransitionData = terminalData;
+    return mergedExpectedTokens;
+  }
+
+  /**
+   * Renumber states and tokens by descending frequency in a profile, so the
+   * table entries that are used most are close to each other, and thus
+   * likely share tiles in the compressed maps, and cache lines at parse
+   * time. The initial state keeps id 0, and the end of input keeps token
+   * code 0. Ties are broken by the original numbering.
+   *
+   * @param expectedTokens the expected tokens, by state id
+   * @param profile the profile
+   * @return the expected tokens, by renumbered state id, using the renumbered token codes
+   */
+  private BitSet[] renumber(BitSet[] expectedTokens, Profile profile) {
+    int numberOfStates = expectedTokens.length;
+    int numberOfTokens = terminalTransitionData.getEndY();
+    if (profile.numberOfStates() != numberOfStates || profile.numberOfTokens() != numberOfTokens)
+      throw new BlitzException("Profile with " + profile.numberOfStates() + " states and "
+          + profile.numberOfTokens() + " tokens does not match parser with "
+          + numberOfStates + " states and " + numberOfTokens + " tokens");
+    int[] stateId = byDescendingCount(numberOfStates, profile::stateCount);
+    int[] tokenCode = byDescendingCount(numberOfTokens, profile::tokenCount);
+
+    terminalCodeByRange.replaceAll((range, token) -> tokenCode[token]);
+
+    BitSet[] renumberedExpectedTokens = new BitSet[numberOfStates];
+    Map2D terminalData = new Map2D(numberOfStates, numberOfTokens);
+    Map2D nonterminalData = new Map2D(numberOfStates, nonterminalTransitionData.getEndY());
+    for (int state = 0; state < numberOfStates; ++state) {
+      int id = stateId[state];
+      renumberedExpectedTokens[id] = new BitSet(numberOfTokens);
+      for (int token = expectedTokens[state].nextSetBit(0); token >= 0; token = expectedTokens[state].nextSetBit(token + 1))
+        renumberedExpectedTokens[id].set(tokenCode[token]);
+      for (int i = 0; i < terminalTransitionData.rowSize(state); ++i)
+        terminalData.put(id, tokenCode[terminalTransitionData.column(state, i)], mergedCode(terminalTransitionData.value(state, i), stateId));
+      for (int i = 0; i < nonterminalTransitionData.rowSize(state); ++i)
+        nonterminalData.put(id, nonterminalTransitionData.column(state, i), mergedCode(nonterminalTransitionData.value(state, i), stateId));
+    }
+    terminalTransitionData = terminalData;
+    nonterminalTransitionData = nonterminalData;
+    for (int i = 0; i < forks.length; ++i)
+      forks[i] = mergedCode(forks[i], stateId);
+    return renumberedExpectedTokens;
+  }
+
+  /**
+   * Assign new ids to the ids 1 to size - 1, in order of descending count.
+   * Id 0 is kept.
+   *
+   * @return the new ids, by original id
+   */
+  private static int[] byDescendingCount(int size, Function<Integer, Long> count) {
+    Integer[] order = new Integer[size];
+    for (int i = 0; i < size; ++i)
+      order[i] = i;
+    Arrays.sort(order, 1, size, Comparator.comparing(count).reversed());
+    int[] newId = new int[size];
+    for (int i = 0; i < size; ++i)
+      newId[order[i]] = i;
+    return newId;
+  }
+
+  /**
+   * Remove the most frequent reduction of each state from the terminal
+   * transitions, and the most frequent action of each nonterminal from the
+   * nonterminal transitions, and keep them as default actions instead. The
+   * parser uses the default reduction only for an expected token, so errors
+   * are still detected in the same state, with the same expected tokens.
+   * Nonterminal transitions are only looked up following a reduction, when
+   * there always is one, so the default action of the nonterminal applies,
+   * when none is found.
+   *
+   * @param numberOfStates the number of states
+   */
+  private void defaultActions(int numberOfStates) {
+    defaultReductions = new int[numberOfStates];
+    Map2D terminalData = new Map2D(numberOfStates, terminalTransitionData.getEndY());
+    for (int state = 0; state < numberOfStates; ++state) {
+      Map<Integer, Integer> count = new HashMap<>();
+      int maxCount = 0;
+      for (int i = 0; i < terminalTransitionData.rowSize(state); ++i) {
+        int code = terminalTransitionData.value(state, i);
+        if ((code & ((1 << Action.Type.BITS) - 1)) == Action.Type.REDUCE.ordinal()) {
+          int c = count.merge(code, 1, Integer::sum);
+          if (c > maxCount) {
+            maxCount = c;
+            defaultReductions[state] = code;
+          }
+        }
+      }
+      for (int i = 0; i < terminalTransitionData.rowSize(state); ++i)
+        if (terminalTransitionData.value(state, i) != defaultReductions[state])
+          terminalData.put(state, terminalTransitionData.column(state, i), terminalTransitionData.value(state, i));
+    }
+    terminalTransitionData = terminalData;
+
+    int numberOfNonterminals = nonterminalTransitionData.getEndY();
+    defaultGotos = new int[numberOfNonterminals];
+    List<Map<Integer, Integer>> count = new ArrayList<>();
+    int[] maxCount = new int[numberOfNonterminals];
+    for (int n = 0; n < numberOfNonterminals; ++n)
+      count.add(new HashMap<>());
+    for (int state = 0; state < numberOfStates; ++state) {
+      for (int i = 0; i < nonterminalTransitionData.rowSize(state); ++i) {
+        int n = nonterminalTransitionData.column(state, i);
+        int code = nonterminalTransitionData.value(state, i);
+        int c = count.get(n).merge(code, 1, Integer::sum);
+        if (c > maxCount[n]) {
+          maxCount[n] = c;
+          defaultGotos[n] = code;
+        }
+      }
+    }
+    Map2D nonterminalData = new Map2D(numberOfStates, numberOfNonterminals);
+    for (int state = 0; state < numberOfStates; ++state)
+      for (int i = 0; i < nonterminalTransitionData.rowSize(state); ++i)
+        if (nonterminalTransitionData.value(state, i) != defaultGotos[nonterminalTransitionData.column(state, i)])
+          nonterminalData.put(state, nonterminalTransitionData.column(state, i), nonterminalTransitionData.value(state, i));
+    nonterminalTransitionData = nonterminalData;
+  }
+
+  private int[] asciiMap(CompressedMap charClassMap) {
     int[] asciiMap = new int[128];
     for (int i = 0; i < asciiMap.length; ++i)
-      asciiMap[i] = bmpMap.get(i);
+      asciiMap[i] = charClassMap.get(i);
     return asciiMap;
   }
 
-  private int[] supplementaryMap(final int firstValue) {
-    Range firstKey = terminalCodeByRange.floorKey(new Range(firstValue));
-    if (firstKey == null)
-      return new int[0];
-    if (firstValue > firstKey.getLastCodepoint()) {
-      firstKey = terminalCodeByRange.higherKey(firstKey);
-      if (firstKey == null)
-        return new int[0];
-    }
-    SortedMap<Range, Integer> tailMap = terminalCodeByRange.tailMap(firstKey);
-    final var count = tailMap.size();
-    int[] rangeMap = new int[3 * count];
-    int i = 0;
-    for (Iterator<Entry<Range, Integer>> iterator = tailMap.entrySet().iterator(); iterator.hasNext();  ++i) {
-      Entry<Range, Integer> entry = iterator.next();
-      Range range = entry.getKey();
-      rangeMap[i] = Math.max(firstValue, range.getFirstCodepoint());
-      rangeMap[count + i] = range.getLastCodepoint();
-      rangeMap[count + count + i] = entry.getValue();
-    }
-    return rangeMap;
+  /**
+   * Get the end of the character class map, i.e. the end of the highest
+   * plane that contains any terminal codepoint, but at least the end of the
+   * BMP. Codepoints beyond that are rejected without a map lookup.
+   */
+  private int charClassMapEnd() {
+    if (terminalCodeByRange.isEmpty())
+      return 0x10000;
+    int lastCodepoint = terminalCodeByRange.lastKey().getLastCodepoint();
+    return Math.max(0x10000, (lastCodepoint >> 16) + 1 << 16);
   }
 
   private String toString(ReduceArgument reduceArgument) {
@@ -239,182 +777,252 @@ public class Generator {
 
   private class State {
     private int id;
-    /** Kernel items, position and lookahead. */
-    private Map<Node, TokenSet> kernel;
-    /** Closure items, position and lookahead. */
-    private Map<Node, TokenSet> closure;
-    /** Terminal transitions, token code and target state */
-    private Map<Integer, State> terminalTransitions;
-    /** Nonterminal transitions, token code and target state */
-    private Map<Integer, State> nonterminalTransitions;
-    /** Reductions, token code and reduced alternative. */
-    private Map<Integer, List<Alt>> reductions;
-    /** Conflicts, token codes and fork id. */
-    private Map<Integer, Integer> conflicts;
+    /** Kernel item ids, in ascending order. */
+    private int[] kernel;
+    /** Kernel item lookaheads, interned. */
+    private TokenSet[] kernelLookahead;
+    /** Number of kernel items, while the kernel is being collected. */
+    private int kernelSize;
+    /** Closure item ids and lookaheads, retained for verbose output only. */
+    private int[] closure;
+    private TokenSet[] closureLookahead;
+    /** Terminal transitions, token codes in ascending order and target states. */
+    private int[] terminalCodes;
+    private State[] terminalTargets;
+    /** Nonterminal transitions, nonterminal codes in ascending order and target states. */
+    private int[] nonterminalCodes;
+    private State[] nonterminalTargets;
+    /** Reductions, token codes in ascending order, and offsets into reduced reduction ids. */
+    private int[] reductionTokens;
+    private int[] reductionOffsets;
+    private int[] reductionIds;
+    /** Conflicts, token codes in ascending order and fork ids. */
+    private int[] conflictTokens;
+    private int[] conflictForks;
+    private boolean isLr0ReduceState;
 
     public State() {
-      kernel = new IdentityHashMap<>();
+      kernel = new int[2];
+      kernelLookahead = new TokenSet[2];
     }
 
     public boolean isLr0ReduceState() {
-      if (kernel.size() != 1)
-        return false;
-      Node node = kernel.keySet().iterator().next();
-      if (! (node instanceof Alt || node instanceof Insertion))
-        return false;
-      Alt alt = node instanceof Alt
-              ? (Alt) node
-              : (Alt) node.getParent();
-      return reduceArguments[alt.getReductionId()].getNonterminalId() != 0;
-    }
-
-    public void close() {
-      closure = new IdentityHashMap<>();
-      Deque<Map.Entry<Node, TokenSet>> todo = kernel.entrySet().stream()
-          .filter(e -> e.getKey() instanceof Nonterminal)
-          .collect(Collectors.toCollection(LinkedList::new));
-      for (Map.Entry<Node, TokenSet> item; null != (item = todo.poll()); ) {
-        Nonterminal nonterminal = (Nonterminal) item.getKey();
-        TokenSet lookahead = item.getValue();
-        Node next = nonterminal.getNext();
-        if (next != null)
-          lookahead = first(next, lookahead);
-        for (Alt alt : nonterminal.getGrammar().getRule(nonterminal.getName()).getAlts().getAlts()) {
-          Node closureItemNode = alt.getTerms().isEmpty()
-                               ? alt
-                               : alt.getTerms().get(0);
-          TokenSet closureLookahead = closure.get(closureItemNode);
-          if (closureLookahead != null) {
-            if (! closureLookahead.containsAll(lookahead)) {
-              // existing node, new lookahead
-              closureLookahead.addAll(lookahead);
-              if (closureItemNode instanceof Nonterminal)
-                todo.add(Map.entry(closureItemNode, lookahead));
-            }
-          }
-          else if (closureItemNode == alt) {
-            closure.put(alt, new TokenSet(lookahead));
+      return isLr0ReduceState;
+    }
+
+    private void add(int itemId, TokenSet lookahead) {
+      if (kernelSize == kernel.length) {
+        kernel = Arrays.copyOf(kernel, kernelSize << 1);
+        kernelLookahead = Arrays.copyOf(kernelLookahead, kernelSize << 1);
+      }
+      kernel[kernelSize] = itemId;
+      kernelLookahead[kernelSize++] = lookahead;
+    }
+
+    private void completeKernel() {
+      int size = 0;
+      for (int i = 0; i < kernelSize; ++i) {
+        int itemId = kernel[i];
+        TokenSet lookahead = kernelLookahead[i];
+        int j = size;
+        while (j > 0 && kernel[j - 1] > itemId)
+          --j;
+        if (j > 0 && kernel[j - 1] == itemId) {
+          // same item from kernel and closure
+          TokenSet union = new TokenSet(kernelLookahead[j - 1]);
+          union.addAll(lookahead);
+          kernelLookahead[j - 1] = intern(union);
+        }
+        else {
+          System.arraycopy(kernel, j, kernel, j + 1, size - j);
+          System.arraycopy(kernelLookahead, j, kernelLookahead, j + 1, size - j);
+          kernel[j] = itemId;
+          kernelLookahead[j] = lookahead;
+          ++size;
+        }
+      }
+      kernel = Arrays.copyOf(kernel, size);
+      kernelLookahead = Arrays.copyOf(kernelLookahead, size);
+      kernelSize = size;
+      isLr0ReduceState = size == 1
+          && itemKind[kernel[0]] == REDUCE_ITEM
+          && reduceArguments[itemSymbol[kernel[0]]].getNonterminalId() != 0;
+    }
+
+    private void close(Workspace w) {
+      for (int k = 0; k < kernel.length; ++k)
+        if (itemKind[kernel[k]] == NONTERMINAL_ITEM)
+          w.push(kernel[k], kernelLookahead[k]);
+      while (w.todoSize > 0) {
+        int itemId = w.todoItems[--w.todoSize];
+        TokenSet lookahead = w.todoLookaheads[w.todoSize];
+        w.todoLookaheads[w.todoSize] = null;
+        if (relationalLookaheads) {
+          // LR(0) item, lookaheads are calculated after state construction
+        }
+        else if (! nextIsNullable[itemId] || firstOfNext[itemId].containsAll(lookahead)) {
+          lookahead = firstOfNext[itemId];
+        }
+        else {
+          TokenSet union = new TokenSet(firstOfNext[itemId]);
+          union.addAll(lookahead);
+          lookahead = union;
+        }
+        for (int closureItem : ruleStartItems[itemSymbol[itemId]]) {
+          TokenSet closureLookahead = w.closureLookahead[closureItem];
+          if (closureLookahead == null) {
+            // new item
+            w.closureLookahead[closureItem] = new TokenSet(lookahead);
+            w.closureItems[w.closureSize++] = closureItem;
+            if (itemKind[closureItem] == NONTERMINAL_ITEM)
+              w.push(closureItem, lookahead);
           }
-          else {
-            closure.put(closureItemNode, new TokenSet(lookahead));
-            // new node
-            if (closureItemNode instanceof Nonterminal)
-              todo.add(Map.entry(closureItemNode, new TokenSet(lookahead)));
+          else if (! closureLookahead.containsAll(lookahead)) {
+            // existing item, new lookahead
+            closureLookahead.addAll(lookahead);
+            if (itemKind[closureItem] == NONTERMINAL_ITEM)
+              w.push(closureItem, lookahead);
           }
         }
       }
+      Arrays.sort(w.closureItems, 0, w.closureSize);
+      for (int k = 0; k < w.closureSize; ++k) {
+        int closureItem = w.closureItems[k];
+        w.closureLookahead[closureItem] = intern(w.closureLookahead[closureItem]);
+      }
     }
 
-    public void transitions() {
-      terminalTransitions = new HashMap<>();
-      nonterminalTransitions = new HashMap<>();
-      reductions = new HashMap<>();
+    public List<TokenSet> lookaheads() {
+      return Arrays.asList(kernelLookahead.clone());
+    }
+
+    public void successors() {
+      Workspace w = workspace.get();
+      close(w);
 
       // calculate follow-up states
 
-      Stream.concat(
-          kernel.entrySet().stream(),
-          closure.entrySet().stream()
-        )
-        .forEach(e -> {
-          Node node = e.getKey();
-          TokenSet lookahead = e.getValue();
-          if (node instanceof Alt || node instanceof Insertion) {
-            Alt alt = node instanceof Alt
-                    ? (Alt) node
-                    : (Alt) node.getParent();
-            for (int token = lookahead.nextToken(EPSILON); token >= EPSILON; token = lookahead.nextToken(token + 1))
-              reductions.compute(token, (k, v) -> {
-                if (v == null)
-                  v = new ArrayList<>();
-                v.add(alt);
-                return v;
-              });
-          }
-          else {
-            Node next = node.getNext() != null
-                ? node.getNext()
-                : node.getParent();
-            Map<Integer, State> transitions;
-            Integer code;
-            if (node instanceof Nonterminal) {
-              code = nonterminalCode.get(((Nonterminal) node).getName());
-              transitions = nonterminalTransitions;
-            }
-            else if (node instanceof Charset) {
-              code = terminalCode.get(((Charset) node).getRangeSet());
-              transitions = terminalTransitions;
-            }
-            else {
-              throw new IllegalStateException("Unexpected type: " + node.getClass().getSimpleName());
-            }
-            transitions.compute(code, (k, v) -> {
-              if (v == null) {
-                v = new State();
-                v.put(next, new TokenSet(lookahead));
-              }
-              else {
-                TokenSet tokenSet = v.kernel.get(next);
-                if (tokenSet == null)
-                  v.put(next, new TokenSet(lookahead));
-                else
-                  tokenSet.addAll(lookahead);
-              }
-              return v;
-            });
-          }
-        });
-
-      // resolve follow-up states
-
-      for (Map<Integer, State> transitions : Arrays.asList(
-          nonterminalTransitions,
-          terminalTransitions
-      )) {
-        for (Map.Entry<Integer, State> e : transitions.entrySet()) {
-          State newState = e.getValue();
-          if (! newState.isLr0ReduceState()) {
-            State state = states.putIfAbsent(newState, newState);
-            if (state == null) {
-              newState.id = states.size() - 1;
-              statesTodo.add(newState);
-            }
-            else {
-              Integer code = e.getKey();
-              transitions.put(code, state);
-              for (Map.Entry<Node, TokenSet> k : newState.kernel.entrySet()) {
-                TokenSet lookahead = state.kernel.get(k.getKey());
-                if (! lookahead.containsAll(k.getValue())) {
-                  lookahead.addAll(k.getValue());
-                  statesTodo.add(state);
-                }
-              }
-            }
-          }
-        }
+      for (int k = 0; k < kernel.length; ++k)
+        successor(w, kernel[k], kernelLookahead[k]);
+      for (int k = 0; k < w.closureSize; ++k)
+        successor(w, w.closureItems[k], w.closureLookahead[w.closureItems[k]]);
+
+      terminalCodes = w.codes(w.terminalCodes, w.terminalCodeSize);
+      terminalTargets = w.targets(w.terminalTarget, terminalCodes);
+      nonterminalCodes = w.codes(w.nonterminalCodes, w.nonterminalCodeSize);
+      nonterminalTargets = w.targets(w.nonterminalTarget, nonterminalCodes);
+      reductions(w);
+
+      if (verbose) {
+        closure = Arrays.copyOf(w.closureItems, w.closureSize);
+        closureLookahead = new TokenSet[closure.length];
+        for (int k = 0; k < closure.length; ++k)
+          closureLookahead[k] = w.closureLookahead[closure[k]];
       }
+      w.clear();
+    }
 
-      conflicts = new LinkedHashMap<>();
-      Set<Integer> conflictTokens = new HashSet<>(terminalTransitions.keySet());
-      conflictTokens.retainAll(reductions.keySet());
-      reductions.forEach((k, v) -> {
-        if (v.size() > 1)
-          conflictTokens.add(k);
+    /**
+     * Set the lookaheads of the reduction items from the given map, and
+     * calculate reductions and conflicts.
+     *
+     * @param lookaheads the lookaheads, by item id
+     */
+    private void reductions(Map<Integer, TokenSet> lookaheads) {
+      Workspace w = workspace.get();
+      for (int k = 0; k < kernel.length; ++k) {
+        if (itemKind[kernel[k]] == REDUCE_ITEM) {
+          kernelLookahead[k] = intern(lookaheads.getOrDefault(kernel[k], new TokenSet()));
+          w.addReduction(itemSymbol[kernel[k]], kernelLookahead[k]);
+        }
+      }
+      lookaheads.forEach((itemId, lookahead) -> {
+        if (Arrays.binarySearch(kernel, itemId) < 0) {
+          lookahead = intern(lookahead);
+          w.addReduction(itemSymbol[itemId], lookahead);
+          if (closure != null)
+            closureLookahead[Arrays.binarySearch(closure, itemId)] = lookahead;
+        }
       });
-      for (int conflictToken : conflictTokens) {
+      reductions(w);
+      w.clear();
+      conflicts();
+    }
+
+    private void reductions(Workspace w) {
+      reductionTokens = w.codes(w.reductionTokens, w.reductionTokenSize);
+      reductionOffsets = new int[reductionTokens.length + 1];
+      for (int t = 0; t < reductionTokens.length; ++t) {
+        reductionOffsets[t + 1] = reductionOffsets[t] + w.reductionCount[reductionTokens[t]];
+        w.reductionCount[reductionTokens[t]] = reductionOffsets[t];
+      }
+      reductionIds = new int[reductionOffsets[reductionTokens.length]];
+      for (int r = 0; r < w.reductionSize; ++r) {
+        TokenSet lookahead = w.reductionLookaheads[r];
+        w.reductionLookaheads[r] = null;
+        for (int token = lookahead.nextToken(0); token >= 0; token = lookahead.nextToken(token + 1))
+          reductionIds[w.reductionCount[token]++] = w.reductions[r];
+      }
+      for (int token : reductionTokens)
+        w.reductionCount[token] = 0;
+    }
+
+    private void successor(Workspace w, int itemId, TokenSet lookahead) {
+      if (itemKind[itemId] == REDUCE_ITEM) {
+        w.addReduction(itemSymbol[itemId], lookahead);
+      }
+      else {
+        // the item following a shift item has the next higher item id
+        State[] targets = itemKind[itemId] == TERMINAL_ITEM
+            ? w.terminalTarget
+            : w.nonterminalTarget;
+        int code = itemSymbol[itemId];
+        State target = targets[code];
+        if (target == null) {
+          target = targets[code] = new State();
+          if (itemKind[itemId] == TERMINAL_ITEM)
+            w.terminalCodes[w.terminalCodeSize++] = code;
+          else
+            w.nonterminalCodes[w.nonterminalCodeSize++] = code;
+        }
+        target.add(itemId + 1, lookahead);
+      }
+    }
+
+    public void resolve() {
+      resolve(nonterminalTargets);
+      resolve(terminalTargets);
+      if (! relationalLookaheads)
+        conflicts();
+    }
+
+    private void conflicts() {
+      int[] tokens = new int[reductionTokens.length];
+      int size = 0;
+      for (int t = 0, r = 0; r < reductionTokens.length; ++r) {
+        int token = reductionTokens[r];
+        while (t < terminalCodes.length && terminalCodes[t] < token)
+          ++t;
+        if (t < terminalCodes.length && terminalCodes[t] == token || reductionOffsets[r + 1] - reductionOffsets[r] > 1)
+          tokens[size++] = token;
+      }
+      conflictTokens = Arrays.copyOf(tokens, size);
+      conflictForks = new int[size];
+
+      for (int c = 0; c < conflictTokens.length; ++c) {
+        int conflictToken = conflictTokens[c];
         List<Integer> forkList = new ArrayList<>();
-        State state = terminalTransitions.get(conflictToken);
-        if (terminalTransitions.containsKey(conflictToken)) {
-          if (state.isLr0ReduceState()) {
-            int argument = ((Alt) state.kernel.keySet().iterator().next()).getReductionId();
-            forkList.add(Action.code(Action.Type.SHIFT_REDUCE, argument));
-          }
-          else {
+        int t = Arrays.binarySearch(terminalCodes, conflictToken);
+        if (t >= 0) {
+          State state = terminalTargets[t];
+          if (state.isLr0ReduceState())
+            forkList.add(Action.code(Action.Type.SHIFT_REDUCE, itemSymbol[state.kernel[0]]));
+          else
             forkList.add(Action.code(Action.Type.SHIFT, state.id));
-          }
         }
-        for (Alt alt : reductions.get(conflictToken))
-          forkList.add(Action.code(Action.Type.REDUCE, alt.getReductionId()));
+        int r = Arrays.binarySearch(reductionTokens, conflictToken);
+        for (int i = reductionOffsets[r]; i < reductionOffsets[r + 1]; ++i)
+          forkList.add(Action.code(Action.Type.REDUCE, reductionIds[i]));
 
         Integer id = -1;
         for (int i = forkList.size() - 2; i >= 0; --i) {
@@ -429,126 +1037,195 @@ public class Generator {
           id = id != null ? id : newId;
         }
 
-        conflicts.put(conflictToken, id);
+        conflictForks[c] = id;
       }
     }
 
-    void put(Node node, TokenSet lookahead) {
-      kernel.put(node, lookahead);
-    }
-
-    void parserData() {
-      conflicts.forEach((terminalId, forkId) -> {
-        final int code = Action.code(Action.Type.FORK, forkId);
-        terminalTransitionData.put(new Map2D.Index(id , terminalId), code);
-      });
-      terminalTransitions.forEach((terminalId, state) -> {
-        if (! conflicts.containsKey(terminalId)) {
-          final int code;
-          if (state.isLr0ReduceState()) {
-            Node node = state.kernel.keySet().iterator().next();
-            Alt alt = node instanceof Alt
-                    ? (Alt) node
-                    : (Alt) node.getParent();
-            code = Action.code(Action.Type.SHIFT_REDUCE, alt.getReductionId());
+    private void resolve(State[] targets) {
+      for (int t = 0; t < targets.length; ++t) {
+        State newState = targets[t];
+        if (! newState.isLr0ReduceState()) {
+          List<State> sameKernel = kernelStates.computeIfAbsent(new Kernel(newState.kernel), k -> new ArrayList<>());
+          State state = null;
+          for (State s : sameKernel) {
+            if (! splitStates || s.isWeaklyCompatible(newState)) {
+              state = s;
+              break;
+            }
+          }
+          if (state == null) {
+            newState.id = states.size();
+            states.add(newState);
+            sameKernel.add(newState);
+            statesTodo.add(newState);
           }
           else {
-            code = Action.code(Action.Type.SHIFT, state.id);
+            targets[t] = state;
+            for (int k = 0; k < state.kernel.length; ++k) {
+              TokenSet lookahead = state.kernelLookahead[k];
+              TokenSet newLookahead = newState.kernelLookahead[k];
+              if (lookahead != newLookahead && ! lookahead.containsAll(newLookahead)) {
+                TokenSet union = new TokenSet(lookahead);
+                union.addAll(newLookahead);
+                state.kernelLookahead[k] = intern(union);
+                statesTodo.add(state);
+              }
+            }
           }
-          terminalTransitionData.put(new Map2D.Index(id , terminalId), code);
         }
-      });
-      nonterminalTransitions.forEach((nonterminalId, state) -> {
-        final int code;
-        if (state.isLr0ReduceState()) {
-          Node node = state.kernel.keySet().iterator().next();
-          Alt alt = (Alt)  (node instanceof Alt ? node : node.getParent());
-          int argument = alt.getReductionId();
-          code = Action.code(Action.Type.SHIFT_REDUCE, argument);
+      }
+    }
+
+    /**
+     * Check whether the kernel lookaheads of another state with the same kernel
+     * can be merged into this state, without causing reduce-reduce conflicts
+     * that neither state has on its own, using Pager's weak compatibility test:
+     * for any two kernel items i and j, lookahead of i in one state must not
+     * overlap lookahead of j in the other, unless the lookaheads of i and j
+     * already overlap within one of the states.
+     *
+     * @param other the other state
+     * @return true, if the states are weakly compatible
+     */
+    private boolean isWeaklyCompatible(State other) {
+      for (int i = 0; i < kernel.length; ++i) {
+        TokenSet li = kernelLookahead[i];
+        TokenSet oi = other.kernelLookahead[i];
+        if (li.containsAll(oi))
+          continue;
+        for (int j = 0; j < kernel.length; ++j) {
+          if (i != j) {
+            TokenSet lj = kernelLookahead[j];
+            TokenSet oj = other.kernelLookahead[j];
+            if (oi.intersects(lj) && ! li.intersects(lj) && ! oi.intersects(oj))
+              return false;
+          }
         }
-        else {
-          code = Action.code(Action.Type.SHIFT, state.id);
+      }
+      return true;
+    }
+
+    private boolean isConflict(int token) {
+      return Arrays.binarySearch(conflictTokens, token) >= 0;
+    }
+
+    private int code(State state) {
+      return state.isLr0ReduceState()
+           ? Action.code(Action.Type.SHIFT_REDUCE, itemSymbol[state.kernel[0]])
+           : Action.code(Action.Type.SHIFT, state.id);
+    }
+
+    /**
+     * Get the code of the transition from this state to a target state, like
+     * {@link #code(State)}, but collapse chains of unit reductions. When the
+     * target is an LR(0) reduce state for a single symbol alternative, and the
+     * nonterminal transition from this state, that follows the reduction,
+     * again leads to an LR(0) reduce state, where the reduction just passes
+     * its single child through a deleted nonterminal, then both reductions
+     * are combined into one. The combined reduction creates the outer
+     * nonterminal directly, from the single child of the inner one, so the
+     * parser saves a reduction, and a nonterminal transition lookup, per
+     * link of the chain.
+     *
+     * @param target the target state
+     * @return the action code
+     */
+    private int chainedCode(State target) {
+      if (! target.isLr0ReduceState())
+        return Action.code(Action.Type.SHIFT, target.id);
+      int reduction = itemSymbol[target.kernel[0]];
+      ReduceArgument reduceArgument = reduceArguments[reduction];
+      if (reduceArgument.getMarks().length == 1) {
+        for (int links = 0; links < nonterminalCodes.length; ++links) {
+          int n = Arrays.binarySearch(nonterminalCodes, reduceArgument.getNonterminalId());
+          if (n < 0 || ! nonterminalTargets[n].isLr0ReduceState())
+            break;
+          ReduceArgument next = reduceArguments[itemSymbol[nonterminalTargets[n].kernel[0]]];
+          if (next.getMarks().length != 1 || next.getMarks()[0] != Mark.DELETE || next.getInsertion() != null)
+            break;
+          reduceArgument = new ReduceArgument(
+              reduceArgument.getMarks(),
+              reduceArgument.getAliases(),
+              reduceArgument.getInsertion(),
+              next.getNonterminalId());
         }
-        nonterminalTransitionData.put(new Map2D.Index(id , nonterminalId), code);
-      });
-      reductions.forEach((terminalId, alts) -> {
-        if (! conflicts.containsKey(terminalId)) {
-          if (alts.size() != 1)
-            throw new IllegalStateException();
-          final int reductionId = alts.get(0).getReductionId();
-          final int code = Action.code(Action.Type.REDUCE, reductionId);
-          terminalTransitionData.put(new Map2D.Index(id , terminalId), code);
+        if (reduceArgument != reduceArguments[reduction]) {
+          Integer id = reductionIdByArgument.putIfAbsent(reduceArgument, reductionIdByArgument.size());
+          reduction = id == null ? reductionIdByArgument.size() - 1 : id;
+          ++reductionChains;
         }
-      });
+      }
+      return Action.code(Action.Type.SHIFT_REDUCE, reduction);
     }
 
-    @Override
-    public int hashCode() {
-      return kernel.keySet().hashCode();
+    void parserData() {
+      for (int c = 0; c < conflictTokens.length; ++c) {
+        final int code = Action.code(Action.Type.FORK, conflictForks[c]);
+        terminalTransitionData.put(id, conflictTokens[c], code);
+      }
+      for (int t = 0; t < terminalCodes.length; ++t)
+        if (! isConflict(terminalCodes[t]))
+          terminalTransitionData.put(id, terminalCodes[t], chainedCode(terminalTargets[t]));
+      for (int n = 0; n < nonterminalCodes.length; ++n)
+        nonterminalTransitionData.put(id, nonterminalCodes[n], chainedCode(nonterminalTargets[n]));
+      for (int r = 0; r < reductionTokens.length; ++r) {
+        if (! isConflict(reductionTokens[r])) {
+          if (reductionOffsets[r + 1] - reductionOffsets[r] != 1)
+            throw new IllegalStateException();
+          final int code = Action.code(Action.Type.REDUCE, reductionIds[reductionOffsets[r]]);
+          terminalTransitionData.put(id, reductionTokens[r], code);
+        }
+      }
     }
 
-    @Override
-    public boolean equals(Object other) {
-      return kernel.keySet().equals(((State) other).kernel.keySet());
+    void expectedTokens(BitSet expectedTokens) {
+      for (int token : terminalCodes)
+        expectedTokens.set(token);
+      for (int token : reductionTokens)
+        expectedTokens.set(token);
     }
 
     @Override
     public String toString() {
-      String itemsString = Stream.concat(
-          kernel.entrySet().stream(),
-          closure == null
-            ? Stream.empty()
-            : closure.entrySet().stream()
-        )
-        .map(item -> toString(item))
-        .collect(Collectors.joining("\n"));
-      String conflictsString = conflicts.entrySet().stream()
-        .map(e -> {
-          int t = e.getKey();
-          StringBuilder sb = new StringBuilder("\n");
-          if (terminalTransitions.containsKey(t))
-            sb.append("shift");
-          else
-            sb.append("reduce");
-          sb.append("-reduce conflict on ");
-          sb.append(toString(t));
-          sb.append(" fork ");
-          sb.append(e.getValue());
-          return sb.toString();
-        })
-        .collect(Collectors.joining());
-      return itemsString + conflictsString;
-    }
-
-    private Action action(Node node) {
-      Alt alt = node instanceof Alt
-             ? (Alt) node
-             : (Alt) (node.getParent());
-      if (node instanceof Alt || node instanceof Insertion) {
-        return new Action(Action.Type.REDUCE, alt.getReductionId());
-      }
-      State toState;
-      if (node instanceof Nonterminal) {
-        int code = nonterminalCode.get(((Nonterminal) node).getName());
-        toState = nonterminalTransitions.get(code);
+      StringBuilder sb = new StringBuilder();
+      String delimiter = "";
+      for (int k = 0; k < kernel.length; ++k) {
+        sb.append(delimiter).append(toString(kernel[k], kernelLookahead[k]));
+        delimiter = "\n";
       }
-      else if (node instanceof Charset) {
-        int code = terminalCode.get(((Charset) node).getRangeSet());
-        toState = terminalTransitions.get(code);
+      if (closure != null) {
+        for (int k = 0; k < closure.length; ++k) {
+          sb.append(delimiter).append(toString(closure[k], closureLookahead[k]));
+          delimiter = "\n";
+        }
       }
-      else {
-        throw new IllegalStateException("Unexpected type: " + node.getClass().getSimpleName());
+      for (int c = 0; c < conflictTokens.length; ++c) {
+        int t = conflictTokens[c];
+        sb.append("\n");
+        if (Arrays.binarySearch(terminalCodes, t) >= 0)
+          sb.append("shift");
+        else
+          sb.append("reduce");
+        sb.append("-reduce conflict on ");
+        sb.append(toString(t));
+        sb.append(" fork ");
+        sb.append(conflictForks[c]);
       }
-      if (toState.isLr0ReduceState())
-        return new Action(Action.Type.SHIFT_REDUCE, alt.getReductionId());
-      else
-        return new Action(Action.Type.SHIFT, toState.id);
+      return sb.toString();
+    }
+
+    private Action action(int itemId) {
+      if (itemKind[itemId] == REDUCE_ITEM)
+        return new Action(Action.Type.REDUCE, itemSymbol[itemId]);
+      State toState = itemKind[itemId] == TERMINAL_ITEM
+          ? terminalTargets[Arrays.binarySearch(terminalCodes, itemSymbol[itemId])]
+          : nonterminalTargets[Arrays.binarySearch(nonterminalCodes, itemSymbol[itemId])];
+      return Action.of(code(toState));
     }
 
-    private String toString(Map.Entry<Node, TokenSet> item) {
+    private String toString(int itemId, TokenSet lookahead) {
       StringBuilder sb = new StringBuilder();
-      Node node = item.getKey();
-      TokenSet lookahead = item.getValue();
+      Node node = item[itemId];
       sb.append("[").append(node.getRule().getMark()).append(node.getRule().getName()).append(":");
       Alt alt = (Alt) (node instanceof Alt
           ? node
@@ -567,10 +1244,10 @@ public class Generator {
         delimiter = ", ";
       }
       sb.append("}] ");
-      if (nonterminalTransitions != null &&
-          terminalTransitions != null
+      if (nonterminalTargets != null &&
+          terminalTargets != null
           ) {
-        final Action action = action(node);
+        final Action action = action(itemId);
         sb.append(action);
         if (action.getType() == Action.Type.REDUCE || action.getType() == Action.Type.SHIFT_REDUCE)
           sb.append(" (")
@@ -589,83 +1266,615 @@ public class Generator {
     }
   }
 
-  private TokenSet first(Node node, TokenSet lookahead) {
-    if (node == null || node instanceof Insertion)
-      return lookahead;
-    TokenSet tokens = first.get(node);
-    if (! tokens.contains(EPSILON))
-      return tokens;
-    TokenSet nonNullTokens = new TokenSet();
-    nonNullTokens.addAll(tokens);
-    nonNullTokens.remove(EPSILON);
-    nonNullTokens.addAll(lookahead);
-    return nonNullTokens;
+  /** Kernel item ids of a state, and optionally their lookaheads, as a hash key. */
+  private static class Kernel {
+    private final int[] items;
+    private final TokenSet[] lookaheads;
+    private final int hashCode;
+
+    public Kernel(int[] items) {
+      this(items, null);
+    }
+
+    public Kernel(int[] items, TokenSet[] lookaheads) {
+      this.items = items;
+      this.lookaheads = lookaheads;
+      this.hashCode = 31 * Arrays.hashCode(items) + Arrays.hashCode(lookaheads);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return Arrays.equals(items, ((Kernel) other).items)
+          && Arrays.equals(lookaheads, ((Kernel) other).lookaheads);
+    }
+  }
+
+  /**
+   * A parser that constructs its states on demand, when parsing first
+   * reaches them, rather than constructing all states before parsing, so
+   * the cost of state construction depends on the portion of the grammar
+   * that is actually used. These are canonical LR(1) states, i.e. states
+   * with the same kernel items are only identical, when they also have the
+   * same lookaheads. So a state never changes once it is constructed, unlike
+   * an LALR(1) state, which is revised when more lookahead is propagated
+   * into it. The constructed states are kept in a cache that is shared by
+   * all threads using the parser, and each state is constructed just once.
+   */
+  class LazyParser extends Parser {
+    /** Constructed states, by kernel items and lookaheads. */
+    private final Map<Kernel, State> stateByKernel = new ConcurrentHashMap<>();
+    /** Constructed states, by id. */
+    private volatile LazyState[] lazyStates = new LazyState[64];
+    private int numberOfStates;
+
+    private LazyParser(Set<Option> options, int[] asciiMap, CompressedMap charClassMap, int charClassMapEnd, State initialState) {
+      super(options,
+          asciiMap, charClassMap, charClassMapEnd,
+          null,
+          null, Generator.this.terminal.length,
+          null, ruleStartItems.length,
+          null, new int[ruleStartItems.length],
+          reduceArguments,
+          Generator.this.nonterminal,
+          Generator.this.terminal,
+          new int[0],
+          new BitSet[0],
+          grammar.isMismatch(),
+          grammar.getVersion().isAtLeast(Grammar.Version.V1_1),
+          earley(options, 0));
+      stateByKernel.put(new Kernel(initialState.kernel, initialState.kernelLookahead), initialState);
+      register(initialState);
+    }
+
+    /**
+     * Get the number of states that have been constructed so far.
+     *
+     * @return the number of states
+     */
+    synchronized int numberOfStates() {
+      return numberOfStates;
+    }
+
+    @Override
+    protected int terminalTransition(int state, int token) {
+      return lazyState(state).terminalActions[token];
+    }
+
+    @Override
+    protected int nonterminalTransition(int state, int nonterminalId) {
+      return lazyState(state).nonterminalActions[nonterminalId];
+    }
+
+    @Override
+    protected int defaultReduction(int state, int token) {
+      return 0;
+    }
+
+    @Override
+    protected BitSet expectedTokens(int state) {
+      return lazyState(state).expectedTokens;
+    }
+
+    @Override
+    protected int fork(int i) {
+      return Generator.this.forks[i];
+    }
+
+    @Override
+    protected boolean isDeterministic() {
+      return false;
+    }
+
+    @Override
+    public Profile profile(String... inputs) {
+      throw new BlitzException("A parser that constructs states on demand cannot be profiled");
+    }
+
+    private LazyState lazyState(int id) {
+      LazyState state = lazyStates[id];
+      if (state.terminalActions == null)
+        state.construct();
+      return state;
+    }
+
+    private synchronized State register(State state) {
+      state.id = numberOfStates++;
+      LazyState[] states = lazyStates;
+      if (state.id == states.length)
+        states = Arrays.copyOf(states, state.id << 1);
+      states[state.id] = new LazyState(state);
+      lazyStates = states;
+      return state;
+    }
+
+    /**
+     * Replace target states by the cached states with the same kernel items
+     * and lookaheads, registering those that are new.
+     */
+    private void resolve(State[] targets) {
+      for (int t = 0; t < targets.length; ++t) {
+        State newState = targets[t];
+        if (! newState.isLr0ReduceState())
+          targets[t] = stateByKernel.computeIfAbsent(new Kernel(newState.kernel, newState.kernelLookahead), k -> register(newState));
+      }
+    }
+
+    private class LazyState {
+      private final State state;
+      /** Actions, by token code, null until the successors of the state are constructed. */
+      private volatile int[] terminalActions;
+      /** Actions, by nonterminal code. */
+      private int[] nonterminalActions;
+      private BitSet expectedTokens;
+
+      private LazyState(State state) {
+        this.state = state;
+      }
+
+      /**
+       * Construct the successors of the state, and its actions. The
+       * actions are published last, so other threads see a complete state,
+       * once they see its actions.
+       */
+      private synchronized void construct() {
+        if (terminalActions != null)
+          return;
+        state.successors();
+        resolve(state.nonterminalTargets);
+        resolve(state.terminalTargets);
+        synchronized (forkId) {
+          state.conflicts();
+        }
+
+        int[] terminalActions = new int[terminal.length];
+        for (int r = 0; r < state.reductionTokens.length; ++r)
+          if (! state.isConflict(state.reductionTokens[r]))
+            terminalActions[state.reductionTokens[r]] = Action.code(Action.Type.REDUCE, state.reductionIds[state.reductionOffsets[r]]);
+        for (int t = 0; t < state.terminalCodes.length; ++t)
+          if (! state.isConflict(state.terminalCodes[t]))
+            terminalActions[state.terminalCodes[t]] = state.code(state.terminalTargets[t]);
+        for (int c = 0; c < state.conflictTokens.length; ++c)
+          terminalActions[state.conflictTokens[c]] = Action.code(Action.Type.FORK, state.conflictForks[c]);
+        nonterminalActions = new int[ruleStartItems.length];
+        for (int n = 0; n < state.nonterminalCodes.length; ++n)
+          nonterminalActions[state.nonterminalCodes[n]] = state.code(state.nonterminalTargets[n]);
+        if (state.id == 0)
+          nonterminalActions[0] = Action.code(Action.Type.ACCEPT, 0);
+        expectedTokens = new BitSet(terminal.length);
+        state.expectedTokens(expectedTokens);
+        this.terminalActions = terminalActions;
+      }
+    }
+  }
+
+  /**
+   * Per-thread scratch space for closing states and collecting their
+   * successors, indexed by item id, token code, and nonterminal code.
+   */
+  private class Workspace {
+    private final TokenSet[] closureLookahead = new TokenSet[item.length];
+    private final int[] closureItems = new int[item.length];
+    private int closureSize;
+
+    private int[] todoItems = new int[64];
+    private TokenSet[] todoLookaheads = new TokenSet[64];
+    private int todoSize;
+
+    private final State[] terminalTarget = new State[terminal.length];
+    private final int[] terminalCodes = new int[terminal.length];
+    private int terminalCodeSize;
+
+    private final State[] nonterminalTarget = new State[ruleStartItems.length];
+    private final int[] nonterminalCodes = new int[ruleStartItems.length];
+    private int nonterminalCodeSize;
+
+    private final int[] reductionCount = new int[terminal.length];
+    private final int[] reductionTokens = new int[terminal.length];
+    private int reductionTokenSize;
+    private int[] reductions = new int[16];
+    private TokenSet[] reductionLookaheads = new TokenSet[16];
+    private int reductionSize;
+
+    private void push(int itemId, TokenSet lookahead) {
+      if (todoSize == todoItems.length) {
+        todoItems = Arrays.copyOf(todoItems, todoSize << 1);
+        todoLookaheads = Arrays.copyOf(todoLookaheads, todoSize << 1);
+      }
+      todoItems[todoSize] = itemId;
+      todoLookaheads[todoSize++] = lookahead;
+    }
+
+    private void addReduction(int reductionId, TokenSet lookahead) {
+      if (reductionSize == reductions.length) {
+        reductions = Arrays.copyOf(reductions, reductionSize << 1);
+        reductionLookaheads = Arrays.copyOf(reductionLookaheads, reductionSize << 1);
+      }
+      reductions[reductionSize] = reductionId;
+      reductionLookaheads[reductionSize++] = lookahead;
+      for (int token = lookahead.nextToken(0); token >= 0; token = lookahead.nextToken(token + 1))
+        if (reductionCount[token]++ == 0)
+          reductionTokens[reductionTokenSize++] = token;
+    }
+
+    private int[] codes(int[] codes, int size) {
+      int[] sorted = Arrays.copyOf(codes, size);
+      Arrays.sort(sorted);
+      return sorted;
+    }
+
+    private State[] targets(State[] target, int[] codes) {
+      State[] targets = new State[codes.length];
+      for (int i = 0; i < codes.length; ++i) {
+        targets[i] = target[codes[i]];
+        target[codes[i]] = null;
+        targets[i].completeKernel();
+      }
+      return targets;
+    }
+
+    private void clear() {
+      for (int k = 0; k < closureSize; ++k)
+        closureLookahead[closureItems[k]] = null;
+      closureSize = 0;
+      terminalCodeSize = 0;
+      nonterminalCodeSize = 0;
+      reductionTokenSize = 0;
+      reductionSize = 0;
+    }
+  }
+
+  /**
+   * Calculate LALR(1) lookaheads for the reductions of the LR(0) automaton, following
+   * DeRemer and Pennello, "Efficient Computation of LALR(1) Look-Ahead Sets" (1982).
+   * The Read and Follow sets of the nonterminal transitions are calculated by
+   * traversing the reads and includes relations, and are passed on to the
+   * reductions via the lookback relation. This replaces the repeated closure of
+   * states whose kernel lookaheads grow during state construction.
+   *
+   * @param endToken the token code of the end of input
+   */
+  private void lalrLookaheads(int endToken) {
+    State[] state = states.toArray(State[]::new);
+    int[] transitionBase = new int[state.length + 1];
+    for (int s = 0; s < state.length; ++s)
+      transitionBase[s + 1] = transitionBase[s] + state[s].nonterminalCodes.length;
+    // the last transition is a pseudo transition on the start symbol, followed by end of input
+    int startTransition = transitionBase[state.length];
+    int numberOfTransitions = startTransition + 1;
+
+    TokenSet[] directReads = new TokenSet[numberOfTransitions];
+    Relation reads = new Relation();
+    for (int s = 0; s < state.length; ++s) {
+      for (int k = 0; k < state[s].nonterminalCodes.length; ++k) {
+        int x = transitionBase[s] + k;
+        State r = state[s].nonterminalTargets[k];
+        directReads[x] = new TokenSet();
+        if (! r.isLr0ReduceState()) {
+          for (int token : r.terminalCodes)
+            directReads[x].add(token);
+          for (int j = 0; j < r.nonterminalCodes.length; ++j)
+            if (isNullable[r.nonterminalCodes[j]])
+              reads.add(x, transitionBase[r.id] + j);
+        }
+      }
+    }
+    directReads[startTransition] = new TokenSet(endToken);
+    TokenSet[] read = digraph(reads.toArray(numberOfTransitions), directReads);
+
+    Relation includes = new Relation();
+    // lookback relation, by state: reduction item id and nonterminal transition
+    Relation[] lookback = new Relation[state.length];
+    for (int s = 0; s < state.length; ++s)
+      for (int k = 0; k < state[s].nonterminalCodes.length; ++k)
+        for (int startItem : ruleStartItems[state[s].nonterminalCodes[k]])
+          walk(state[s], startItem, transitionBase[s] + k, transitionBase, includes, lookback);
+    for (int startItem : ruleStartItems[0])
+      walk(state[0], startItem, startTransition, transitionBase, includes, lookback);
+    TokenSet[] follow = digraph(includes.toArray(numberOfTransitions), read);
+
+    for (int s = 0; s < state.length; ++s) {
+      Map<Integer, TokenSet> lookaheads = new TreeMap<>();
+      if (lookback[s] != null)
+        for (int i = 0; i < lookback[s].size; ++i)
+          lookaheads.computeIfAbsent(lookback[s].from[i], k -> new TokenSet()).addAll(follow[lookback[s].to[i]]);
+      state[s].reductions(lookaheads);
+    }
+  }
+
+  /**
+   * Follow the items of an alternative from the source state of a nonterminal
+   * transition, adding to the includes relation for each nonterminal that is
+   * followed by a nullable suffix, and to the lookback relation for the
+   * reduction. Reductions in LR(0) reduce states are not followed, because
+   * they do not depend on lookahead.
+   */
+  private void walk(State state, int itemId, int transition, int[] transitionBase, Relation includes, Relation[] lookback) {
+    for (; itemKind[itemId] != REDUCE_ITEM; ++itemId) {
+      int code = itemSymbol[itemId];
+      if (itemKind[itemId] == NONTERMINAL_ITEM) {
+        int k = Arrays.binarySearch(state.nonterminalCodes, code);
+        if (nextIsNullable[itemId])
+          includes.add(transitionBase[state.id] + k, transition);
+        state = state.nonterminalTargets[k];
+      }
+      else {
+        state = state.terminalTargets[Arrays.binarySearch(state.terminalCodes, code)];
+      }
+      if (state.isLr0ReduceState())
+        return;
+    }
+    if (lookback[state.id] == null)
+      lookback[state.id] = new Relation();
+    lookback[state.id].add(itemId, transition);
+  }
+
+  /**
+   * Calculate the closure of a set-valued function over a relation, using
+   * the SCC-based digraph algorithm of DeRemer and Pennello. All members of a
+   * strongly connected component share the same result set.
+   *
+   * @param relation the relation, as successor arrays
+   * @param initial the initial function values
+   * @return the resulting function values
+   */
+  private static TokenSet[] digraph(int[][] relation, TokenSet[] initial) {
+    final int infinity = Integer.MAX_VALUE;
+    int n = initial.length;
+    TokenSet[] f = new TokenSet[n];
+    int[] depth = new int[n];
+    int[] stack = new int[n];
+    int stackSize = 0;
+    int[] callNode = new int[n];
+    int[] callEdge = new int[n];
+    int[] callDepth = new int[n];
+    for (int root = 0; root < n; ++root) {
+      if (depth[root] != 0)
+        continue;
+      int calls = 0;
+      int x = root;
+      stack[stackSize++] = x;
+      depth[x] = stackSize;
+      f[x] = new TokenSet(initial[x]);
+      callNode[calls] = x;
+      callEdge[calls] = 0;
+      callDepth[calls++] = stackSize;
+      while (calls > 0) {
+        x = callNode[calls - 1];
+        if (callEdge[calls - 1] < relation[x].length) {
+          int y = relation[x][callEdge[calls - 1]++];
+          if (depth[y] == 0) {
+            stack[stackSize++] = y;
+            depth[y] = stackSize;
+            f[y] = new TokenSet(initial[y]);
+            callNode[calls] = y;
+            callEdge[calls] = 0;
+            callDepth[calls++] = stackSize;
+          }
+          else {
+            depth[x] = Math.min(depth[x], depth[y]);
+            f[x].addAll(f[y]);
+          }
+        }
+        else {
+          if (depth[x] == callDepth[--calls]) {
+            for (int y; (y = stack[--stackSize]) != x; ) {
+              depth[y] = infinity;
+              f[y] = f[x];
+            }
+            depth[x] = infinity;
+          }
+          if (calls > 0) {
+            int caller = callNode[calls - 1];
+            depth[caller] = Math.min(depth[caller], depth[x]);
+            f[caller].addAll(f[x]);
+          }
+        }
+      }
+    }
+    return f;
+  }
+
+  /** A binary relation on integers, collected as pairs. */
+  private static class Relation {
+    private int[] from = new int[4];
+    private int[] to = new int[4];
+    private int size;
+
+    private void add(int x, int y) {
+      if (size == from.length) {
+        from = Arrays.copyOf(from, size << 1);
+        to = Arrays.copyOf(to, size << 1);
+      }
+      from[size] = x;
+      to[size++] = y;
+    }
+
+    private int[][] toArray(int n) {
+      int[] count = new int[n];
+      for (int i = 0; i < size; ++i)
+        ++count[from[i]];
+      int[][] relation = new int[n][];
+      for (int x = 0; x < n; ++x) {
+        relation[x] = new int[count[x]];
+        count[x] = 0;
+      }
+      for (int i = 0; i < size; ++i)
+        relation[from[i]][count[from[i]]++] = to[i];
+      return relation;
+    }
+  }
+
+  private TokenSet intern(TokenSet tokenSet) {
+    TokenSet interned = tokenSets.putIfAbsent(tokenSet, tokenSet);
+    return interned == null ? tokenSet : interned;
+  }
+
+  private void assignItemIds() {
+    List<Node> items = new ArrayList<>();
+    ruleStartItems = new int[grammar.getRules().size()][];
+    for (Rule r : grammar.getRules().values()) {
+      List<Alt> alts = r.getAlts().getAlts();
+      int[] startItems = new int[alts.size()];
+      for (int i = 0; i < startItems.length; ++i) {
+        Alt a = alts.get(i);
+        startItems[i] = items.size();
+        for (Term t : a.getTerms()) {
+          t.setItemId(items.size());
+          items.add(t);
+        }
+        a.setItemId(items.size());
+        items.add(a);
+      }
+      ruleStartItems[nonterminalCode.get(r.getName())] = startItems;
+    }
+
+    item = items.toArray(Node[]::new);
+    itemKind = new byte[item.length];
+    itemSymbol = new int[item.length];
+    for (int i = 0; i < item.length; ++i) {
+      Node node = item[i];
+      if (node instanceof Alt || node instanceof Insertion) {
+        itemKind[i] = REDUCE_ITEM;
+        itemSymbol[i] = ((Alt) (node instanceof Alt ? node : node.getParent())).getReductionId();
+      }
+      else if (node instanceof Nonterminal) {
+        itemKind[i] = NONTERMINAL_ITEM;
+        itemSymbol[i] = nonterminalCode.get(((Nonterminal) node).getName());
+      }
+      else if (node instanceof Charset) {
+        itemKind[i] = TERMINAL_ITEM;
+        itemSymbol[i] = terminalCode.get(((Charset) node).getRangeSet());
+      }
+      else {
+        throw new IllegalStateException("Unexpected type: " + node.getClass().getSimpleName());
+      }
+    }
+  }
+
+  private void collectFirstOfNext() {
+    firstOfNext = new TokenSet[item.length];
+    nextIsNullable = new boolean[item.length];
+    for (int i = 0; i < item.length; ++i) {
+      if (itemKind[i] == NONTERMINAL_ITEM) {
+        Node next = item[i].getNext();
+        TokenSet tokens = new TokenSet();
+        if (next == null || next instanceof Insertion) {
+          nextIsNullable[i] = true;
+        }
+        else {
+          tokens.addAll(first.get(next));
+          nextIsNullable[i] = tokens.contains(EPSILON);
+          tokens.remove(EPSILON);
+        }
+        firstOfNext[i] = intern(tokens);
+      }
+    }
   }
 
+  /**
+   * Calculate the first sets of rules, alternatives, and of the suffixes of
+   * alternatives starting at each term. Nullable rules are determined first.
+   * The nonnull first sets of rules are then calculated by the digraph
+   * algorithm over the relation of rules to the rules that they can begin
+   * with, and finally passed on to alternatives and terms in a single pass.
+   */
   private void collectFirst() {
-    for (boolean initial = true, changed = true; changed; initial = false) {
+    Rule[] rules = grammar.getRules().values().toArray(Rule[]::new);
+    isNullable = new boolean[rules.length];
+    for (boolean changed = true; changed; ) {
       changed = false;
-      for (Rule r : grammar.getRules().values()) {
-        for (Alt a : r.getAlts().getAlts()) {
-          if (a.getTerms().isEmpty() || a.getTerms().get(0) instanceof Insertion) {
-            if (initial) {
+      for (int code = 0; code < rules.length; ++code) {
+        if (! isNullable[code]) {
+          for (Alt a : rules[code].getAlts().getAlts()) {
+            if (isNullable(a.getTerms())) {
+              isNullable[code] = true;
               changed = true;
-              first.put(a, new TokenSet(EPSILON));
+              break;
             }
           }
-          else {
-            List<Term> terms = new ArrayList<>(a.getTerms());
-            for (int i = terms.size() - 1; i >= 0; --i) {
-              Term t = terms.get(i);
-              if (t instanceof Charset) {
-                if (initial) {
-                  changed = true;
-                  first.put(t, new TokenSet(terminalCode.get(((Charset) t).getRangeSet())));
-                }
-              }
-              else if (t instanceof Nonterminal) {
-                Rule rule = grammar.getRule(((Nonterminal) t).getName());
-                TokenSet firstOfRule = first.get(rule);
-                TokenSet tokens = new TokenSet();
-                if (firstOfRule != null) {
-                  tokens.addAll(firstOfRule);
-                  if (tokens.contains(EPSILON) && i + 1 != terms.size() && ! (terms.get(i + 1) instanceof Insertion)) {
-                    tokens.remove(EPSILON);
-                    TokenSet f = first.get(terms.get(i + 1));
-                    tokens.addAll(f);
-                  }
-                }
-                if (initial) {
-                  changed = true;
-                  first.put(t, tokens);
-                }
-                else {
-                  TokenSet f = first.get(t);
-                  if (! f.containsAll(tokens)) {
-                    f.addAll(tokens);
-                    changed = true;
-                  }
-                }
-              }
+        }
+      }
+    }
+
+    TokenSet[] initial = new TokenSet[rules.length];
+    Relation beginsWith = new Relation();
+    for (int code = 0; code < rules.length; ++code) {
+      initial[code] = new TokenSet();
+      for (Alt a : rules[code].getAlts().getAlts()) {
+        for (Term t : a.getTerms()) {
+          if (t instanceof Charset) {
+            initial[code].add(terminalCode.get(((Charset) t).getRangeSet()));
+            break;
+          }
+          if (! (t instanceof Nonterminal))
+            break;
+          int nonterminal = nonterminalCode.get(((Nonterminal) t).getName());
+          beginsWith.add(code, nonterminal);
+          if (! isNullable[nonterminal])
+            break;
+        }
+      }
+    }
+    TokenSet[] firstOfRule = digraph(beginsWith.toArray(rules.length), initial);
+
+    for (int code = 0; code < rules.length; ++code) {
+      TokenSet tokens = new TokenSet(firstOfRule[code]);
+      if (isNullable[code])
+        tokens.add(EPSILON);
+      first.put(rules[code], tokens);
+    }
+    for (Rule r : rules) {
+      for (Alt a : r.getAlts().getAlts()) {
+        List<Term> terms = a.getTerms();
+        TokenSet next = new TokenSet(EPSILON);
+        for (int i = terms.size() - 1; i >= 0; --i) {
+          Term t = terms.get(i);
+          if (t instanceof Charset) {
+            next = new TokenSet(terminalCode.get(((Charset) t).getRangeSet()));
+            first.put(t, next);
+          }
+          else if (t instanceof Nonterminal) {
+            TokenSet tokens = new TokenSet(first.get(grammar.getRule(((Nonterminal) t).getName())));
+            if (tokens.contains(EPSILON)) {
+              tokens.remove(EPSILON);
+              tokens.addAll(next);
             }
-            // propagate from first Term to Alt
-            first.put(a, first.get(a.getTerms().iterator().next()));
+            next = tokens;
+            first.put(t, next);
+          }
+          else {
+            next = new TokenSet(EPSILON);
           }
         }
-        // propagate from Alt to Rule
-        TokenSet tokens = new TokenSet();
-        for (Alt a : r.getAlts().getAlts())
-          tokens.addAll(first.get(a));
-        first.put(r, tokens);
+        first.put(a, next);
       }
     }
   }
 
+  private boolean isNullable(List<Term> terms) {
+    for (Term t : terms) {
+      if (t instanceof Insertion)
+        return true;
+      if (! (t instanceof Nonterminal) || ! isNullable[nonterminalCode.get(((Nonterminal) t).getName())])
+        return false;
+    }
+    return true;
+  }
+
   private void parserData() {
     terminalTransitionData = new Map2D(states.size(), terminal.length);
     nonterminalTransitionData = new Map2D(states.size(), grammar.getRules().size());
-    nonterminalTransitionData.put(new Map2D.Index(0, 0), Action.code(Action.Type.ACCEPT, 0));
-    states.keySet().forEach(State::parserData);
+    nonterminalTransitionData.put(0, 0, Action.code(Action.Type.ACCEPT, 0));
+    reductionIdByArgument = new LinkedHashMap<>();
+    for (ReduceArgument reduceArgument : reduceArguments)
+      reductionIdByArgument.put(reduceArgument, reductionIdByArgument.size());
+    states.forEach(State::parserData);
+    reduceArguments = reductionIdByArgument.keySet().toArray(ReduceArgument[]::new);
   }
 
   private ReduceArgument[] reduceArguments() {
@@ -703,7 +1912,9 @@ public class Generator {
             marks.toArray(Mark[]::new),
             aliases.stream().mapToInt(Integer::intValue).toArray(),
             insertion,
-            code);
+            code,
+            isRun(rule, alt),
+            isAppend(rule, alt, marks.size()));
         int newId = reductionId.size();
         Integer id = reductionId.putIfAbsent(reduction, newId);
         alt.setReductionId(id == null ? newId : id);
@@ -712,6 +1923,48 @@ public class Generator {
     return reductionId.keySet().toArray(ReduceArgument[]::new);
   }
 
+  /**
+   * Check whether an alternative is a run rule, N: -N, t, i.e. it extends a
+   * run of characters of nonterminal N by a single character, without
+   * changing its name. The parser shifts consecutive characters that are
+   * reduced by such rules in one step, appending them to N.
+   *
+   * @param rule the rule
+   * @param alt the alternative
+   * @return true, if the alternative is a run rule
+   */
+  private static boolean isRun(Rule rule, Alt alt) {
+    List<Term> terms = alt.getTerms();
+    if (terms.size() != 2 || ! (terms.get(0) instanceof Nonterminal) || ! (terms.get(1) instanceof Charset))
+      return false;
+    Nonterminal n = (Nonterminal) terms.get(0);
+    return n.getName().equals(rule.getName())
+        && n.getMark() == Mark.DELETE
+        && (n.getAlias() == null || n.getAlias().equals(n.getName()));
+  }
+
+  /**
+   * Check whether an alternative is left-recursive, N: -N, ..., with at least
+   * one more symbol, i.e. it appends symbols to the content of nonterminal N.
+   * Repetitions are lowered to such rules by {@link BNF}. When reducing them,
+   * the parser returns to the state following N, and the tree builder adds
+   * the new symbols to the existing node of N, rather than creating a new
+   * node and copying the content.
+   *
+   * @param rule the rule
+   * @param alt the alternative
+   * @param symbols the number of symbols of the alternative, without insertions
+   * @return true, if the alternative appends to N
+   */
+  private static boolean isAppend(Rule rule, Alt alt, int symbols) {
+    if (symbols < 2 || ! (alt.getTerms().get(0) instanceof Nonterminal))
+      return false;
+    Nonterminal n = (Nonterminal) alt.getTerms().get(0);
+    return n.getName().equals(rule.getName())
+        && n.getMark() == Mark.DELETE
+        && (n.getAlias() == null || n.getAlias().equals(n.getName()));
+  }
+
   private class SymbolCodeAssigner extends Visitor {
     @Override
     public void visit(Grammar g) {
@@ -2,24 +2,64 @@
 
 package de.bottlecaps.markup.blitz.transform;
 
-import java.util.TreeMap;
+import java.util.Arrays;
 
-public class Map2D extends TreeMap<Map2D.Index, Integer> {
-  private static final long serialVersionUID = 1L;
+/**
+ * A sparse two-dimensional map of int values, stored as one pair of sorted
+ * column and value arrays per row, so memory is proportional to the number
+ * of entries.
+ */
+public class Map2D {
+  private static final int[] NO_ENTRIES = {};
 
-  private int endX;
-  private int endY;
+  private final int endX;
+  private final int endY;
+  private final int[][] columns;
+  private final int[][] values;
+  private final int[] rowSize;
+  private int size;
 
   public Map2D(int endX, int endY) {
     this.endX = endX;
     this.endY = endY;
+    columns = new int[endX][];
+    values = new int[endX][];
+    rowSize = new int[endX];
+    Arrays.fill(columns, NO_ENTRIES);
+    Arrays.fill(values, NO_ENTRIES);
   }
 
-  @Override
-  public Integer put(Index key, Integer value) {
-    if (key.x > getEndX() || key.y > getEndY())
+  public void put(int x, int y, int value) {
+    if (x < 0 || x >= endX || y < 0 || y >= endY)
       throw new IllegalArgumentException();
-    return super.put(key, value);
+    int[] rowColumns = columns[x];
+    int n = rowSize[x];
+    int i = Arrays.binarySearch(rowColumns, 0, n, y);
+    if (i >= 0) {
+      values[x][i] = value;
+      return;
+    }
+    i = -i - 1;
+    if (n == rowColumns.length) {
+      int capacity = Math.max(4, n << 1);
+      columns[x] = rowColumns = Arrays.copyOf(rowColumns, capacity);
+      values[x] = Arrays.copyOf(values[x], capacity);
+    }
+    int[] rowValues = values[x];
+    System.arraycopy(rowColumns, i, rowColumns, i + 1, n - i);
+    System.arraycopy(rowValues, i, rowValues, i + 1, n - i);
+    rowColumns[i] = y;
+    rowValues[i] = value;
+    ++rowSize[x];
+    ++size;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
   }
 
   public int getEndX() {
@@ -30,33 +70,15 @@ public class Map2D extends TreeMap<Map2D.Index, Integer> {
     return endY;
   }
 
-  public static class Index implements Comparable<Index> {
-    private int x;
-    private int y;
-
-    public Index(int x, int y) {
-      this.x = x;
-      this.y = y;
-    }
-
-    @Override
-    public int compareTo(Index o) {
-      return getX() != o.getX()
-           ? getX() - o.getX()
-           : getY() - o.getY();
-    }
-
-    @Override
-    public String toString() {
-      return "[" + getX() + ", " + getY() + "]";
-    }
+  int rowSize(int x) {
+    return rowSize[x];
+  }
 
-    public int getY() {
-      return y;
-    }
+  int column(int x, int i) {
+    return columns[x][i];
+  }
 
-    public int getX() {
-      return x;
-    }
+  int value(int x, int i) {
+    return values[x][i];
   }
 }
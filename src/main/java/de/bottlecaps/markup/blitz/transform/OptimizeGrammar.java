@@ -0,0 +1,221 @@
+// Copyright (c) 2023-2024 Gunther Rademacher. Provided under the Apache 2 License.
+
+package de.bottlecaps.markup.blitz.transform;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+import de.bottlecaps.markup.blitz.grammar.Alt;
+import de.bottlecaps.markup.blitz.grammar.Alts;
+import de.bottlecaps.markup.blitz.grammar.Grammar;
+import de.bottlecaps.markup.blitz.grammar.Insertion;
+import de.bottlecaps.markup.blitz.grammar.Mark;
+import de.bottlecaps.markup.blitz.grammar.Nonterminal;
+import de.bottlecaps.markup.blitz.grammar.Rule;
+import de.bottlecaps.markup.blitz.grammar.Term;
+
+/**
+ * Simplify a BNF grammar, as produced by {@link BNF}, before constructing
+ * the LR automaton:
+ * <ul>
+ * <li>remove unproductive and unreachable rules,</li>
+ * <li>merge rules that have identical right hand sides, when they are only
+ * referenced as deleted nonterminals, and</li>
+ * <li>inline deleted nonterminals that are referenced once.</li>
+ * </ul>
+ * The start rule, and the nonterminal that it references, are never removed.
+ * Insertions are never moved into a position that is not at the end of an
+ * alternative, because that is where the parser adds them.
+ *
+ * <p>The language is unchanged, and so is the XML for input that can be
+ * parsed in one way only. As the LR states differ, however, the parser may
+ * choose a different derivation for ambiguous input, and it may report
+ * different expected terminals on a syntax error.
+ */
+public class OptimizeGrammar {
+  private final Grammar grammar;
+  private final String startName;
+
+  private OptimizeGrammar(Grammar grammar) {
+    this.grammar = grammar;
+    this.startName = grammar.getRules().values().iterator().next().getName();
+  }
+
+  /**
+   * Optimize a BNF grammar. The given grammar is not modified.
+   *
+   * @param g the BNF grammar
+   * @return the optimized grammar
+   */
+  public static Grammar process(Grammar g) {
+    Grammar grammar = g.copy();
+    grammar.setAdditionalNames(g.getAdditionalNames());
+    OptimizeGrammar optimizer = new OptimizeGrammar(grammar);
+    if (optimizer.removeUselessRules())
+      while (optimizer.mergeDuplicateRules() | optimizer.inlineRules())
+        optimizer.removeUselessRules();
+    PostProcess.process(grammar);
+    return grammar;
+  }
+
+  /**
+   * Remove unproductive rules, and alternatives that reference them, and
+   * then remove unreachable rules. Nothing is removed when the start rule is
+   * unproductive.
+   *
+   * @return false, if the start rule is unproductive
+   */
+  private boolean removeUselessRules() {
+    Map<String, Rule> rules = grammar.getRules();
+    Set<String> productive = new HashSet<>();
+    for (boolean changed = true; changed; ) {
+      changed = false;
+      for (Rule rule : rules.values())
+        if (! productive.contains(rule.getName()))
+          for (Alt alt : rule.getAlts().getAlts())
+            if (alt.getTerms().stream().allMatch(t -> ! (t instanceof Nonterminal) || productive.contains(((Nonterminal) t).getName()))) {
+              productive.add(rule.getName());
+              changed = true;
+              break;
+            }
+    }
+    if (! productive.contains(startName))
+      return false;
+    rules.values().removeIf(rule -> ! productive.contains(rule.getName()));
+    for (Rule rule : rules.values())
+      rule.getAlts().getAlts().removeIf(alt -> alt.getTerms().stream()
+          .anyMatch(t -> t instanceof Nonterminal && ! productive.contains(((Nonterminal) t).getName())));
+
+    Set<String> reachable = new HashSet<>();
+    Queue<String> todo = new ArrayDeque<>();
+    reachable.add(startName);
+    todo.add(startName);
+    for (String name; (name = todo.poll()) != null; )
+      for (Alt alt : rules.get(name).getAlts().getAlts())
+        for (Term term : alt.getTerms())
+          if (term instanceof Nonterminal && reachable.add(((Nonterminal) term).getName()))
+            todo.add(((Nonterminal) term).getName());
+    rules.values().removeIf(rule -> ! reachable.contains(rule.getName()));
+    return true;
+  }
+
+  /**
+   * Merge rules that have identical alternatives, when all references to them
+   * are deleted nonterminals, so their names never show up in the result.
+   *
+   * @return true, if any rules were merged
+   */
+  private boolean mergeDuplicateRules() {
+    Map<String, List<Reference>> references = references();
+    Map<Alts, String> ruleByAlts = new HashMap<>();
+    Map<String, String> replacement = new HashMap<>();
+    for (Rule rule : grammar.getRules().values()) {
+      String name = rule.getName();
+      if (isDeletedOnly(name, references)) {
+        String other = ruleByAlts.putIfAbsent(rule.getAlts(), name);
+        if (other != null)
+          replacement.put(name, other);
+      }
+    }
+    if (replacement.isEmpty())
+      return false;
+    replacement.forEach((name, other) -> {
+      for (Reference reference : references.get(name)) {
+        Nonterminal n = reference.nonterminal();
+        reference.replace(new Nonterminal(n.getMark(), n.getAlias(), other));
+      }
+      grammar.getRules().remove(name);
+    });
+    return true;
+  }
+
+  /**
+   * Inline deleted nonterminals that are referenced just once. When the
+   * nonterminal has multiple alternatives, this is restricted to references
+   * that are the only symbol of their alternative, so no symbols are
+   * duplicated.
+   *
+   * @return true, if any nonterminals were inlined
+   */
+  private boolean inlineRules() {
+    boolean inlined = false;
+    for (boolean changed = true; changed; ) {
+      changed = false;
+      Map<String, List<Reference>> references = references();
+      for (Rule rule : grammar.getRules().values()) {
+        String name = rule.getName();
+        List<Reference> r = references.get(name);
+        if (r == null || r.size() != 1 || ! isDeletedOnly(name, references))
+          continue;
+        Reference reference = r.get(0);
+        if (reference.rule.getName().equals(name) || reference.rule.getName().equals(startName))
+          continue;
+        List<Alt> alts = rule.getAlts().getAlts();
+        if (alts.stream().anyMatch(alt -> alt.getTerms().stream().anyMatch(t -> t instanceof Insertion)))
+          continue;
+        if (alts.size() != 1 && reference.alt.getTerms().size() != 1)
+          continue;
+        List<Alt> hostAlts = reference.rule.getAlts().getAlts();
+        int altIndex = hostAlts.indexOf(reference.alt);
+        hostAlts.remove(altIndex);
+        for (Alt alt : alts) {
+          Alt replacement = new Alt();
+          replacement.getTerms().addAll(reference.alt.getTerms().subList(0, reference.termIndex));
+          replacement.getTerms().addAll(alt.getTerms());
+          replacement.getTerms().addAll(reference.alt.getTerms().subList(reference.termIndex + 1, reference.alt.getTerms().size()));
+          hostAlts.add(altIndex++, replacement);
+        }
+        grammar.getRules().remove(name);
+        inlined = changed = true;
+        break;
+      }
+    }
+    return inlined;
+  }
+
+  private boolean isDeletedOnly(String name, Map<String, List<Reference>> references) {
+    if (name.equals(startName))
+      return false;
+    List<Reference> r = references.get(name);
+    return r != null && r.stream().allMatch(reference ->
+           reference.nonterminal().getMark() == Mark.DELETE
+        && ! reference.rule.getName().equals(startName));
+  }
+
+  private Map<String, List<Reference>> references() {
+    Map<String, List<Reference>> references = new HashMap<>();
+    for (Rule rule : grammar.getRules().values())
+      for (Alt alt : rule.getAlts().getAlts())
+        for (int i = 0; i < alt.getTerms().size(); ++i)
+          if (alt.getTerms().get(i) instanceof Nonterminal)
+            references.computeIfAbsent(((Nonterminal) alt.getTerms().get(i)).getName(), k -> new ArrayList<>())
+              .add(new Reference(rule, alt, i));
+    return references;
+  }
+
+  private static class Reference {
+    private final Rule rule;
+    private final Alt alt;
+    private final int termIndex;
+
+    public Reference(Rule rule, Alt alt, int termIndex) {
+      this.rule = rule;
+      this.alt = alt;
+      this.termIndex = termIndex;
+    }
+
+    public Nonterminal nonterminal() {
+      return (Nonterminal) alt.getTerms().get(termIndex);
+    }
+
+    public void replace(Term term) {
+      alt.getTerms().set(termIndex, term);
+    }
+  }
+}
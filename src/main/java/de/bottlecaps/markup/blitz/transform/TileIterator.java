@@ -5,11 +5,9 @@ package de.bottlecaps.markup.blitz.transform;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.NavigableMap;
 
 import de.bottlecaps.markup.blitz.codepoints.Range;
-import de.bottlecaps.markup.blitz.transform.Map2D.Index;
 
 public interface TileIterator {
   public int next(int[] tiles, int offset);
@@ -194,14 +192,12 @@ public interface TileIterator {
       int numberOfTiles = (end - 1 + tileSize) / tileSize;
       int currentIndex = 0;
 
-      Iterator<Entry<Index, Integer>> it;
+      int row = 0;
+      int column = -1;
       int index = -1;
       int value;
       {
-        if (! map.isEmpty()) {
-          it = map.entrySet().iterator();
-          nextEntry();
-        }
+        nextEntry();
       }
 
       @Override
@@ -260,13 +256,14 @@ public interface TileIterator {
       }
 
       private void nextEntry() {
-        if (! it.hasNext()) {
+        for (++column; row < map.getEndX() && column >= map.rowSize(row); column = 0)
+          ++row;
+        if (row == map.getEndX()) {
           index = -1;
         }
         else {
-          Map.Entry<Index, Integer> entry = it.next();
-          index = entry.getKey().getX() * map.getEndY() + entry.getKey().getY();
-          value = entry.getValue();
+          index = row * map.getEndY() + map.column(row, column);
+          value = map.value(row, column);
         }
       }
 
@@ -12,9 +12,14 @@ import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Named;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
 
 import de.bottlecaps.markup.Blitz.Option;
 import de.bottlecaps.markup.blitz.Parser;
@@ -116,28 +121,46 @@ public class BlitzTest extends TestBase {
         "unexpected result: " + result);
   }
 
-  @Test
-  public void testIxml() {
-    Parser parser = generate(Blitz.ixmlGrammar(), Option.INDENT); // , Option.TIMING);
+  @ParameterizedTest
+  @MethodSource("generatorOptions")
+  public void testIxml(Option[] generatorOptions) {
+    Parser parser = generate(Blitz.ixmlGrammar(), with(generatorOptions, Option.INDENT)); // , Option.TIMING);
     String xml = parser.parse(Blitz.ixmlGrammar());
     assertEquals(normalizeEol(resourceContent("ixml.xml")), xml);
   }
 
-  @Test
-  public void testJson() {
-    Parser parser = generate(resourceContent("json.ixml")); // , Option.TIMING, Option.TRACE, Option.VERBOSE);
+  @ParameterizedTest
+  @MethodSource("generatorOptions")
+  public void testJson(Option[] generatorOptions) {
+    Parser parser = generate(resourceContent("json.ixml"), generatorOptions); // , Option.TIMING, Option.TRACE, Option.VERBOSE);
     String result = parser.parse(resourceContent("sample.json"));
     String expectedResult = normalizeEol(resourceContent("sample.json.xml"));
     assertEquals(expectedResult, result);
   }
 
-  @Test
-  public void testAddress() {
-    Parser parser = generate(resourceContent("address.ixml"));
+  @ParameterizedTest
+  @MethodSource("generatorOptions")
+  public void testAddress(Option[] generatorOptions) {
+    Parser parser = generate(resourceContent("address.ixml"), generatorOptions);
     String xml = parser.parse(resourceContent("address.input"), Option.INDENT);
     assertEquals(normalizeEol(resourceContent("address.xml")), xml);
   }
 
+  static Stream<Arguments> generatorOptions() {
+    return Stream.of(
+        new Option[] {},
+        new Option[] {Option.PARALLEL},
+        new Option[] {Option.RELATIONAL_LALR},
+        new Option[] {Option.MINIMAL_LR1},
+        new Option[] {Option.FAST_TABLES},
+        new Option[] {Option.OPTIMIZE})
+      .map(options -> Arguments.of(Named.of(options.length == 0 ? "default" : Arrays.toString(options), options)));
+  }
+
+  private static Option[] with(Option[] options, Option... moreOptions) {
+    return Stream.concat(Arrays.stream(options), Arrays.stream(moreOptions)).toArray(Option[]::new);
+  }
+
   @Test
   public void testMultiThreadParsing() throws Throwable {
     Parser parser = generate(Blitz.ixmlGrammar(), Option.INDENT);
@@ -443,11 +466,12 @@ public class BlitzTest extends TestBase {
         result);
   }
 
-  @Test
-  public void testFrege() {
+  @ParameterizedTest
+  @MethodSource("generatorOptions")
+  public void testFrege(Option[] generatorOptions) {
     Parser parser = generate(
         resourceContent("frege.ixml"),
-        Option.INDENT);
+        with(generatorOptions, Option.INDENT));
     assertEquals(
           "<formula>\n"
         + "   <maybe>\n"
@@ -0,0 +1,122 @@
+// Copyright (c) 2023-2024 Gunther Rademacher. Provided under the Apache 2 License.
+
+package de.bottlecaps.markup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import de.bottlecaps.markup.Blitz.Option;
+import de.bottlecaps.markup.blitz.Parser;
+
+public class ParserCacheTest {
+
+  @Test
+  public void testHitAndMiss() {
+    ParserCache cache = new ParserCache(4, false);
+    Parser p1 = cache.get("S: 'a'.", Set.of(), () -> Blitz.generate("S: 'a'."));
+    Parser p2 = cache.get("S: 'a'.", Set.of(), () -> Blitz.generate("S: 'a'."));
+    Parser p3 = cache.get("S: 'a'.", Set.of(Option.INDENT), () -> Blitz.generate("S: 'a'.", Option.INDENT));
+    assertSame(p1, p2);
+    assertNotSame(p1, p3);
+    assertEquals(1, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+    assertEquals(0, cache.getEvictionCount());
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void testLruEviction() {
+    ParserCache cache = new ParserCache(2, false);
+    cache.get("S: 'a'.", Set.of(), () -> Blitz.generate("S: 'a'."));
+    cache.get("S: 'b'.", Set.of(), () -> Blitz.generate("S: 'b'."));
+    cache.get("S: 'a'.", Set.of(), () -> Blitz.generate("S: 'a'."));
+    cache.get("S: 'c'.", Set.of(), () -> Blitz.generate("S: 'c'."));
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(2, cache.size());
+    cache.get("S: 'a'.", Set.of(), () -> Blitz.generate("S: 'a'."));
+    assertEquals(2, cache.getHitCount());
+    cache.get("S: 'b'.", Set.of(), () -> Blitz.generate("S: 'b'."));
+    assertEquals(4, cache.getMissCount());
+  }
+
+  @Test
+  public void testSoftReferences() {
+    ParserCache cache = new ParserCache(2, true);
+    Parser p1 = cache.get("S: 'a'.", Set.of(), () -> Blitz.generate("S: 'a'."));
+    assertSame(p1, cache.get("S: 'a'.", Set.of(), () -> Blitz.generate("S: 'a'.")));
+    assertEquals("<S>a</S>", p1.parse("a"));
+  }
+
+  @Test
+  public void testSingleFlight() throws Exception {
+    ParserCache cache = new ParserCache(4, false);
+    AtomicInteger generations = new AtomicInteger();
+    CountDownLatch start = new CountDownLatch(1);
+    int threads = 8;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Parser>> futures = new ArrayList<>();
+      for (int i = 0; i < threads; ++i)
+        futures.add(executor.submit(() -> {
+          start.await();
+          return cache.get("S: 'a'+.", Set.of(), () -> {
+            generations.incrementAndGet();
+            return Blitz.generate("S: 'a'+.");
+          });
+        }));
+      start.countDown();
+      Parser parser = futures.get(0).get();
+      for (Future<Parser> future : futures)
+        assertSame(parser, future.get());
+      assertEquals(1, generations.get());
+      assertEquals(1, cache.getMissCount());
+      assertEquals(threads - 1, cache.getHitCount() + cache.getWaitCount());
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testFailureNotCached() {
+    ParserCache cache = new ParserCache(4, false);
+    assertThrows(BlitzException.class, () -> cache.get("S: ", Set.of(), () -> Blitz.generate("S: ")));
+    assertThrows(BlitzException.class, () -> cache.get("S: ", Set.of(), () -> Blitz.generate("S: ")));
+    assertEquals(2, cache.getMissCount());
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testBlitzGenerate() {
+    ParserCache previous = Blitz.getParserCache();
+    assertNull(previous);
+    assertNotSame(Blitz.generate("S: 'x'."), Blitz.generate("S: 'x'."));
+    ParserCache cache = new ParserCache();
+    Blitz.setParserCache(cache);
+    try {
+      Parser parser = Blitz.generate("S: 'x'.");
+      assertSame(parser, Blitz.generate("S: 'x'."));
+      assertNotSame(parser, Blitz.generate("S: 'x'.", Option.TIMING));
+      assertEquals(1, cache.getHitCount());
+      Blitz.setParserCache(null);
+      assertNotSame(parser, Blitz.generate("S: 'x'."));
+    }
+    finally {
+      Blitz.setParserCache(previous);
+    }
+  }
+}
@@ -0,0 +1,36 @@
+// Copyright (c) 2023-2024 Gunther Rademacher. Provided under the Apache 2 License.
+
+package de.bottlecaps.markup.blitz;
+
+import static de.bottlecaps.markup.Blitz.normalizeEol;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import de.bottlecaps.markup.Blitz;
+import de.bottlecaps.markup.TestBase;
+
+public class ParserTest extends TestBase {
+
+  @Test
+  public void testDefaultActions() {
+    Parser parser = Blitz.generate(resourceContent("json.ixml"));
+    assertTrue(Arrays.stream(parser.defaultReductions).anyMatch(code -> code != 0));
+    assertTrue(Arrays.stream(parser.defaultGotos).anyMatch(code -> code != 0));
+    assertEquals(normalizeEol(resourceContent("sample.json.xml")), parser.parse(resourceContent("sample.json")));
+    assertTrue(parser.parse("{\"a\": ]").contains("syntax error, found ']'"));
+  }
+
+  @Test
+  public void testMergedTerminals() {
+    Parser parser = Blitz.generate("S: 'a', 'x', 'y', 'z'; 'b', 'x', 'y', 'z'.");
+    assertEquals(parser.charClass('a'), parser.charClass('b'));
+    assertEquals(parser.terminal.length - 1, parser.numberOfTokens);
+    assertEquals("<S>bxyz</S>", parser.parse("bxyz"));
+    assertTrue(parser.parse("xyz").contains("syntax error, found 'x'\nwhile expecting ['a', 'b']\nat line 1, column 1:"));
+    assertTrue(parser.parse("abxyz").contains("syntax error, found 'b'\nwhile expecting 'x'\nat line 1, column 2:"));
+  }
+}
@@ -0,0 +1,50 @@
+// Copyright (c) 2023-2024 Gunther Rademacher. Provided under the Apache 2 License.
+
+package de.bottlecaps.markup.blitz;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import org.junit.jupiter.api.Test;
+
+import de.bottlecaps.markup.Blitz;
+import de.bottlecaps.markup.Blitz.Option;
+import de.bottlecaps.markup.TestBase;
+
+public class SpecializerTest extends TestBase {
+
+  @Test
+  public void testJson() {
+    String grammar = resourceContent("json.ixml");
+    String input = resourceContent("sample.json");
+    Parser parser = Blitz.generate(grammar, Option.SPECIALIZE);
+    if (Runtime.version().feature() >= 16)
+      assertNotEquals(Parser.class, parser.getClass());
+    assertEquals(Blitz.generate(grammar).parse(input), parser.parse(input));
+    assertEquals(Blitz.generate(grammar).parse("[1, 2,, 3]"), parser.parse("[1, 2,, 3]"));
+  }
+
+  @Test
+  public void testIxml() {
+    String grammar = Blitz.ixmlGrammar();
+    Parser parser = Blitz.generate(grammar, Option.SPECIALIZE);
+    assertEquals(Blitz.generate(grammar).parse(grammar), parser.parse(grammar));
+  }
+
+  @Test
+  public void testFastTables() {
+    String grammar = Blitz.ixmlGrammar();
+    Parser parser = Blitz.generate(grammar, Option.SPECIALIZE, Option.FAST_TABLES);
+    assertEquals(0, parser.terminalTransitions.shift().length);
+    assertNotNull(parser.asciiActions);
+    assertEquals(Blitz.generate(grammar).parse(grammar), parser.parse(grammar));
+    assertEquals(Blitz.generate(grammar).parse("S: 'a' ."), parser.parse("S: 'a' ."));
+  }
+
+  @Test
+  public void testNonAscii() {
+    Parser parser = Blitz.generate("S: ['α'-'ω'; #1F600-#1F64F]+, -\"€\", +\"é\".", Option.SPECIALIZE);
+    assertEquals("<S>λ😀é</S>", parser.parse("λ😀€"));
+  }
+}
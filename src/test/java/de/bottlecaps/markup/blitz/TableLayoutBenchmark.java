@@ -0,0 +1,95 @@
+// Copyright (c) 2023-2024 Gunther Rademacher. Provided under the Apache 2 License.
+
+package de.bottlecaps.markup.blitz;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.function.IntBinaryOperator;
+
+import org.junit.jupiter.api.Test;
+
+import de.bottlecaps.markup.Blitz;
+import de.bottlecaps.markup.Blitz.Option;
+import de.bottlecaps.markup.blitz.transform.CompressedMap;
+import de.bottlecaps.markup.blitz.transform.TileIterator;
+
+/**
+ * Measure the cost of terminal transition lookups in the table layouts that
+ * are available for a generated parser, for the ixml grammar. This is only
+ * executed when the ALL_TESTS system property is true.
+ */
+public class TableLayoutBenchmark {
+  private static final int LOOKUPS = 1 << 20;
+  private static final int WARMUP_ROUNDS = 20;
+  private static final int ROUNDS = 20;
+
+  @Test
+  public void benchmark() {
+    assumeTrue(Boolean.parseBoolean(System.getProperty("ALL_TESTS")));
+
+    String grammar = Blitz.ixmlGrammar();
+    Parser parser = Blitz.generate(grammar);
+    int numberOfTokens = parser.numberOfTokens;
+    int end = parser.expectedTokens.length * numberOfTokens;
+    int[] dense = new int[end];
+    for (int i = 0; i < end; ++i)
+      dense[i] = parser.terminalTransitions.get(i);
+    Function<Integer, TileIterator> iteratorSupplier = bits -> TileIterator.of(dense, end, bits, 0);
+
+    Map<String, CompressedMap> maps = new LinkedHashMap<>();
+    maps.put("three levels, int[]", new CompressedMap(iteratorSupplier, 3));
+    maps.put("single level, int[]", new CompressedMap(iteratorSupplier, 1));
+    maps.put("single level, narrowed", new CompressedMap(iteratorSupplier, 1).narrow());
+    maps.put("dense, int[]", CompressedMap.dense(iteratorSupplier.apply(0)));
+    maps.put("dense, narrowed", CompressedMap.dense(iteratorSupplier.apply(0)).narrow());
+
+    Map<String, IntBinaryOperator> lookups = new LinkedHashMap<>();
+    for (Map.Entry<String, CompressedMap> e : maps.entrySet()) {
+      CompressedMap map = e.getValue();
+      lookups.put(String.format("%-25s %7d bytes", e.getKey(), map.byteSize()),
+          (state, token) -> map.get(state * numberOfTokens + token));
+    }
+    Parser specialized = Blitz.generate(grammar, Option.SPECIALIZE);
+    Parser fastSpecialized = Blitz.generate(grammar, Option.SPECIALIZE, Option.FAST_TABLES);
+    lookups.put(String.format("%-25s %7d bytes", "specialized", specialized.terminalTransitions.byteSize()),
+        specialized::terminalTransition);
+    lookups.put(String.format("%-25s %7d bytes", "specialized, fast tables", fastSpecialized.terminalTransitions.byteSize()),
+        fastSpecialized::terminalTransition);
+
+    Random random = new Random(42);
+    int[] states = new int[LOOKUPS];
+    int[] tokens = new int[LOOKUPS];
+    for (int i = 0; i < LOOKUPS; ++i) {
+      states[i] = random.nextInt(parser.expectedTokens.length);
+      tokens[i] = random.nextInt(numberOfTokens);
+    }
+    int expectedSum = 0;
+    for (int i = 0; i < LOOKUPS; ++i)
+      expectedSum += dense[states[i] * numberOfTokens + tokens[i]];
+
+    System.out.println("terminal transition lookups, ixml grammar, "
+        + parser.expectedTokens.length + " states, " + numberOfTokens + " tokens:");
+    for (Map.Entry<String, IntBinaryOperator> e : lookups.entrySet()) {
+      IntBinaryOperator lookup = e.getValue();
+      for (int round = 0; round < WARMUP_ROUNDS; ++round)
+        assertEquals(expectedSum, sum(lookup, states, tokens), e.getKey());
+      long start = System.nanoTime();
+      for (int round = 0; round < ROUNDS; ++round)
+        assertEquals(expectedSum, sum(lookup, states, tokens), e.getKey());
+      double nanos = (double) (System.nanoTime() - start) / ROUNDS / LOOKUPS;
+      System.out.println(String.format("  %s: %6.2f ns/lookup", e.getKey(), nanos));
+    }
+  }
+
+  private static int sum(IntBinaryOperator lookup, int[] states, int[] tokens) {
+    int sum = 0;
+    for (int i = 0; i < states.length; ++i)
+      sum += lookup.applyAsInt(states[i], tokens[i]);
+    return sum;
+  }
+}
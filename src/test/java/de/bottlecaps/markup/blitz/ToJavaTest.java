@@ -0,0 +1,75 @@
+// Copyright (c) 2023-2024 Gunther Rademacher. Provided under the Apache 2 License.
+
+package de.bottlecaps.markup.blitz;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.junit.jupiter.api.Test;
+
+import de.bottlecaps.markup.Blitz;
+import de.bottlecaps.markup.Blitz.Option;
+import de.bottlecaps.markup.TestBase;
+
+public class ToJavaTest extends TestBase {
+
+  @Test
+  public void testJson() throws Exception {
+    String grammar = resourceContent("json.ixml");
+    String input = resourceContent("sample.json");
+    Parser parser = compile(grammar, "test.JsonParser");
+    assertEquals(Blitz.generate(grammar).parse(input), parser.parse(input));
+    assertEquals(Blitz.generate(grammar).parse("{\"a\": ]"), parser.parse("{\"a\": ]"));
+  }
+
+  @Test
+  public void testAmbiguity() throws Exception {
+    String grammar = "S: 'a', 'b'+, 'c'; 'a'+, 'b', 'c'.";
+    Parser parser = compile(grammar, "AmbiguousParser", Option.EARLEY);
+    assertEquals("<S xmlns:ixml=\"" + Parser.IXML_NAMESPACE + "\" ixml:state=\"ambiguous\">abc</S>", parser.parse("abc"));
+    assertEquals("<S xmlns:ixml=\"" + Parser.IXML_NAMESPACE + "\" ixml:state=\"ambiguous\">abc</S>", parser.parse("abc", Option.EARLEY));
+  }
+
+  @Test
+  public void testFastTables() throws Exception {
+    String grammar = resourceContent("json.ixml");
+    String input = resourceContent("sample.json");
+    Parser parser = compile(grammar, "test.FastJsonParser", Option.FAST_TABLES);
+    assertEquals(Blitz.generate(grammar).parse(input), parser.parse(input));
+    assertEquals(Blitz.generate(grammar).parse("{\"a\": ]"), parser.parse("{\"a\": ]"));
+  }
+
+  @Test
+  public void testNonAscii() throws Exception {
+    String grammar = "S: ['α'-'ω'; #1F600-#1F64F]+, -\"€\", +\"é\".";
+    Parser parser = compile(grammar, "test.NonAsciiParser");
+    assertEquals("<S>λ😀é</S>", parser.parse("λ😀€"));
+  }
+
+  private static Parser compile(String grammar, String className, Option... options) throws Exception {
+    Path directory = Files.createTempDirectory("blitz");
+    File source = directory.resolve(className.replace('.', File.separatorChar) + ".java").toFile();
+    source.getParentFile().mkdirs();
+    Files.writeString(source.toPath(), Blitz.generateJava(grammar, className, options), StandardCharsets.UTF_8);
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    int rc = compiler.run(null, null, null,
+        "-classpath", System.getProperty("java.class.path"),
+        "-encoding", "UTF-8",
+        "-d", directory.toString(),
+        source.getPath());
+    assertEquals(0, rc);
+    URLClassLoader classLoader = new URLClassLoader(new URL[] {directory.toUri().toURL()}, Parser.class.getClassLoader());
+    return (Parser) classLoader.loadClass(className)
+        .getConstructor(Option[].class)
+        .newInstance((Object) new Option[0]);
+  }
+}
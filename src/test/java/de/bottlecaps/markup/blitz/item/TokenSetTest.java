@@ -0,0 +1,83 @@
+// Copyright (c) 2023-2024 Gunther Rademacher. Provided under the Apache 2 License.
+
+package de.bottlecaps.markup.blitz.item;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class TokenSetTest {
+  private Random random;
+  private String msgPrefix;
+
+  @BeforeEach
+  public void beforeEach() {
+    random = new Random();
+    long seed = random.nextLong();
+    random.setSeed(seed);
+    msgPrefix = "While testing with seed=" + seed + "L: ";
+  }
+
+  @Test
+  public void testEpsilon() {
+    TokenSet tokenSet = new TokenSet(-1);
+    assertTrue(tokenSet.contains(-1));
+    assertFalse(tokenSet.contains(0));
+    assertEquals(-1, tokenSet.nextToken(-1));
+    assertEquals(-2, tokenSet.nextToken(0));
+    tokenSet.remove(-1);
+    assertEquals(new TokenSet(), tokenSet);
+    assertEquals(new TokenSet().hashCode(), tokenSet.hashCode());
+  }
+
+  @Test
+  public void testRandom() {
+    for (int i = 0; i < 1000; ++i) {
+      BitSet lhsBits = randomBits();
+      BitSet rhsBits = randomBits();
+      TokenSet lhs = tokenSet(lhsBits);
+      TokenSet rhs = tokenSet(rhsBits);
+
+      BitSet intersection = (BitSet) lhsBits.clone();
+      intersection.and(rhsBits);
+      assertEquals(intersection.equals(rhsBits), lhs.containsAll(rhs), msgPrefix + lhsBits + " containsAll " + rhsBits);
+      assertEquals(lhsBits.equals(rhsBits), lhs.equals(rhs), msgPrefix + lhsBits + " equals " + rhsBits);
+
+      TokenSet union = new TokenSet(lhs);
+      union.addAll(rhs);
+      BitSet unionBits = (BitSet) lhsBits.clone();
+      unionBits.or(rhsBits);
+      assertEquals(tokenSet(unionBits), union, msgPrefix);
+      assertEquals(tokenSet(unionBits).hashCode(), union.hashCode(), msgPrefix);
+      assertTrue(union.containsAll(lhs), msgPrefix);
+      assertTrue(union.containsAll(rhs), msgPrefix);
+
+      BitSet bits = new BitSet();
+      for (int token = union.nextToken(-1); token >= -1; token = union.nextToken(token + 1))
+        bits.set(token + 1);
+      assertEquals(unionBits, bits, msgPrefix);
+    }
+  }
+
+  private BitSet randomBits() {
+    BitSet bits = new BitSet();
+    int size = random.nextInt(200);
+    int count = random.nextInt(8);
+    for (int i = 0; i < count; ++i)
+      bits.set(random.nextInt(size + 1));
+    return bits;
+  }
+
+  private static TokenSet tokenSet(BitSet bits) {
+    TokenSet tokenSet = new TokenSet();
+    for (int bit = bits.nextSetBit(0); bit >= 0; bit = bits.nextSetBit(bit + 1))
+      tokenSet.add(bit - 1);
+    return tokenSet;
+  }
+}
@@ -82,9 +82,36 @@ public class CompressedMapTest {
     return codeByRange;
   }
 
+  @Test
+  public void testNarrowed() {
+    TreeMap<Range, Integer> codeByRange = new TreeMap<>();
+    for (Range range : UnicodeCategory.ALPHABET)
+      codeByRange.put(range, random.nextInt(100));
+    test(codeByRange, random.nextInt(100));
+    for (Range range : UnicodeCategory.ALPHABET)
+      codeByRange.put(range, random.nextInt(Short.MAX_VALUE));
+    test(codeByRange, 0);
+  }
+
+  @Test
+  public void testLargeBatch() {
+    TreeMap<Range, Integer> codeByRange = codeByRange(UnicodeCategory.ALPHABET);
+    int end = 0x110000;
+    Function<Integer, TileIterator> iteratorSupplier = bits -> TileIterator.of(codeByRange, end, bits, 0);
+    for (int maxDepth = 1; maxDepth <= 3; ++maxDepth) {
+      CompressedMap map = new CompressedMap(iteratorSupplier, maxDepth);
+      CompressedMap batchMap = new CompressedMap(iteratorSupplier, maxDepth, 64);
+      assertArrayEquals(map.shift(), batchMap.shift(), msgPrefix);
+      assertArrayEquals(map.data(), batchMap.data(), msgPrefix);
+    }
+  }
+
   private void test(TreeMap<Range, Integer> codeByRange) {
+    test(codeByRange, random.nextInt(0xD800));
+  }
+
+  private void test(TreeMap<Range, Integer> codeByRange, int defaultValue) {
     int end = 0xD800;
-    int defaultValue = random.nextInt(end);
     int[] originalData = setupOriginalData(codeByRange, end, defaultValue);
     test(originalData, bits -> TileIterator.of(codeByRange, end, bits, defaultValue));
   }
@@ -102,6 +129,9 @@ public class CompressedMapTest {
 
     for (int maxDepth = 1; maxDepth <= 8; ++maxDepth) {
       CompressedMap map = new CompressedMap(iteratorSupplier, maxDepth);
+      CompressedMap parallelMap = new CompressedMap(iteratorSupplier, maxDepth, true);
+      assertArrayEquals(map.shift(), parallelMap.shift(), msgPrefix);
+      assertArrayEquals(map.data(), parallelMap.data(), msgPrefix);
       int[] data = map.data();
       if (map.shift().length == maxDepth) {
         validate(data);
@@ -121,8 +151,18 @@ public class CompressedMapTest {
         for (int v : randomValues)
           sum += map.get(v);
         assertEquals(expectedSum, sum, msgPrefix);
+
+        CompressedMap narrowedMap = map.narrow();
+        assertArrayEquals(data, narrowedMap.data(), msgPrefix);
+        assertArrayEquals(originalData, reconstruct(narrowedMap, originalData.length), msgPrefix);
       }
     }
+
+    CompressedMap denseMap = CompressedMap.dense(iteratorSupplier.apply(0));
+    assertEquals(0, denseMap.shift().length, msgPrefix);
+    assertArrayEquals(originalData, denseMap.data(), msgPrefix);
+    assertArrayEquals(originalData, reconstruct(denseMap, originalData.length), msgPrefix);
+    assertArrayEquals(originalData, reconstruct(denseMap.narrow(), originalData.length), msgPrefix);
   }
 
   private void validate(int[] data) {
@@ -0,0 +1,250 @@
+// Copyright (c) 2023-2024 Gunther Rademacher. Provided under the Apache 2 License.
+
+package de.bottlecaps.markup.blitz.transform;
+
+import static de.bottlecaps.markup.Blitz.generate;
+import static de.bottlecaps.markup.Blitz.normalizeEol;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+import de.bottlecaps.markup.Blitz;
+import de.bottlecaps.markup.Blitz.Option;
+import de.bottlecaps.markup.BlitzException;
+import de.bottlecaps.markup.TestBase;
+import de.bottlecaps.markup.blitz.Parser;
+import de.bottlecaps.markup.blitz.Profile;
+import de.bottlecaps.markup.blitz.TieredParser;
+
+public class GeneratorTest extends TestBase {
+
+  @Test
+  public void testRelationalLalrNullable() {
+    String grammar = "S: A, B, +'x', C. A: 'a'*; B. B: 'b'?, C. C: ; 'c', A.";
+    for (String input : new String[] {"", "a", "ab", "abc", "bcac", "cacc", "ca"})
+      assertEquals(
+          generate(grammar).parse(input),
+          generate(grammar, Option.RELATIONAL_LALR).parse(input));
+  }
+
+  @Test
+  public void testRelationalLalrAmbiguous() {
+    String grammar = "S: E. E: E, '+', E; E, '*', E; '(', E, ')'; 'n'.";
+    String input = "n+n*(n+n)*n";
+    assertEquals(
+        generate(grammar).parse(input),
+        generate(grammar, Option.RELATIONAL_LALR).parse(input));
+  }
+
+  @Test
+  public void testMinimalLr1() {
+    String grammar = "S: 'a', E, 'c'; 'a', F, 'd'; 'b', F, 'c'; 'b', E, 'd'. E: 'e', 'x'*. F: 'e', 'x'*.";
+    for (String input : new String[] {"aexc", "aed", "bec", "bexxd", "aee"})
+      assertEquals(
+          generate(grammar).parse(input),
+          generate(grammar, Option.MINIMAL_LR1).parse(input));
+  }
+
+  @Test
+  public void testFastTables() {
+    String grammar = "S: (line, -#a)*. line: ~[#a; #d]*, -#d?.";
+    for (String input : new String[] {"", "ab\r\ncd\n", "λx\n\r\n", "a\r\rb\n", "ab"})
+      assertEquals(
+          generate(grammar).parse(input),
+          generate(grammar, Option.FAST_TABLES).parse(input));
+  }
+
+  @Test
+  public void testOptimize() {
+    String grammar = "S: A, -B, -C; -D, 'x', 'y', +'i'. A: -E; -F. -B: 'b', 'c'. C: 'c'; U. D: 'd'. E: 'e', 'f'. F: 'e', 'f'. U: U, 'u'. V: 'v'.";
+    for (String input : new String[] {"ef", "efbc", "efbcc", "dxy", "dx", "bc"})
+      assertEquals(
+          generate(grammar).parse(input),
+          generate(grammar, Option.OPTIMIZE).parse(input));
+  }
+
+  @Test
+  public void testRuns() {
+    String grammar = "S: (name; number)++-' '. name: [L]+. number: -'#'+, digit+. -digit: ['0'-'9'], -'_'*.";
+    String input = "abc #1_2__3 d ##45 λx";
+    assertEquals("<S><name>abc</name><number>123</number><name>d</name><number>45</number><name>λx</name></S>",
+        generate(grammar).parse(input));
+    assertEquals("<S name=\"ab\"><x>c</x></S>", generate("S: @name, x. name: ['a'-'c']+. x: ['a'-'c'].").parse("abc"));
+    assertEquals("<S><x>ab</x></S>", generate("S: name>x. name: 'a'+, 'b'.").parse("ab"));
+    Parser ambiguous = generate("S: name, name. name: ['a'-'c']+.");
+    assertEquals("<S xmlns:ixml=\"http://invisiblexml.org/NS\" ixml:state=\"ambiguous\"><name>ab</name><name>c</name></S>",
+        ambiguous.parse("abc"));
+    assertTrue(ambiguous.parse("ab1").contains("lexical analysis failed"));
+  }
+
+  @Test
+  public void testReductionChains() {
+    Parser parser = generate("S: value++-','. -value: -literal; array. -literal: number; -boolean; name>id. "
+        + "array: -'[', (value++-',')?, -']'. number: ['0'-'9']+. -boolean: true; false, +'!'. "
+        + "true: -'t'. false: -'f'. name: ['a'-'e'].");
+    assertEquals("<S><number>12</number><true/><array><false/>!<id>a</id><array/></array><number>3</number></S>",
+        parser.parse("12,t,[f,a,[]],3"));
+    assertTrue(parser.parse("12,t,[f,a,[x]],3").contains("while expecting ['[', ']', '0'..., 'a'..., 't', 'f']"));
+  }
+
+  @Test
+  public void testAppend() {
+    Parser parser = generate("S: item**-',', -'.', (x, +'!')*, n++-';'. item: ['a'-'c']; @n. -x: -'x'; ['y']. n: ['0'-'9']+.");
+    assertEquals("<S><item>a</item><item n=\"1\"/><item>c</item>y!!<n>2</n><n>34</n></S>", parser.parse("a,1,c.yx2;34"));
+    assertEquals("<S xmlns:ixml=\"http://invisiblexml.org/NS\" ixml:state=\"ambiguous\"><a>xx</a><a>x</a></S>",
+        generate("S: a+, a+. a: 'x'+.").parse("xxx"));
+    StringBuilder input = new StringBuilder("[");
+    StringBuilder expected = new StringBuilder("<array>");
+    for (int i = 0; i < 10000; ++i) {
+      input.append(i == 0 ? "" : ",").append(i);
+      expected.append("<number>").append(i).append("</number>");
+    }
+    input.append("]");
+    expected.append("</array>");
+    assertEquals(expected.toString(), generate("array: -'[', number**-',', -']'. number: ['0'-'9']+.").parse(input.toString()));
+  }
+
+  @Test
+  public void testMergedStates() {
+    String grammar = "S: 'a', 'x', 'y', 'z'; 'b', 'x', 'y', 'z'.";
+    Parser lazy = Blitz.generate(grammar, Option.LAZY);
+    Parser parser = Blitz.generate(grammar);
+    for (String input : new String[] {"axyz", "bxyz", "bxz"})
+      assertEquals(lazy.parse(input), parser.parse(input));
+    assertTrue(parser.profile("axyz").numberOfStates() < ((Generator.LazyParser) lazy).numberOfStates());
+  }
+
+  @Test
+  public void testProfile() {
+    String grammar = resourceContent("json.ixml");
+    String input = resourceContent("sample.json");
+    Parser parser = generate(grammar);
+    Profile profile = Profile.valueOf(parser.profile(input).toString());
+    assertTrue(profile.tokenCount(0) > 0);
+    for (Option[] options : new Option[][] {{}, {Option.FAST_TABLES}}) {
+      Parser profiled = Blitz.generate(grammar, profile, options);
+      assertEquals(normalizeEol(resourceContent("sample.json.xml")), profiled.parse(input));
+      assertEquals(parser.parse("{\"a\": [1, 2,]}"), profiled.parse("{\"a\": [1, 2,]}"));
+    }
+    assertThrows(BlitzException.class, () -> Blitz.generate("S: 'a'.", profile));
+  }
+
+  @Test
+  public void testLazy() {
+    Parser parser = Blitz.generate(Blitz.ixmlGrammar(), Option.LAZY);
+    assertEquals("<ixml><rule name=\"S\"><alt><literal string=\"a\"/></alt></rule></ixml>", parser.parse("S: 'a'."));
+    int states = ((Generator.LazyParser) parser).numberOfStates();
+    assertEquals(normalizeEol(resourceContent("ixml.xml")), parser.parse(Blitz.ixmlGrammar(), Option.INDENT));
+    assertTrue(((Generator.LazyParser) parser).numberOfStates() > states);
+    String xml = Blitz.generate(resourceContent("json.ixml"), Option.LAZY).parse(resourceContent("sample.json"));
+    assertEquals(normalizeEol(resourceContent("sample.json.xml")), xml);
+    xml = Blitz.generate(resourceContent("address.ixml"), Option.LAZY).parse(resourceContent("address.input"), Option.INDENT);
+    assertEquals(normalizeEol(resourceContent("address.xml")), xml);
+  }
+
+  @Test
+  public void testLazyAmbiguous() {
+    for (String grammar : new String[] {
+        "S: E. E: E, '+', E; E, '*', E; '(', E, ')'; 'n'.",
+        "S: a+, a+. a: 'x'+.",
+        "S: A, B, +'x', C. A: 'a'*; B. B: 'b'?, C. C: ; 'c', A."}) {
+      Parser lazy = Blitz.generate(grammar, Option.LAZY);
+      for (String input : new String[] {"", "xxx", "n+n*(n+n)*n", "abc", "bcac", "n+", "xy"})
+        assertEquals(generate(grammar).parse(input), lazy.parse(input));
+    }
+  }
+
+  @Test
+  public void testLazyConcurrent() throws Exception {
+    Parser parser = Blitz.generate(resourceContent("json.ixml"), Option.LAZY);
+    String input = resourceContent("sample.json");
+    String expected = normalizeEol(resourceContent("sample.json.xml"));
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<String>> results = new ArrayList<>();
+      for (int i = 0; i < 32; ++i)
+        results.add(executor.submit(() -> parser.parse(input)));
+      for (Future<String> result : results)
+        assertEquals(expected, result.get());
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testTiered() throws Exception {
+    Parser parser = Blitz.generate(Blitz.ixmlGrammar(), Option.TIERED, Option.INDENT);
+    String expected = normalizeEol(resourceContent("ixml.xml"));
+    assertEquals(expected, parser.parse(Blitz.ixmlGrammar()));
+    Parser optimized = ((TieredParser) parser).getUpgrade().get();
+    assertTrue(((TieredParser) parser).isUpgraded());
+    assertFalse(optimized instanceof Generator.LazyParser);
+    assertEquals(expected, parser.parse(Blitz.ixmlGrammar()));
+  }
+
+  @Test
+  public void testParallel() {
+    for (String grammar : new String[] {Blitz.ixmlGrammar(), resourceContent("json.ixml")}) {
+      String sequential = Blitz.generateJava(grammar, "ParallelTest");
+      String parallel = Blitz.generateJava(grammar, "ParallelTest", Option.PARALLEL);
+      assertEquals(withoutHeader(sequential), withoutHeader(parallel));
+    }
+  }
+
+  private static String withoutHeader(String source) {
+    return source.substring(source.indexOf('\n'));
+  }
+
+  @Test
+  public void testEarley() {
+    Parser parser = generate(resourceContent("json.ixml"), Option.EARLEY);
+    assertEquals(normalizeEol(resourceContent("sample.json.xml")), parser.parse(resourceContent("sample.json")));
+    assertEquals(generate(resourceContent("json.ixml")).parse("{\"a\": ]"), parser.parse("{\"a\": ]"));
+    String xml = generate(Blitz.ixmlGrammar(), Option.EARLEY).parse(Blitz.ixmlGrammar(), Option.INDENT, Option.EARLEY);
+    assertEquals(normalizeEol(resourceContent("ixml.xml")), xml);
+    parser = generate("S: 'a', 'b'+, 'c'; 'a'+, 'b', 'c'.", Option.EARLEY);
+    assertEquals(generate("S: 'a', 'b'+, 'c'; 'a'+, 'b', 'c'.").parse("abc"), parser.parse("abc"));
+    assertTrue(parser.parse("abc").contains("ixml:state=\"ambiguous\""));
+  }
+
+  @Test
+  public void testEarleyOptIn() {
+    String ambiguous = "<S xmlns:ixml=\"" + Parser.IXML_NAMESPACE + "\" ixml:state=\"ambiguous\">";
+    String grammar = "S: X, Y. X: 'a'*. Y: 'a'*.";
+    assertEquals(ambiguous + "<X>a</X><Y>a</Y></S>", generate(grammar).parse("aa"));
+    assertEquals(generate(grammar).parse("aa"), generate(grammar, Option.EARLEY).parse("aa"));
+    grammar = "S: E. E: E, '+', E; 'n'.";
+    assertEquals(ambiguous + "<E><E><E>n</E>+<E>n</E></E>+<E>n</E></E></S>", generate(grammar).parse("n+n+n"));
+    assertEquals(generate(grammar).parse("n+n+n"), generate(grammar, Option.EARLEY).parse("n+n+n"));
+    grammar = "S: A, 'c'; B, 'd'. A: 'a'+. B: 'a', 'a'*.";
+    assertTrue(generate(grammar).parse("aab").contains("while expecting ['c', 'a']\nat line 1, column 3:"));
+    assertEquals(generate(grammar).parse("aab"), generate(grammar, Option.EARLEY).parse("aab"));
+  }
+
+  @Test
+  public void testSupplementaryCharacters() {
+    String grammar = "S: (cjk; emoji; other)*. cjk: [#20000-#2A6DF]. emoji: [#1F600-#1F64F]. other: ~[#20000-#2A6DF; #1F600-#1F64F].";
+    String input = "\uD840\uDC00\uD83D\uDE00x\uDB40\uDC01";
+    String expected = "<S><cjk>\uD840\uDC00</cjk><emoji>\uD83D\uDE00</emoji><other>x</other><other>\uDB40\uDC01</other></S>";
+    assertEquals(expected, generate(grammar).parse(input));
+    assertEquals(expected, generate(grammar, Option.SPECIALIZE).parse(input));
+    assertEquals(expected, generate(grammar, Option.FAST_TABLES).parse(input));
+  }
+
+  @Test
+  public void testSupplementaryCharacterBeyondLastPlane() {
+    Parser parser = generate("S: [#20000-#2A6DF; 'a'-'z']*.");
+    assertEquals("<S>a\uD840\uDC00b</S>", parser.parse("a\uD840\uDC00b"));
+    assertTrue(parser.parse("a\uDB40\uDC01b").contains("lexical analysis failed"));
+  }
+}